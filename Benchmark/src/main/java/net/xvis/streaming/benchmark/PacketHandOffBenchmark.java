@@ -0,0 +1,164 @@
+package net.xvis.streaming.benchmark;
+
+import net.xvis.streaming.rtp.SpscRing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands packets from a producer to a consumer thread, as DisplayStream and the send thread do:
+ * through the SpscRing of RtpSocket with each wait strategy, and through the two
+ * ArrayBlockingQueues and the synchronized dequeueData()/enqueueData() it replaced.
+ * <p>
+ * throughput: a batch of packets, as many as the consumer takes. latency: one packet, from the
+ * producer claiming it to the consumer handing it back.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PacketHandOffBenchmark {
+    private static final int CAPACITY = 64;
+    private static final int BATCH = 1000;
+
+    @Param({ "RING_BUSY_SPIN", "RING_YIELD", "RING_PARK", "QUEUES" })
+    public String handOff;
+
+    private HandOff packets;
+    private Thread consumer;
+    private final AtomicLong consumed = new AtomicLong();
+    private long produced;
+
+    private interface HandOff {
+        void produce() throws InterruptedException;
+
+        void consume() throws InterruptedException;
+    }
+
+    private static final class RingHandOff implements HandOff {
+        private final SpscRing<long[]> ring;
+
+        RingHandOff(SpscRing.WaitStrategy wait) {
+            long[][] slots = new long[CAPACITY][];
+            for (int i = 0; i < CAPACITY; i++) {
+                slots[i] = new long[1];
+            }
+            ring = new SpscRing<>(slots);
+            ring.setWaitStrategy(wait, wait);
+        }
+
+        @Override
+        public void produce() throws InterruptedException {
+            ring.claim()[0]++;
+            ring.publish();
+        }
+
+        @Override
+        public void consume() throws InterruptedException {
+            ring.take();
+            ring.release();
+        }
+    }
+
+    // RtpSocket before the ring: the producer holds the socket's lock while it waits for a packet
+    private static final class QueuesHandOff implements HandOff {
+        private final BlockingQueue<long[]> emptyRtpData = new ArrayBlockingQueue<>(CAPACITY);
+        private final BlockingQueue<long[]> filledRtpData = new ArrayBlockingQueue<>(CAPACITY);
+
+        QueuesHandOff() {
+            for (int i = 0; i < CAPACITY; i++) {
+                emptyRtpData.add(new long[1]);
+            }
+        }
+
+        @Override
+        public void produce() throws InterruptedException {
+            long[] rtpData = dequeueData();
+            rtpData[0]++;
+            enqueueData(rtpData);
+        }
+
+        private synchronized long[] dequeueData() throws InterruptedException {
+            return emptyRtpData.take();
+        }
+
+        private synchronized void enqueueData(long[] rtpData) throws InterruptedException {
+            filledRtpData.put(rtpData);
+        }
+
+        @Override
+        public void consume() throws InterruptedException {
+            emptyRtpData.put(filledRtpData.take());
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        packets = handOff.equals("QUEUES") ? new QueuesHandOff()
+                : new RingHandOff(SpscRing.WaitStrategy.valueOf(handOff.substring("RING_".length())));
+        consumer = new Thread("consumer") {
+            @Override
+            public void run() {
+                try {
+                    for (long count = 1; ; count++) {
+                        packets.consume();
+                        consumed.lazySet(count);
+                    }
+                } catch (InterruptedException ignore) {
+                }
+            }
+        };
+        consumer.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        consumer.interrupt();
+        consumer.join();
+    }
+
+    private void awaitConsumed() {
+        while (consumed.get() < produced) {
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(BATCH)
+    public long throughput() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            packets.produce();
+        }
+        produced += BATCH;
+        awaitConsumed();
+        return produced;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long latency() throws InterruptedException {
+        packets.produce();
+        produced++;
+        awaitConsumed();
+        return produced;
+    }
+}
@@ -0,0 +1,120 @@
+package net.xvis.streaming.benchmark;
+
+import net.xvis.streaming.video.AnnexBReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits an access unit into its NAL units: with AnnexBReader's word-at-a-time start code scan,
+ * and with a byte loop like the ones it replaced in DisplayStream and CodecManager.
+ * <p>
+ * The access unit is an AUD, an SEI and four slices of entropy-coded bytes, zero bytes about as
+ * frequent as in CABAC output, with emulation prevention.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StartCodeScanBenchmark {
+    private static final int SLICES = 4;
+
+    @Param({ "200000" })
+    public int accessUnitSize;
+
+    @Param({ "true", "false" })
+    public boolean direct;
+
+    private ByteBuffer buffer;
+    private int end;
+    private final AnnexBReader reader = new AnnexBReader();
+
+    @Setup
+    public void setUp() {
+        buffer = direct ? ByteBuffer.allocateDirect(accessUnitSize + 64) : ByteBuffer.allocate(accessUnitSize + 64);
+        Random random = new Random(42);
+        putNalUnit(random, 0x09, 1, true); // AUD
+        putNalUnit(random, 0x06, 24, false); // SEI
+        int sliceSize = (accessUnitSize - buffer.position()) / SLICES - 4;
+        for (int i = 0; i < SLICES; i++) {
+            putNalUnit(random, (i == 0) ? 0x65 : 0x41, sliceSize, i == 0);
+        }
+        end = buffer.position();
+        if (annexBReader() != byteLoop()) {
+            throw new IllegalStateException("The scans disagree");
+        }
+    }
+
+    private void putNalUnit(Random random, int header, int length, boolean longStartCode) {
+        if (longStartCode) {
+            buffer.put((byte) 0);
+        }
+        buffer.put((byte) 0).put((byte) 0).put((byte) 1).put((byte) header);
+        int zeros = 0;
+        for (int i = 0; i < length; i++) {
+            int value = random.nextInt(256);
+            if (zeros == 2 && value <= 3) {
+                // emulation prevention byte
+                value = 3;
+            }
+            // a NAL unit does not end with a zero byte
+            if (i == length - 1 && value == 0) {
+                value = 0x80;
+            }
+            zeros = (value == 0) ? zeros + 1 : 0;
+            buffer.put((byte) value);
+        }
+    }
+
+    /**
+     * @return The sum of the NAL unit lengths
+     */
+    @Benchmark
+    public int annexBReader() {
+        int bytes = 0;
+        reader.reset(buffer, 0, end);
+        while (reader.next()) {
+            bytes += reader.getEnd() - reader.getStart();
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int byteLoop() {
+        int bytes = 0;
+        int start = -1;
+        for (int i = 0; i + 2 < end; i++) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                if (start >= 0) {
+                    bytes += nalUnitLength(start, i);
+                }
+                i += 2;
+                start = i + 1;
+            }
+        }
+        return (start >= 0) ? bytes + nalUnitLength(start, end) : bytes;
+    }
+
+    // less the trailing zero bytes, the first byte of a 4-byte start code
+    private int nalUnitLength(int start, int nalEnd) {
+        while (nalEnd > start && buffer.get(nalEnd - 1) == 0) {
+            nalEnd--;
+        }
+        return nalEnd - start;
+    }
+}
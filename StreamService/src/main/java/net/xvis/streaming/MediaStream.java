@@ -4,17 +4,34 @@ import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.util.Log;
 
+import net.xvis.streaming.rtp.AbsSendTimeExtension;
+import net.xvis.streaming.rtp.InterleavedChannel;
+import net.xvis.streaming.rtp.InterleavedDestination;
+import net.xvis.streaming.rtp.LentBuffer;
+import net.xvis.streaming.rtp.RtpDestination;
+import net.xvis.streaming.rtp.RtpHeaderExtension;
 import net.xvis.streaming.rtp.RtpSocket;
+import net.xvis.streaming.rtp.TransportSequenceNumberExtension;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public abstract class MediaStream {
     protected static final String TAG = "MediaStream";
 
+    // how long the output thread waits for an output buffer while packets still hold others
+    private static final long LENT_BUFFER_POLL_US = 2000;
+    // how long stop() waits for the packets in flight before it drops the backlogs again
+    private static final long LENT_BUFFER_TIMEOUT_MS = 500;
+    // how long stop() waits for the output thread to be done with the buffer it streams
+    private static final long OUTPUT_THREAD_JOIN_MS = 3000;
+
     protected boolean streaming = false;
     protected boolean configured = false;
     protected int ssrc = 0;
@@ -26,10 +43,17 @@ public abstract class MediaStream {
 
     private int mtu = 1500;
     private int timeToLive = 64;
+    private boolean bandwidthEstimation = false;
     protected MediaCodec mediaCodec;
     protected String mimeType;
     protected RtpSocket rtpSocket; // expand this to support multiple clients
 
+    // output buffers the packets still carry slices of, released to the codec once they are sent
+    private final Queue<LentBuffer> lentBuffers = new ConcurrentLinkedQueue<>();
+    // the output buffer being streamed, only used by the output thread
+    private int outputIndex = -1;
+    private LentBuffer lentBuffer;
+
     public MediaStream() {
         ssrc = new Random().nextInt();
         rtpSocket = new RtpSocket(mtu, 5004, 5005);
@@ -41,8 +65,187 @@ public abstract class MediaStream {
         rtpSocket.addDestination(destination, rtpPort, rtcpPort);
     }
 
+    public void addInterleavedDestination(InterleavedChannel channel, int rtpChannelId, int rtcpChannelId) {
+        rtpSocket.addInterleavedDestination(channel, rtpChannelId, rtcpChannelId);
+    }
+
+    /**
+     * Sets the largest MTU the packets are sized for, e.g. 9000 for jumbo frames on a LAN. The
+     * clients behind a smaller one get smaller packets anyway.
+     */
+    public void setMtu(int mtu) {
+        if (streaming) {
+            throw new IllegalStateException("Can't be called while streaming.");
+        }
+        this.mtu = mtu;
+        rtpSocket.setMtu(mtu);
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Applies the RTSP Blocksize a client asked for: the size of the RTP payload, without the RTP
+     * header and the lower layers (RFC 2326, section 12.7).
+     *
+     * @return The Blocksize the client gets, to be sent back in the response (section 12.7 lets
+     * the server pick another size)
+     */
+    public int setBlocksize(InetAddress destination, int blocksize) {
+        rtpSocket.setMaxPacketSize(destination, blocksize + RtpSocket.HEADER_SIZE);
+        // May be more than asked for, a client cannot shrink the packets of the others
+        return rtpSocket.getMaxPacketSize() - RtpSocket.HEADER_SIZE;
+    }
+
+    public int setBlocksize(InterleavedChannel channel, int blocksize) {
+        rtpSocket.setMaxPacketSize(channel, blocksize + RtpSocket.HEADER_SIZE);
+        return rtpSocket.getMaxPacketSize() - RtpSocket.HEADER_SIZE;
+    }
+
     public void setTimeToLive(int timeToLive) {
         this.timeToLive = timeToLive;
+        rtpSocket.setTimeToLive(timeToLive);
+    }
+
+    public int getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Sends the stream once to a multicast group instead of to each client, the RTCP port is
+     * rtpPort + 1. Null goes back to unicast.
+     */
+    public void setMulticastGroup(InetAddress group, int rtpPort) {
+        rtpSocket.setMulticastGroup(group, rtpPort, rtpPort + 1);
+    }
+
+    public InetAddress getMulticastGroup() {
+        return rtpSocket.getMulticastGroup();
+    }
+
+    /**
+     * Sets the canonical name the RTCP reports carry, the same for the tracks of a session so that
+     * players synchronize them.
+     */
+    public void setCname(String cname) {
+        rtpSocket.setCname(cname);
+    }
+
+    /**
+     * Sets how much memory the copies of the last group of pictures can take, which a client that
+     * joins gets right away rather than waiting for the next keyframe. 0 turns the cache off.
+     */
+    public void setGopCacheSize(int size) {
+        rtpSocket.setGopCacheSize(size);
+    }
+
+    /**
+     * Retransmits lost packets on a separate RTX stream (RFC 4588) with the given payload type,
+     * -1 to resend the original packets.
+     */
+    public void setRtxPayloadType(int rtxPayloadType) {
+        int rtxSsrc = ssrc;
+        while (rtxSsrc == ssrc) {
+            rtxSsrc = new Random().nextInt();
+        }
+        rtpSocket.setRtx(rtxPayloadType, rtxSsrc);
+    }
+
+    /**
+     * Protects the stream with XOR parity packets (ULPFEC) of the given payload type, one per group
+     * of minGroupSize to maxGroupSize packets depending on the loss, -1 to turn it off.
+     */
+    public void setFec(int fecPayloadType, int minGroupSize, int maxGroupSize) {
+        int fecSsrc = ssrc;
+        while (fecSsrc == ssrc) {
+            fecSsrc = new Random().nextInt();
+        }
+        rtpSocket.setFec(fecPayloadType, fecSsrc, minGroupSize, maxGroupSize);
+    }
+
+    /**
+     * Stamps the packets with their send time and a transport-wide sequence number, so that the
+     * receivers' transport-wide feedback drives {@link #getTargetBitrate()}. Must be called before
+     * the stream starts.
+     */
+    public void enableBandwidthEstimation() {
+        if (bandwidthEstimation) {
+            return;
+        }
+        bandwidthEstimation = true;
+        rtpSocket.addHeaderExtension(new AbsSendTimeExtension());
+        rtpSocket.addHeaderExtension(new TransportSequenceNumberExtension());
+    }
+
+    /**
+     * Returns the estimated bitrate the slowest client can take, 0 while there is no estimate.
+     */
+    public long getTargetBitrate() {
+        return rtpSocket.getTargetBitrate();
+    }
+
+    /**
+     * Returns the payload types of the media description's format list.
+     */
+    protected String getFormats(int payloadType) {
+        String formats = String.valueOf(payloadType);
+        int rtxPayloadType = rtpSocket.getRtxPayloadType();
+        if (rtxPayloadType >= 0) {
+            formats += " " + rtxPayloadType;
+        }
+        int fecPayloadType = rtpSocket.getFecPayloadType();
+        if (fecPayloadType >= 0) {
+            formats += " " + fecPayloadType;
+        }
+        return formats;
+    }
+
+    /**
+     * Returns the attributes announcing that lost packets are retransmitted on NACK, and how.
+     */
+    protected String getRetransmissionDescription(int payloadType, long clockRateHz) {
+        long rtxTimeMs = rtpSocket.getRetransmissionTimeMs();
+        if (rtxTimeMs == 0) {
+            return "";
+        }
+        // a=rtcp-fb:<payload type> nack (RFC 4585)
+        String description = "a=rtcp-fb:" + payloadType + " nack\r\n";
+        int rtxPayloadType = rtpSocket.getRtxPayloadType();
+        if (rtxPayloadType >= 0) {
+            // a=fmtp:<rtx payload type> apt=<payload type>;rtx-time=<ms> (RFC 4588)
+            description += "a=rtpmap:" + rtxPayloadType + " rtx/" + clockRateHz + "\r\n" +
+                    "a=fmtp:" + rtxPayloadType + " apt=" + payloadType + ";rtx-time=" + rtxTimeMs + "\r\n";
+        }
+        return description;
+    }
+
+    /**
+     * Returns the attributes declaring the header extensions of the packets, and the feedback
+     * they enable.
+     */
+    protected String getHeaderExtensionDescription(int payloadType) {
+        String description = "";
+        for (RtpHeaderExtension extension : rtpSocket.getHeaderExtensions()) {
+            // a=extmap:<id> <uri> (RFC 8285)
+            description += "a=extmap:" + extension.getId() + " " + extension.getUri() + "\r\n";
+            if (extension instanceof TransportSequenceNumberExtension) {
+                description += "a=rtcp-fb:" + payloadType + " transport-cc\r\n";
+            }
+        }
+        return description;
+    }
+
+    /**
+     * Returns the attributes of the FEC payload type, if the stream is protected.
+     */
+    protected String getFecDescription(long clockRateHz) {
+        int fecPayloadType = rtpSocket.getFecPayloadType();
+        if (fecPayloadType < 0) {
+            return "";
+        }
+        // a=rtpmap:<payload type> ulpfec/<clock rate> (RFC 5109)
+        return "a=rtpmap:" + fecPayloadType + " ulpfec/" + clockRateHz + "\r\n";
     }
 
     public int getRtpPort(InetAddress destination) {
@@ -57,6 +260,36 @@ public abstract class MediaStream {
         return rtpSocket.getLocalRtpPort();
     }
 
+    /**
+     * Returns the sequence number of the first packet a client gets, for RTP-Info. Each client
+     * has its own numbering, whenever it joins the stream. -1 for a client of a multicast group,
+     * which gets the group's packets from wherever they are.
+     *
+     * @param channel The client's RTSP connection, for a client that gets the stream on it
+     * @param destination The client's address otherwise
+     */
+    public int getInitialSequenceNumber(InterleavedChannel channel, InetAddress destination) {
+        InterleavedDestination interleavedDestination = rtpSocket.getInterleavedDestination(channel);
+        if (interleavedDestination != null) {
+            return interleavedDestination.getInitialSequenceNumber();
+        }
+        RtpDestination rtpDestination = rtpSocket.getDestination(destination);
+        return (rtpDestination != null) ? rtpDestination.getInitialSequenceNumber() : -1;
+    }
+
+    /**
+     * Returns the RTP timestamp of the first packet a client gets, -1 for a client of a
+     * multicast group. See {@link #getInitialSequenceNumber(InterleavedChannel, InetAddress)}.
+     */
+    public long getInitialRtpTimestamp(InterleavedChannel channel, InetAddress destination) {
+        InterleavedDestination interleavedDestination = rtpSocket.getInterleavedDestination(channel);
+        if (interleavedDestination != null) {
+            return interleavedDestination.getInitialRtpTimestamp();
+        }
+        RtpDestination rtpDestination = rtpSocket.getDestination(destination);
+        return (rtpDestination != null) ? rtpDestination.getInitialRtpTimestamp() : -1;
+    }
+
     public int getLocalRtcpPort() {
         return rtpSocket.getLocalRtcpPort();
     }
@@ -118,6 +351,35 @@ public abstract class MediaStream {
 
         streaming = false;
 
+        // No output buffer is lent anymore once the output thread is done
+        boolean interrupted = false;
+        try {
+            outputThread.join(OUTPUT_THREAD_JOIN_MS);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+
+        // The codec must not be released while a packet still carries a slice of its buffers: the
+        // packets of stalled clients are dropped, the ones in flight are written or dropped soon
+        rtpSocket.stop();
+        long deadline = System.currentTimeMillis() + LENT_BUFFER_TIMEOUT_MS;
+        while (!areLentBuffersReleased()) {
+            if (System.currentTimeMillis() >= deadline) {
+                // Packets in flight reached a backlog after it was dropped
+                rtpSocket.stop();
+                deadline = System.currentTimeMillis() + LENT_BUFFER_TIMEOUT_MS;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        lentBuffers.clear();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
         try {
             if (mediaCodec != null) {
                 mediaCodec.stop();
@@ -146,8 +408,50 @@ public abstract class MediaStream {
 
     protected void streamEncodedData(MediaCodec.BufferInfo bufferInfo, ByteBuffer encodedData) { }
 
+    /**
+     * Lends the output buffer being streamed to the packets, which can then carry slices of it
+     * instead of copies, see {@link RtpSocket.RtpData#setFragment(ByteBuffer, LentBuffer)}. The
+     * buffer goes back to the codec once the last packet is sent rather than when
+     * {@link #streamEncodedData(MediaCodec.BufferInfo, ByteBuffer)} returns. Only to be called
+     * from there.
+     */
+    protected LentBuffer lendOutputBuffer() {
+        if (lentBuffer == null) {
+            lentBuffer = new LentBuffer(outputIndex);
+        }
+        return lentBuffer;
+    }
+
+    private boolean areLentBuffersReleased() {
+        for (LentBuffer buffer : lentBuffers) {
+            if (!buffer.isReleased()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives the codec back the output buffers the packets are done with.
+     */
+    private void releaseLentBuffers() {
+        Iterator<LentBuffer> iterator = lentBuffers.iterator();
+        while (iterator.hasNext() && streaming) {
+            LentBuffer buffer = iterator.next();
+            if (buffer.isReleased()) {
+                iterator.remove();
+                mediaCodec.releaseOutputBuffer(buffer.getIndex(), false);
+            }
+        }
+    }
+
     protected void onFormatChanged(MediaFormat mediaFormat) { }
 
+    /**
+     * Called on the output thread after each output buffer, and when none came in time.
+     */
+    protected void onEncoderOutput() { }
+
     public abstract String getSessionDescription();
 
     private class InputThread extends Thread {
@@ -201,17 +505,28 @@ public abstract class MediaStream {
                 //Log.e("TAG", "MediaStream output thread de-que");
                 // wait for output buffer from the encoder
                 MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-                int index = mediaCodec.dequeueOutputBuffer(bufferInfo, 2000000);
+                // Comes back soon to release the buffers lent to the packets
+                long timeoutUs = lentBuffers.isEmpty() ? 2000000 : LENT_BUFFER_POLL_US;
+                int index = mediaCodec.dequeueOutputBuffer(bufferInfo, timeoutUs);
                 //Log.e(TAG, "bufferIndex=" + index + ", bufferSize=" + bufferInfo.size + ", flags=" + bufferInfo.flags);
 
                 if (index >= 0) {
                     ByteBuffer outputBuffer = mediaCodec.getOutputBuffer(index);
+                    outputIndex = index;
                     streamEncodedData(bufferInfo, outputBuffer);
-                    mediaCodec.releaseOutputBuffer(index, false);
+                    LentBuffer lent = lentBuffer;
+                    lentBuffer = null;
+                    if (lent == null || lent.seal()) {
+                        mediaCodec.releaseOutputBuffer(index, false);
+                    } else {
+                        lentBuffers.add(lent);
+                    }
                 } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                     Log.e(TAG, "output format changed");
                     onFormatChanged(mediaCodec.getOutputFormat());
                 }
+                releaseLentBuffers();
+                onEncoderOutput();
             }
         }
     }
@@ -11,9 +11,11 @@ import android.util.Range;
 import android.util.Size;
 
 import net.xvis.streaming.Utils;
+import net.xvis.streaming.video.AnnexBReader;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class CodecManager {
@@ -141,7 +143,11 @@ public class CodecManager {
         return mediaCodecInfoList;
     }
 
-    public static MediaCodec findEncoder(String mime, int width, int height, int colorFormat) {
+    /**
+     * @param bitRate The bitrate to start with, within what the codec supports. It can be changed
+     *                while encoding with MediaCodec.PARAMETER_KEY_VIDEO_BITRATE.
+     */
+    public static MediaCodec findEncoder(String mime, int width, int height, int colorFormat, int bitRate) {
 
         List<MediaCodecInfo> codecInfoList = findAvailableEncoders(mime, colorFormat);
         if (codecInfoList.size() == 0) {
@@ -192,7 +198,7 @@ public class CodecManager {
             MediaCodecInfo.CodecCapabilities capabilities = bestCodecInfo.getCapabilitiesForType(mime);
             MediaCodecInfo.VideoCapabilities videoCap = capabilities.getVideoCapabilities();
             // bit rate
-            int bitRate = videoCap.getBitrateRange().getUpper();
+            bitRate = videoCap.getBitrateRange().clamp(bitRate);
 
             // frame rate
             Range<Double> frameRates = null;
@@ -247,9 +253,8 @@ public class CodecManager {
         ByteBuffer[] outputBuffers = mediaCodec.getOutputBuffers();
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
         byte[] csd = new byte[128];
+        AnnexBReader reader = new AnnexBReader();
         int len = 0;
-        int p = 4;
-        int q = 4;
         long elapsed = 0;
         long now = System.nanoTime();
 
@@ -291,22 +296,15 @@ public class CodecManager {
                 len = info.size;
                 if (len < 128) {
                     outputBuffers[index].get(csd, 0, len);
-                    if (len > 0 && csd[0] == 0 && csd[1] == 0 && csd[2] == 0 && csd[3] == 1) {
-                        // Parses the SPS and PPS, they could be in two different packets and in a different order
-                        //depending on the phone so we don't make any assumption about that
-                        while (p < len) {
-                            while (!(csd[p + 0] == 0 && csd[p + 1] == 0 && csd[p + 2] == 0 && csd[p + 3] == 1) && p + 3 < len)
-                                p++;
-                            if (p + 3 >= len) p = len;
-                            if ((csd[q] & 0x1F) == 7) {
-                                mSPS = new byte[p - q];
-                                System.arraycopy(csd, q, mSPS, 0, p - q);
-                            } else {
-                                mPPS = new byte[p - q];
-                                System.arraycopy(csd, q, mPPS, 0, p - q);
-                            }
-                            p += 4;
-                            q = p;
+                    // Parses the SPS and PPS, they could be in two different packets and in a different order
+                    // depending on the phone so we don't make any assumption about that
+                    reader.reset(ByteBuffer.wrap(csd), 0, len);
+                    while (reader.next()) {
+                        int nalUnitType = reader.getNalUnitType();
+                        if (nalUnitType == 7) {
+                            mSPS = Arrays.copyOfRange(csd, reader.getStart(), reader.getEnd());
+                        } else if (nalUnitType == 8) {
+                            mPPS = Arrays.copyOfRange(csd, reader.getStart(), reader.getEnd());
                         }
                     }
                 }
@@ -17,6 +17,14 @@ public class MediaContainer {
     private Map<String, MediaStream> streamMap;
     private List<String> supportedMethods;
 
+    // multicast, null when every client gets its own unicast stream
+    private InetAddress multicastGroup;
+    private int multicastPort;
+    private int timeToLive;
+
+    // offers RTP/RTCP multiplexing on one port (RFC 5761) to the clients
+    private boolean rtcpMux;
+
     // attributes
     private long timeCreated;
     private String userName;
@@ -60,6 +68,57 @@ public class MediaContainer {
 
     public void addMedia(String controlUri, MediaStream mediaStream) {
         streamMap.put(controlUri, mediaStream);
+        if (multicastGroup != null) {
+            bindMulticast(mediaStream, streamMap.size() - 1);
+        }
+    }
+
+    /**
+     * Binds this mount to a multicast group: every stream of the mount is sent once to the group,
+     * whatever the number of clients. The streams get consecutive RTP/RTCP port pairs from
+     * {@code port} on.
+     *
+     * @param group The multicast group, null to go back to unicast
+     * @param port The RTP port of the first stream, must be even
+     * @param timeToLive The TTL of the multicast packets
+     */
+    public void setMulticast(InetAddress group, int port, int timeToLive) {
+        if (group != null && !group.isMulticastAddress()) {
+            throw new IllegalArgumentException(group + " is not a multicast address");
+        }
+        multicastGroup = group;
+        multicastPort = port;
+        this.timeToLive = timeToLive;
+
+        int index = 0;
+        for (MediaStream mediaStream : streamMap.values()) {
+            if (group == null) {
+                mediaStream.setMulticastGroup(null, 0);
+            } else {
+                bindMulticast(mediaStream, index++);
+            }
+        }
+    }
+
+    public InetAddress getMulticastGroup() {
+        return multicastGroup;
+    }
+
+    /**
+     * Offers rtcp-mux to the clients of this mount: the SDP carries {@code a=rtcp-mux} and a client
+     * that asks for it in SETUP gets RTP and RTCP on a single port.
+     */
+    public void setRtcpMux(boolean rtcpMux) {
+        this.rtcpMux = rtcpMux;
+    }
+
+    public boolean isRtcpMux() {
+        return rtcpMux;
+    }
+
+    private void bindMulticast(MediaStream mediaStream, int index) {
+        mediaStream.setTimeToLive(timeToLive);
+        mediaStream.setMulticastGroup(multicastGroup, multicastPort + 2 * index);
     }
 
     public Set<String> getControlUris() {
@@ -135,7 +194,11 @@ public class MediaContainer {
         description.append("c=");
         description.append("IN").append(RtspHeader.SP); // net type: IN
         description.append("IP4").append(RtspHeader.SP); // Address type: IP4, IP6
-        description.append(destination.getHostAddress()).append(RtspHeader.CRLF);
+        if (multicastGroup != null) {
+            description.append(multicastGroup.getHostAddress()).append('/').append(timeToLive).append(RtspHeader.CRLF);
+        } else {
+            description.append(destination.getHostAddress()).append(RtspHeader.CRLF);
+        }
 
         // Bandwidth ("b=") -- OPTIONAL
         //description.append("b="); // b=<bwtype>:<bandwidth> bwtype = CT|AS
@@ -177,6 +240,9 @@ public class MediaContainer {
             MediaStream mediaStream = streamMap.get(controlUri);
             if (mediaStream != null) {
                 description.append(mediaStream.getSessionDescription());
+                if (rtcpMux) {
+                    description.append("a=rtcp-mux").append(RtspHeader.CRLF);
+                }
                 description.append("a=control:").append(controlUri);
                 description.append(RtspHeader.CRLF);
             }
@@ -0,0 +1,310 @@
+package net.xvis.streaming.rtcp;
+
+import java.nio.ByteBuffer;
+
+// Common header of every packet in a compound RTCP packet
+//  0                   1                   2                   3
+//  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |V=2|P|  FMT/RC |      PT       |          length               |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                  SSRC of packet sender                        |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+
+// Report block of a sender or receiver report (RFC 3550, section 6.4.1), RC of them after the
+// sender's SSRC in an RR, after the 20 bytes of sender info in an SR
+// +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
+// |                 SSRC_1 (SSRC of first source)                 |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// | fraction lost |       cumulative number of packets lost       |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |           extended highest sequence number received           |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                      interarrival jitter                      |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                         last SR (LSR)                         |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                   delay since last SR (DLSR)                  |
+// +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
+
+// Transport layer feedback, generic NACK (RFC 4585, section 6.2.1)
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                  SSRC of media source                         |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |            PID                |             BLP               |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// PID: sequence number of a lost packet
+// BLP: bitmask of the following 16 lost packets
+
+// Transport-wide congestion control feedback (RTPFB, FMT=15,
+// draft-holmer-rmcat-transport-wide-cc-extensions-01, section 3.1)
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                  SSRC of media source                         |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |      base sequence number     |      packet status count      |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                 reference time                | fb pkt. count |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |          packet chunk         |         packet chunk          |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |         packet chunk          |  recv delta   |  recv delta   |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// reference time: signed, in multiples of 64 ms
+// packet chunk: run length (0|status|13 bits run) or status vector (1|S|14 1-bit or 7 2-bit statuses)
+// status: 0 not received, 1 received with a 1-byte delta, 2 received with a signed 2-byte delta
+// recv delta: arrival time after the previous packet, or the reference time, in 250 us
+
+// Payload-specific feedback, Picture Loss Indication (RFC 4585, section 6.3.1): no FCI, the
+// receiver lost part of a picture and asks for a keyframe
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                  SSRC of media source                         |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+
+// Payload-specific feedback, Full Intra Request (RFC 5104, section 4.3.1), the SSRC of media
+// source above is 0, one FCI entry per media sender asked
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                              SSRC                             |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// | Seq nr.       |    Reserved                                   |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// Seq nr.: incremented by the receiver for each new request, the same for a repeated one
+
+/**
+ * Walks through a compound RTCP packet and reports what a sender acts on to a {@link Listener}.
+ * Malformed packets end the walk, what was reported before stays valid.
+ */
+public class RtcpParser {
+    public static final int PT_SR = 200;
+    public static final int PT_RR = 201;
+    public static final int PT_SDES = 202;
+    public static final int PT_BYE = 203;
+    public static final int PT_APP = 204;
+    public static final int PT_RTPFB = 205;
+    public static final int PT_PSFB = 206;
+
+    public static final int FMT_GENERIC_NACK = 1;
+    public static final int FMT_TRANSPORT_CC = 15;
+    public static final int FMT_PLI = 1;
+    public static final int FMT_FIR = 4;
+
+    private static final int HEADER_SIZE = 4;
+    private static final int SENDER_INFO_SIZE = 20;
+    private static final int REPORT_BLOCK_SIZE = 24;
+    private static final int STATUS_NOT_RECEIVED = 0;
+    private static final int STATUS_SMALL_DELTA = 1;
+    private static final int STATUS_LARGE_DELTA = 2;
+
+    public interface Listener {
+        /**
+         * A receiver's report on one of the sources it receives.
+         *
+         * @param fractionLost Fraction of the packets lost since the previous report, in 1/256
+         * @param lastSenderReport Middle 32 bits of the NTP timestamp of the last SR received
+         * @param delaySinceLastSenderReport In 1/65536 seconds
+         */
+        void onReceptionReport(int reporterSsrc, int sourceSsrc, int fractionLost, int cumulativeLost,
+                               long highestSequenceNumber, long jitter, long lastSenderReport,
+                               long delaySinceLastSenderReport);
+
+        /**
+         * The receiver lost the packet with the given sequence number.
+         */
+        void onNack(int mediaSsrc, int sequenceNumber);
+
+        /**
+         * The arrival of a packet at the receiver, in the order of the transport-wide sequence
+         * numbers.
+         *
+         * @param arrivalTimeUs On the receiver's clock, -1 if the packet was not received
+         */
+        void onTransportFeedback(int sequenceNumber, long arrivalTimeUs);
+
+        /**
+         * The receiver asks for a keyframe of the given source, after a PLI or a FIR.
+         *
+         * @param firSequenceNumber The sequence number of the FIR, -1 for a PLI
+         */
+        void onKeyFrameRequest(int reporterSsrc, int mediaSsrc, int firSequenceNumber);
+
+        /**
+         * The given source leaves the session.
+         */
+        void onBye(int ssrc);
+    }
+
+    private RtcpParser() { }
+
+    public static void parse(ByteBuffer compound, Listener listener) {
+        int position = compound.position();
+        int end = compound.limit();
+        while (end - position >= HEADER_SIZE) {
+            int first = compound.get(position) & 0xFF;
+            if ((first >> 6) != 2) {
+                return;
+            }
+            int format = first & 0x1F;
+            int packetType = compound.get(position + 1) & 0xFF;
+            int length = ((compound.getShort(position + 2) & 0xFFFF) + 1) * 4;
+            if (position + length > end) {
+                return;
+            }
+
+            if (packetType == PT_SR) {
+                parseReportBlocks(compound, position, length, HEADER_SIZE + 4 + SENDER_INFO_SIZE, format, listener);
+            } else if (packetType == PT_RR) {
+                parseReportBlocks(compound, position, length, HEADER_SIZE + 4, format, listener);
+            } else if (packetType == PT_BYE) {
+                for (int i = 0; i < format && HEADER_SIZE + (i + 1) * 4 <= length; i++) {
+                    listener.onBye(compound.getInt(position + HEADER_SIZE + i * 4));
+                }
+            } else if (packetType == PT_RTPFB && format == FMT_GENERIC_NACK) {
+                parseNack(compound, position, length, listener);
+            } else if (packetType == PT_RTPFB && format == FMT_TRANSPORT_CC) {
+                parseTransportFeedback(compound, position, length, listener);
+            } else if (packetType == PT_PSFB && format == FMT_PLI && length >= 12) {
+                listener.onKeyFrameRequest(compound.getInt(position + 4), compound.getInt(position + 8), -1);
+            } else if (packetType == PT_PSFB && format == FMT_FIR) {
+                parseFir(compound, position, length, listener);
+            }
+            position += length;
+        }
+    }
+
+    /**
+     * Tells whether a compound packet starts with a report, as it must (RFC 3550, section 6.1),
+     * with a block on the given source.
+     */
+    public static boolean reportsOn(ByteBuffer compound, int sourceSsrc) {
+        int position = compound.position();
+        if (compound.limit() - position < HEADER_SIZE) {
+            return false;
+        }
+        int count = compound.get(position) & 0x1F;
+        int packetType = compound.get(position + 1) & 0xFF;
+        int length = ((compound.getShort(position + 2) & 0xFFFF) + 1) * 4;
+        if (position + length > compound.limit()) {
+            return false;
+        }
+        int offset;
+        if (packetType == PT_SR) {
+            offset = HEADER_SIZE + 4 + SENDER_INFO_SIZE;
+        } else if (packetType == PT_RR) {
+            offset = HEADER_SIZE + 4;
+        } else {
+            return false;
+        }
+        for (int i = 0; i < count && offset + REPORT_BLOCK_SIZE <= length; i++, offset += REPORT_BLOCK_SIZE) {
+            if (compound.getInt(position + offset) == sourceSsrc) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void parseReportBlocks(ByteBuffer packet, int position, int length, int offset,
+                                          int count, Listener listener) {
+        if (length < offset) {
+            return;
+        }
+        int reporterSsrc = packet.getInt(position + HEADER_SIZE);
+        for (int i = 0; i < count && offset + REPORT_BLOCK_SIZE <= length; i++, offset += REPORT_BLOCK_SIZE) {
+            int block = position + offset;
+            int lost = packet.getInt(block + 4);
+            // cumulative number of packets lost, a signed 24-bit value
+            int cumulativeLost = (lost << 8) >> 8;
+            listener.onReceptionReport(reporterSsrc, packet.getInt(block), (lost >>> 24), cumulativeLost,
+                    packet.getInt(block + 8) & 0xFFFFFFFFL, packet.getInt(block + 12) & 0xFFFFFFFFL,
+                    packet.getInt(block + 16) & 0xFFFFFFFFL, packet.getInt(block + 20) & 0xFFFFFFFFL);
+        }
+    }
+
+    private static void parseNack(ByteBuffer packet, int position, int length, Listener listener) {
+        if (length < 12) {
+            return;
+        }
+        int mediaSsrc = packet.getInt(position + 8);
+        for (int offset = 12; offset + 4 <= length; offset += 4) {
+            int pid = packet.getShort(position + offset) & 0xFFFF;
+            int blp = packet.getShort(position + offset + 2) & 0xFFFF;
+            listener.onNack(mediaSsrc, pid);
+            for (int bit = 0; bit < 16; bit++) {
+                if ((blp & (1 << bit)) != 0) {
+                    listener.onNack(mediaSsrc, (pid + bit + 1) & 0xFFFF);
+                }
+            }
+        }
+    }
+
+    private static void parseFir(ByteBuffer packet, int position, int length, Listener listener) {
+        if (length < 12) {
+            return;
+        }
+        int reporterSsrc = packet.getInt(position + 4);
+        for (int offset = 12; offset + 8 <= length; offset += 8) {
+            listener.onKeyFrameRequest(reporterSsrc, packet.getInt(position + offset),
+                    packet.get(position + offset + 4) & 0xFF);
+        }
+    }
+
+    private static void parseTransportFeedback(ByteBuffer packet, int position, int length, Listener listener) {
+        if (length < 20) {
+            return;
+        }
+        int end = position + length;
+        int baseSequenceNumber = packet.getShort(position + 12) & 0xFFFF;
+        int statusCount = packet.getShort(position + 14) & 0xFFFF;
+        long referenceTimeUs = (packet.getInt(position + 16) >> 8) * 64000L;
+
+        // The deltas follow the chunks, find out where by walking the chunks once
+        int chunksStart = position + 20;
+        int deltas = chunksStart;
+        for (int covered = 0; covered < statusCount; deltas += 2) {
+            if (deltas + 2 > end) {
+                return;
+            }
+            covered += chunkSize(packet.getShort(deltas) & 0xFFFF);
+        }
+
+        long arrivalTimeUs = referenceTimeUs;
+        int sequenceNumber = baseSequenceNumber;
+        int reported = 0;
+        for (int chunkPosition = chunksStart; reported < statusCount; chunkPosition += 2) {
+            int chunk = packet.getShort(chunkPosition) & 0xFFFF;
+            int size = Math.min(chunkSize(chunk), statusCount - reported);
+            for (int i = 0; i < size; i++) {
+                int status = chunkStatus(chunk, i);
+                if (status == STATUS_NOT_RECEIVED) {
+                    listener.onTransportFeedback(sequenceNumber, -1);
+                } else {
+                    int deltaSize = (status == STATUS_SMALL_DELTA) ? 1 : 2;
+                    if (deltas + deltaSize > end) {
+                        return;
+                    }
+                    int delta = (status == STATUS_SMALL_DELTA) ? (packet.get(deltas) & 0xFF) : packet.getShort(deltas);
+                    deltas += deltaSize;
+                    arrivalTimeUs += delta * 250L;
+                    listener.onTransportFeedback(sequenceNumber, arrivalTimeUs);
+                }
+                sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+            }
+            reported += size;
+        }
+    }
+
+    private static int chunkSize(int chunk) {
+        if ((chunk & 0x8000) == 0) {
+            return chunk & 0x1FFF; // run length
+        }
+        return ((chunk & 0x4000) == 0) ? 14 : 7;
+    }
+
+    private static int chunkStatus(int chunk, int index) {
+        if ((chunk & 0x8000) == 0) {
+            return (chunk >> 13) & 0x03;
+        }
+        if ((chunk & 0x4000) == 0) {
+            return (chunk >> (13 - index)) & 0x01;
+        }
+        return (chunk >> (12 - 2 * index)) & 0x03;
+    }
+}
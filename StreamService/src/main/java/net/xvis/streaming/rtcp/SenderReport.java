@@ -1,14 +1,17 @@
 package net.xvis.streaming.rtcp;
 
-import android.os.SystemClock;
-
-import net.xvis.streaming.Utils;
+import net.xvis.streaming.rtp.InterleavedChannel;
+import net.xvis.streaming.rtp.MediaClock;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
 
 import static net.xvis.streaming.rtp.RtpSocket.TRANSPORT_TCP;
 import static net.xvis.streaming.rtp.RtpSocket.TRANSPORT_UDP;
@@ -48,183 +51,380 @@ import static net.xvis.streaming.rtp.RtpSocket.TRANSPORT_UDP;
 // |                   delay since last SR (DLSR)                  |
 // +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
 
+// Source description, CNAME only (RFC 3550, section 6.5), one chunk
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |V=2|P|   SC=1  |  PT=SDES=202  |             length            |
+// +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
+// |                          SSRC/CSRC_1                          |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |    CNAME=1    |     length    | user and domain name        ...
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// the chunk ends with a null item type, zero padded to 32 bits
+
+// Goodbye (RFC 3550, section 6.6)
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |V=2|P|   SC=1  |   PT=BYE=203  |             length            |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                           SSRC/CSRC                           |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+
+/**
+ * The RTCP of the stream for one destination: a client, or a multicast group and its members.
+ * Sends compound SR + SDES CNAME packets (an empty RR in place of the SR before the destination
+ * got any RTP), and SR + SDES + BYE when the destination leaves.
+ * <p>
+ * The reports follow the RFC 3550 timer (section 6.3, appendix A.7): intervals scaled to the
+ * number of members and the average size of their RTCP packets so that RTCP takes 5% of the
+ * session bandwidth, a quarter of it for the sender, at least 5 seconds apart (half that before
+ * the first report), randomized over [0.5, 1.5] of the interval. Expiry is reconsidered with the
+ * members known then, and a member leaving brings the next report forward (reverse
+ * reconsideration). Each client being a session of its own, the RTCP traffic grows with the
+ * clients as the RTP traffic does, and stays at the same share of it.
+ * <p>
+ * Not thread safe, the socket uses it under its lock. The timer is driven by the socket's send
+ * loop through {@link #onTimer}, never by the packets sent.
+ */
 public class SenderReport {
 
     public static final int MTU = 1500;
-    private static final int PACKET_LENGTH = 28;
-
-    private MulticastSocket multicastSocket;
-    private DatagramPacket packet;
 
+    private static final long MIN_INTERVAL_NS = 5000000000L; // 5 s
+    private static final double RTCP_BANDWIDTH_FRACTION = 0.05;
+    private static final double SENDER_BANDWIDTH_FRACTION = 0.25;
+    // e - 3/2, makes up for the timer reconsideration converging below the target (A.7)
+    private static final double COMPENSATION = 2.71828 - 1.5;
+    // a member is timed out after this many of its report intervals without RTCP
+    private static final int MEMBER_TIMEOUT_INTERVALS = 5;
+    private static final int UDP_IP_OVERHEAD = 28;
+    // until the first report measures it, in bits per second
+    private static final long DEFAULT_SESSION_BANDWIDTH = 1000000;
+    private static final int PT_SR = 200;
+    private static final int PT_RR = 201;
+    private static final int PT_SDES = 202;
+    private static final int PT_BYE = 203;
+    private static final int SDES_CNAME = 1;
+    private static final int MAX_CNAME_LENGTH = 255;
+
+    private static final Random random = new Random();
+    // one per process, the tracks of a session share it so that players can synchronize them
+    private static final String DEFAULT_CNAME = "xstreamer-" + Long.toHexString(random.nextLong()) + "@android";
+
+    private DatagramChannel channel;
+    private InetSocketAddress destination;
     private int mTransport;
-    private OutputStream mOutputStream = null;
-    private byte[] buffer = new byte[MTU];
+    private InterleavedChannel interleavedChannel;
+    private int interleavedChannelId;
+    private final ByteBuffer packet = ByteBuffer.allocate(MTU);
 
     private int senderSSRC;
-    private double fractionLost;
-    private long cumulativeNumPacketsLost;
-    private long extendedHighestSeqNumReceived;
-    private double interArrivalJitter;
-    private double lastSR;
-    private long delayLastSR;
-
+    private byte[] cname;
+    // the clients' reception reports are parsed by RtpSocket, see ReceptionStats
 
+    // RFC 3550 timer state
     private long lastTimeRtcpPacketTransmitted; // tp
-    private long currentTime; // tc
-    private long nextTimeRtcpPacketScheduled; // tn
-    private int numPrevSessionMembers; // pmemebers
-    private int numCurrentSessionMembers; // members
-    private int numSenders; // senders
-    private int targetRtcpBw;// rtcp_bw target RTCP bandwidth
-    private boolean sentData; // we_sent
-    private int avgRtcpSize;// average compound RTCP packet size
-    private boolean initialRtcp;// true if app has not yet sent an RTCP packet
+    private long nextTimeRtcpPacketScheduled = Long.MAX_VALUE; // tn
+    private int numPrevSessionMembers = 2; // pmembers
+    private final Map<Integer, Long> members = new HashMap<>(); // the others, last heard of
+    private final int numSenders = 1; // senders, the stream only
+    private double avgRtcpSize; // avg_rtcp_size, with the UDP and IP headers
+    private boolean initialRtcp = true; // initial, no RTCP sent yet
+    private long sessionBandwidth = DEFAULT_SESSION_BANDWIDTH; // in bits per second
+
+    // the stream's counters when the destination joined, and at the last report
+    private long basePacketCount;
+    private long baseOctetCount;
+    private long reportOctetCount;
+
+    public SenderReport() {
+        mTransport = TRANSPORT_UDP;
+        setCname(DEFAULT_CNAME);
+    }
+
+    public void setSSRC(int ssrc) {
+        senderSSRC = ssrc;
+    }
 
+    public int getSSRC() {
+        return senderSSRC;
+    }
 
-    private int port = -1;
+    /**
+     * Sets the canonical name of the sender, the same for the tracks players are to synchronize.
+     */
+    public void setCname(String cname) {
+        byte[] bytes = cname.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_CNAME_LENGTH) {
+            throw new IllegalArgumentException("CNAME longer than " + MAX_CNAME_LENGTH + " bytes");
+        }
+        this.cname = bytes;
+        // the first guess of the size of the RTCP packets: this sender's own
+        avgRtcpSize = UDP_IP_OVERHEAD + reportSize(true) + sdesSize();
+    }
 
-    private int mOctetCount = 0, mPacketCount = 0;
-    private long delta, now, oldnow, interval;
+    /**
+     * @param channel The channel to send through, the stream's RTCP channel or, when RTCP is
+     *                multiplexed with RTP, the destination's RTP channel. Owned by the caller.
+     * @param destination The RTCP address of the destination
+     */
+    public void setDestination(DatagramChannel channel, InetSocketAddress destination) {
+        mTransport = TRANSPORT_UDP;
+        this.channel = channel;
+        this.destination = destination;
+    }
 
-    //It is RECOMMENDED that the fraction of the session bandwidth added for RTCP
-    //   be fixed at 5%.    private int interval = 3000; // 3 seconds
-    private byte mTcpHeader[];
+    /**
+     * Sends the reports interleaved on the client's RTSP connection.
+     */
+    public void setDestination(InterleavedChannel channel, int channelId) {
+        mTransport = TRANSPORT_TCP;
+        interleavedChannel = channel;
+        interleavedChannelId = channelId;
+    }
 
-    public SenderReport(int port) {
+    /**
+     * Returns the middle 32 bits of the NTP timestamp the reports carry for the given time. Receivers
+     * echo it in the LSR field of their reception reports, along with DLSR in the same unit of
+     * 1/65536 seconds.
+     *
+     * @param nanoTime On the System.nanoTime() clock
+     */
+    public static long compactNtp(long nanoTime) {
+        return MediaClock.toCompactNtp(MediaClock.getInstance().toNtpTimestamp(nanoTime));
+    }
 
-        mTransport = TRANSPORT_UDP;
-        mTcpHeader = new byte[] {'$',0,0,PACKET_LENGTH};
-
-        // [Version:2|P:1|RC:5] : version 2, padding, reception report count
-        buffer[0] = (byte) 0x40; // 1000 0000
-        // PT (Packet type): SR=200, RR=201, SDES=202, BYE=203, APP=204
-        buffer[1] = (byte) 200;
-        // Packet length
-        Utils.writeValue(buffer, PACKET_LENGTH/4-1, 2, 4);
-        // SSRC
-        //Utils.writeValue(buffer, SSRC, 4, 8);
-        try {
-            multicastSocket = new MulticastSocket(port);
-        } catch (IOException e) {
-            // Very unlikely to happen. Means that all UDP ports are already being used
-            throw new RuntimeException(e.getMessage());
-        }
-        packet = new DatagramPacket(buffer, 1);
-        interval = 3000;
+    /**
+     * Schedules the first report, when the destination joins.
+     *
+     * @param packetCount The RTP packets the stream sent so far, the reports count from here
+     * @param octetCount Their payload octets
+     */
+    public void start(long now, long packetCount, long octetCount) {
+        basePacketCount = packetCount;
+        baseOctetCount = octetCount;
+        reportOctetCount = octetCount;
+        initialRtcp = true;
+        lastTimeRtcpPacketTransmitted = now;
+        nextTimeRtcpPacketScheduled = now + randomize(interval());
     }
 
-    public void close() {
-        multicastSocket.close();
+    /**
+     * Returns when the next report is due, on the System.nanoTime() clock, Long.MAX_VALUE before
+     * {@link #start(long, long, long)}.
+     */
+    public long getNextReportNanos() {
+        return nextTimeRtcpPacketScheduled;
     }
 
     /**
-     * Sets the temporal interval between two RTCP Sender Reports.
-     * Default interval is set to 3 seconds.
-     * Set 0 to disable RTCP.
-     * @param interval The interval in milliseconds
+     * Reconsiders the next report once it is due, and sends it if it still is (A.7 OnExpire).
+     *
+     * @param sent Whether the destination got RTP yet, an empty RR is sent until then
+     * @param packetCount The RTP packets the stream sent so far
+     * @param octetCount Their payload octets
+     * @param rtpTimestamp The RTP timestamp of now, in the destination's numbering, see
+     * {@link MediaClock}
      */
-    public void setInterval(long interval) {
-        this.interval = interval;
+    public void onTimer(long now, boolean sent, long packetCount, long octetCount, int rtpTimestamp) {
+        if (now < nextTimeRtcpPacketScheduled) {
+            return;
+        }
+        timeOutMembers(now);
+        long next = lastTimeRtcpPacketTransmitted + randomize(interval());
+        if (next > now) {
+            // The group grew since, or the packets got larger: the report waits
+            nextTimeRtcpPacketScheduled = next;
+            return;
+        }
+
+        long elapsed = now - lastTimeRtcpPacketTransmitted;
+        if (!initialRtcp && elapsed > 0) {
+            sessionBandwidth = Math.max(1, (octetCount - reportOctetCount) * 8 * 1000000000L / elapsed);
+        }
+        reportOctetCount = octetCount;
+
+        packet.clear();
+        writeReport(now, sent, packetCount, octetCount, rtpTimestamp);
+        writeSdes();
+        int size = send();
+        onRtcpSent(size);
+
+        lastTimeRtcpPacketTransmitted = now;
+        numPrevSessionMembers = members.size() + 1;
+        initialRtcp = false;
+        nextTimeRtcpPacketScheduled = now + randomize(interval());
     }
 
     /**
-     * Updates the number of packets sent, and the total amount of data sent.
-     * @param length The length of the packet
-     * @param rtpts
-     *            The RTP timestamp.
-     * @throws IOException
-     **/
-    public void update(int length, long rtpts) throws IOException {
-        mPacketCount += 1;
-        mOctetCount += length;
-        Utils.writeValue(buffer, mPacketCount, 20, 24);
-        Utils.writeValue(buffer, mOctetCount, 24, 28);
-
-        now = SystemClock.elapsedRealtime();
-        delta += oldnow != 0 ? now-oldnow : 0;
-        oldnow = now;
-        if (interval>0 && delta>=interval) {
-            // We send a Sender Report
-            send(System.nanoTime(), rtpts);
-            delta = 0;
+     * Says goodbye when the destination leaves or the stream stops. Sent right away: a client
+     * is a session of two, there is no BYE storm to avoid.
+     */
+    public void sendBye(long now, boolean sent, long packetCount, long octetCount, int rtpTimestamp) {
+        if (nextTimeRtcpPacketScheduled == Long.MAX_VALUE) {
+            return;
         }
+        packet.clear();
+        writeReport(now, sent, packetCount, octetCount, rtpTimestamp);
+        writeSdes();
+        packet.put((byte) 0x81);
+        packet.put((byte) PT_BYE);
+        packet.putShort((short) 1);
+        packet.putInt(senderSSRC);
+        send();
+        nextTimeRtcpPacketScheduled = Long.MAX_VALUE;
+    }
 
+    /**
+     * Takes a compound RTCP packet received from the destination into account (A.7 OnReceive).
+     *
+     * @param size Its size, without the UDP and IP headers
+     */
+    public void onRtcpReceived(int size) {
+        avgRtcpSize = (size + UDP_IP_OVERHEAD) / 16.0 + avgRtcpSize * 15 / 16.0;
     }
 
-    public void setSSRC(int ssrc) {
-        //this.mSSRC = ssrc;
-        Utils.writeValue(buffer, ssrc,4,8);
-        mPacketCount = 0;
-        mOctetCount = 0;
-        Utils.writeValue(buffer, mPacketCount, 20, 24);
-        Utils.writeValue(buffer, mOctetCount, 24, 28);
+    /**
+     * A member of the session sent RTCP.
+     */
+    public void onMember(int ssrc, long now) {
+        members.put(ssrc, now);
     }
 
-    public void setDestination(InetAddress dest, int rtcpPort) {
-        mTransport = TRANSPORT_UDP;
-        packet.setPort(rtcpPort);
-        packet.setAddress(dest);
+    public boolean isMember(int ssrc) {
+        return members.containsKey(ssrc);
     }
 
     /**
-     * If a TCP is used as the transport protocol for the RTP session,
-     * the output stream to which RTP packets will be written to must
-     * be specified with this method.
+     * A member of the session said goodbye: the next report comes sooner, the interval being
+     * shorter with fewer members (reverse reconsideration, RFC 3550 section 6.3.4).
      */
-    public void setOutputStream(OutputStream os, byte channelIdentifier) {
-        mTransport = TRANSPORT_TCP;
-        mOutputStream = os;
-        mTcpHeader[1] = channelIdentifier;
+    public void onBye(int ssrc, long now) {
+        if (members.remove(ssrc) != null) {
+            reverseReconsider(now);
+        }
     }
 
-    public int getPort() {
-        return port;
+    public int getMemberCount() {
+        return members.size() + 1;
     }
 
-    public int getLocalPort() {
-        return multicastSocket.getLocalPort();
+    private void timeOutMembers(long now) {
+        // the members' own deterministic interval, they share 75% of the RTCP bandwidth
+        int receivers = Math.max(1, members.size() + 1 - numSenders);
+        double receiverBandwidth = (1 - SENDER_BANDWIDTH_FRACTION) * RTCP_BANDWIDTH_FRACTION * sessionBandwidth / 8;
+        long receiverInterval = Math.max(MIN_INTERVAL_NS, (long) (avgRtcpSize * receivers / receiverBandwidth * 1e9));
+        long timeout = MEMBER_TIMEOUT_INTERVALS * receiverInterval;
+        boolean removed = false;
+        for (Iterator<Long> iterator = members.values().iterator(); iterator.hasNext(); ) {
+            if (now - iterator.next() > timeout) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            reverseReconsider(now);
+        }
     }
 
-    public int getSSRC() {
-        return 0;//mSSRC;
+    private void reverseReconsider(long now) {
+        int memberCount = members.size() + 1;
+        if (memberCount < numPrevSessionMembers && nextTimeRtcpPacketScheduled != Long.MAX_VALUE) {
+            double ratio = (double) memberCount / numPrevSessionMembers;
+            nextTimeRtcpPacketScheduled = now + (long) (ratio * (nextTimeRtcpPacketScheduled - now));
+            lastTimeRtcpPacketTransmitted = now - (long) (ratio * (now - lastTimeRtcpPacketTransmitted));
+            numPrevSessionMembers = memberCount;
+        }
     }
 
     /**
-     * Resets the reports (total number of bytes sent, number of packets sent, etc.)
+     * Returns the deterministic interval between two reports of this sender, in nanoseconds (A.7
+     * rtcp_interval, without the randomization).
      */
-    public void reset() {
-        mPacketCount = 0;
-        mOctetCount = 0;
-        Utils.writeValue(buffer, mPacketCount, 20, 24);
-        Utils.writeValue(buffer, mOctetCount, 24, 28);
-        delta = now = oldnow = 0;
+    private long interval() {
+        double rtcpBandwidth = RTCP_BANDWIDTH_FRACTION * sessionBandwidth / 8; // bytes per second
+        int memberCount = members.size() + 1;
+        int n = memberCount;
+        if (numSenders <= memberCount * SENDER_BANDWIDTH_FRACTION) {
+            // The sender gets its quarter of the bandwidth whatever the number of receivers
+            rtcpBandwidth *= SENDER_BANDWIDTH_FRACTION;
+            n = numSenders;
+        }
+        long interval = (long) (avgRtcpSize * n / rtcpBandwidth * 1e9);
+        long minInterval = initialRtcp ? MIN_INTERVAL_NS / 2 : MIN_INTERVAL_NS;
+        return Math.max(interval, minInterval);
+    }
+
+    private static long randomize(long interval) {
+        return (long) (interval * (random.nextDouble() + 0.5) / COMPENSATION);
+    }
+
+    private void onRtcpSent(int size) {
+        if (size > 0) {
+            avgRtcpSize = (size + UDP_IP_OVERHEAD) / 16.0 + avgRtcpSize * 15 / 16.0;
+        }
+    }
+
+    private static int reportSize(boolean senderReport) {
+        return senderReport ? 28 : 8;
+    }
+
+    private int sdesSize() {
+        // header, SSRC, CNAME item, null item, padded to 32 bits
+        return 8 + ((2 + cname.length + 1 + 3) & ~3);
+    }
+
+    private void writeReport(long now, boolean sent, long packetCount, long octetCount, int rtpTimestamp) {
+        if (!sent) {
+            // Nothing sent yet: a receiver report without report blocks
+            packet.put((byte) 0x80);
+            packet.put((byte) PT_RR);
+            packet.putShort((short) (reportSize(false) / 4 - 1));
+            packet.putInt(senderSSRC);
+            return;
+        }
+        packet.put((byte) 0x80);
+        packet.put((byte) PT_SR);
+        packet.putShort((short) (reportSize(true) / 4 - 1));
+        packet.putInt(senderSSRC);
+        // The wall clock time of now, paired with the RTP timestamp of now
+        packet.putLong(MediaClock.getInstance().toNtpTimestamp(now));
+        packet.putInt(rtpTimestamp);
+        packet.putInt((int) (packetCount - basePacketCount));
+        packet.putInt((int) (octetCount - baseOctetCount));
+    }
+
+    private void writeSdes() {
+        int size = sdesSize();
+        int start = packet.position();
+        packet.put((byte) 0x81);
+        packet.put((byte) PT_SDES);
+        packet.putShort((short) (size / 4 - 1));
+        packet.putInt(senderSSRC);
+        packet.put((byte) SDES_CNAME);
+        packet.put((byte) cname.length);
+        packet.put(cname);
+        while (packet.position() < start + size) {
+            packet.put((byte) 0); // null item and padding
+        }
     }
 
     /**
-     * Sends the RTCP packet over the network.
-     *
-     * @param ntpts
-     *            the NTP timestamp.
-     * @param rtpts
-     *            the RTP timestamp.
+     * @return The size of the compound packet, 0 if it could not be sent
      */
-    private void send(long ntpts, long rtpts) throws IOException {
-        long hb = ntpts/1000000000;
-        long lb = ( ( ntpts - hb*1000000000 ) * 4294967296L )/1000000000;
-        Utils.writeValue(buffer, hb, 8, 12);
-        Utils.writeValue(buffer, lb, 12, 16);
-        Utils.writeValue(buffer, rtpts, 16, 20);
-        if (mTransport == TRANSPORT_UDP) {
-            packet.setLength(PACKET_LENGTH);
-            //multicastSocket.send(packet);
-            //multicastSocket.receive(packet);
-        } else {
-            synchronized (mOutputStream) {
-                try {
-                    //mOutputStream.write(mTcpHeader);
-                    //mOutputStream.write(mBuffer, 0, PACKET_LENGTH);
-                } catch (Exception e) {}
+    private int send() {
+        packet.flip();
+        int size = packet.remaining();
+        try {
+            if (mTransport == TRANSPORT_UDP) {
+                if (channel == null || channel.send(packet, destination) == 0) {
+                    return 0;
+                }
+            } else if (interleavedChannel == null || !interleavedChannel.send(interleavedChannelId, packet)) {
+                return 0;
             }
+        } catch (IOException e) {
+            // the client went away, its RTP channel is closed as well
+            return 0;
         }
+        return size;
     }
 }
@@ -0,0 +1,31 @@
+package net.xvis.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The time the packet left the sender, 24 bits of seconds in 6.18 fixed point. Lets a receiver
+ * measure how the delay of the packets grows, for delay based congestion control.
+ */
+public class AbsSendTimeExtension extends RtpHeaderExtension {
+    public static final String URI = "http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time";
+
+    public AbsSendTimeExtension() {
+        super(URI, 3);
+    }
+
+    @Override
+    protected void onSend(ByteBuffer header, int offset, int packetLength, long now) {
+        long seconds = now / 1000000000L;
+        long fraction = ((now % 1000000000L) << 18) / 1000000000L;
+        int value = (int) (((seconds & 0x3F) << 18) | fraction);
+        header.put(offset, (byte) (value >> 16));
+        header.putShort(offset + 1, (short) value);
+    }
+
+    @Override
+    protected boolean onResend(ByteBuffer header, int offset, int packetLength, long now) {
+        // A copy leaves now, the original send time would read as queueing delay
+        onSend(header, offset, packetLength, now);
+        return true;
+    }
+}
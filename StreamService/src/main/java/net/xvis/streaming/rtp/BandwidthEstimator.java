@@ -0,0 +1,298 @@
+package net.xvis.streaming.rtp;
+
+/**
+ * Send-side bandwidth estimation for one receiver, from transport-wide congestion control feedback,
+ * in the manner of Google Congestion Control (draft-ietf-rmcat-gcc).
+ * <p>
+ * Delay based: packets sent within 5 ms form a group, and the growth of the one way delay between
+ * groups is smoothed and fitted with a line over the last groups. A slope above an adaptive
+ * threshold means the bottleneck queue fills up: the target drops below the rate the receiver
+ * actually got, before any packet is lost. Otherwise the target grows by 8% per second.
+ * <p>
+ * Loss based: more than 10% of the reported packets lost lowers the target as well, more than 2%
+ * holds it.
+ * <p>
+ * Fed under the socket's lock, the target can be read from any thread.
+ */
+public class BandwidthEstimator {
+    public static final long DEFAULT_MIN_BITRATE = 100000;
+    public static final long DEFAULT_START_BITRATE = 1000000;
+    public static final long DEFAULT_MAX_BITRATE = 20000000;
+
+    private static final long GROUP_INTERVAL_US = 5000;
+    // trendline of the accumulated delay
+    private static final int TRENDLINE_WINDOW = 20;
+    private static final double DELAY_SMOOTHING = 0.9;
+    private static final double TRENDLINE_GAIN = 4.0;
+    // adaptive threshold
+    private static final double INITIAL_THRESHOLD_MS = 12.5;
+    private static final double MIN_THRESHOLD_MS = 6;
+    private static final double MAX_THRESHOLD_MS = 600;
+    private static final double THRESHOLD_UP = 0.0087;
+    private static final double THRESHOLD_DOWN = 0.039;
+    private static final double OVERUSE_TIME_MS = 10;
+    // rate control
+    private static final double DECREASE_FACTOR = 0.85;
+    private static final double INCREASE_PER_SECOND = 1.08;
+    private static final long DECREASE_INTERVAL_US = 200000; // about a round trip
+    private static final long ACKED_WINDOW_US = 500000;
+    private static final int LOSS_WINDOW_PACKETS = 50;
+
+    enum Usage { NORMAL, OVERUSING, UNDERUSING }
+
+    private volatile long minBitrate = DEFAULT_MIN_BITRATE;
+    private volatile long maxBitrate = DEFAULT_MAX_BITRATE;
+    private volatile long targetBitrate = DEFAULT_START_BITRATE;
+    private volatile boolean hasEstimate;
+
+    // packet groups
+    private long groupFirstSendUs = -1;
+    private long groupLastSendUs;
+    private long groupLastArrivalUs;
+    private long previousSendUs = -1;
+    private long previousArrivalUs;
+
+    // trendline
+    private final double[] trendX = new double[TRENDLINE_WINDOW];
+    private final double[] trendY = new double[TRENDLINE_WINDOW];
+    private int trendCount;
+    private int trendIndex;
+    private long firstArrivalUs = -1;
+    private double accumulatedDelayMs;
+    private double smoothedDelayMs;
+    private int deltaCount;
+
+    // overuse detection
+    private double thresholdMs = INITIAL_THRESHOLD_MS;
+    private long lastThresholdUpdateUs = -1;
+    private double timeOverUsingMs = -1;
+    private int overuseCount;
+    private double previousTrend;
+    private Usage usage = Usage.NORMAL;
+
+    // rate control
+    private long lastUpdateUs = -1;
+    private long lastDecreaseUs = Long.MIN_VALUE / 2;
+    private long ackedWindowStartUs = -1;
+    private long ackedBytes;
+    private volatile long ackedBitrate;
+    private int reportedPackets;
+    private int lostPackets;
+    private volatile float lossFraction;
+
+    public void setBitrateLimits(long minBitrate, long maxBitrate) {
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        targetBitrate = clamp(targetBitrate);
+    }
+
+    /**
+     * Returns true once feedback came in, the target is only a starting guess before.
+     */
+    public boolean hasEstimate() {
+        return hasEstimate;
+    }
+
+    /**
+     * Returns the bitrate, in bits per second, the path to the receiver is estimated to carry.
+     */
+    public long getTargetBitrate() {
+        return targetBitrate;
+    }
+
+    /**
+     * Returns the bitrate, in bits per second, the receiver reported it got.
+     */
+    public long getAckedBitrate() {
+        return ackedBitrate;
+    }
+
+    public float getLossFraction() {
+        return lossFraction;
+    }
+
+    /**
+     * A packet the receiver got.
+     *
+     * @param sendTimeUs On the sender's clock
+     * @param arrivalTimeUs On the receiver's clock
+     * @param nowUs On the sender's clock
+     */
+    void onPacketReceived(long sendTimeUs, long arrivalTimeUs, int size, long nowUs) {
+        hasEstimate = true;
+        updateAckedBitrate(size, arrivalTimeUs);
+        countLoss(false, nowUs);
+
+        if (groupFirstSendUs < 0) {
+            startGroup(sendTimeUs, arrivalTimeUs);
+        } else if (sendTimeUs - groupFirstSendUs > GROUP_INTERVAL_US) {
+            if (previousSendUs >= 0) {
+                long sendDeltaUs = groupLastSendUs - previousSendUs;
+                long arrivalDeltaUs = groupLastArrivalUs - previousArrivalUs;
+                if (sendDeltaUs >= 0 && arrivalDeltaUs >= 0) {
+                    updateTrendline((arrivalDeltaUs - sendDeltaUs) / 1000.0, groupLastArrivalUs, arrivalDeltaUs);
+                }
+            }
+            previousSendUs = groupLastSendUs;
+            previousArrivalUs = groupLastArrivalUs;
+            startGroup(sendTimeUs, arrivalTimeUs);
+        } else {
+            groupLastSendUs = Math.max(groupLastSendUs, sendTimeUs);
+            groupLastArrivalUs = Math.max(groupLastArrivalUs, arrivalTimeUs);
+        }
+        updateTarget(nowUs);
+    }
+
+    /**
+     * A packet the receiver reported lost.
+     */
+    void onPacketLost(long nowUs) {
+        countLoss(true, nowUs);
+    }
+
+    private void startGroup(long sendTimeUs, long arrivalTimeUs) {
+        groupFirstSendUs = sendTimeUs;
+        groupLastSendUs = sendTimeUs;
+        groupLastArrivalUs = arrivalTimeUs;
+    }
+
+    private void updateTrendline(double delayDeltaMs, long arrivalTimeUs, long arrivalDeltaUs) {
+        if (firstArrivalUs < 0) {
+            firstArrivalUs = arrivalTimeUs;
+        }
+        deltaCount = Math.min(deltaCount + 1, 1000);
+        accumulatedDelayMs += delayDeltaMs;
+        smoothedDelayMs = DELAY_SMOOTHING * smoothedDelayMs + (1 - DELAY_SMOOTHING) * accumulatedDelayMs;
+
+        trendX[trendIndex] = (arrivalTimeUs - firstArrivalUs) / 1000.0;
+        trendY[trendIndex] = smoothedDelayMs;
+        trendIndex = (trendIndex + 1) % TRENDLINE_WINDOW;
+        if (trendCount < TRENDLINE_WINDOW) {
+            trendCount++;
+            if (trendCount < TRENDLINE_WINDOW) {
+                return;
+            }
+        }
+        detect(slope(), arrivalTimeUs, arrivalDeltaUs / 1000.0);
+    }
+
+    private double slope() {
+        double meanX = 0;
+        double meanY = 0;
+        for (int i = 0; i < trendCount; i++) {
+            meanX += trendX[i];
+            meanY += trendY[i];
+        }
+        meanX /= trendCount;
+        meanY /= trendCount;
+        double numerator = 0;
+        double denominator = 0;
+        for (int i = 0; i < trendCount; i++) {
+            numerator += (trendX[i] - meanX) * (trendY[i] - meanY);
+            denominator += (trendX[i] - meanX) * (trendX[i] - meanX);
+        }
+        return (denominator != 0) ? numerator / denominator : 0;
+    }
+
+    private void detect(double trend, long arrivalTimeUs, double arrivalDeltaMs) {
+        double modifiedTrend = Math.min(deltaCount, 60) * trend * TRENDLINE_GAIN;
+        if (modifiedTrend > thresholdMs) {
+            timeOverUsingMs = (timeOverUsingMs < 0) ? arrivalDeltaMs / 2 : timeOverUsingMs + arrivalDeltaMs;
+            overuseCount++;
+            if (timeOverUsingMs > OVERUSE_TIME_MS && overuseCount > 1 && trend >= previousTrend) {
+                timeOverUsingMs = 0;
+                overuseCount = 0;
+                usage = Usage.OVERUSING;
+            }
+        } else if (modifiedTrend < -thresholdMs) {
+            timeOverUsingMs = -1;
+            overuseCount = 0;
+            usage = Usage.UNDERUSING;
+        } else {
+            timeOverUsingMs = -1;
+            overuseCount = 0;
+            usage = Usage.NORMAL;
+        }
+        previousTrend = trend;
+        updateThreshold(modifiedTrend, arrivalTimeUs);
+    }
+
+    private void updateThreshold(double modifiedTrend, long arrivalTimeUs) {
+        if (lastThresholdUpdateUs < 0) {
+            lastThresholdUpdateUs = arrivalTimeUs;
+        }
+        double absTrend = Math.abs(modifiedTrend);
+        if (absTrend > thresholdMs + 15) {
+            // A sudden spike, e.g. a route change, would blow the threshold up
+            lastThresholdUpdateUs = arrivalTimeUs;
+            return;
+        }
+        double k = (absTrend < thresholdMs) ? THRESHOLD_DOWN : THRESHOLD_UP;
+        double elapsedMs = Math.min((arrivalTimeUs - lastThresholdUpdateUs) / 1000.0, 100);
+        thresholdMs += k * (absTrend - thresholdMs) * elapsedMs;
+        thresholdMs = Math.max(MIN_THRESHOLD_MS, Math.min(MAX_THRESHOLD_MS, thresholdMs));
+        lastThresholdUpdateUs = arrivalTimeUs;
+    }
+
+    private void updateAckedBitrate(int size, long arrivalTimeUs) {
+        if (ackedWindowStartUs < 0 || arrivalTimeUs < ackedWindowStartUs) {
+            ackedWindowStartUs = arrivalTimeUs;
+            ackedBytes = 0;
+        }
+        ackedBytes += size;
+        long elapsedUs = arrivalTimeUs - ackedWindowStartUs;
+        if (elapsedUs >= ACKED_WINDOW_US) {
+            ackedBitrate = ackedBytes * 8 * 1000000L / elapsedUs;
+            ackedWindowStartUs = arrivalTimeUs;
+            ackedBytes = 0;
+        }
+    }
+
+    private void countLoss(boolean lost, long nowUs) {
+        reportedPackets++;
+        if (lost) {
+            lostPackets++;
+        }
+        if (reportedPackets < LOSS_WINDOW_PACKETS) {
+            return;
+        }
+        float loss = (float) lostPackets / reportedPackets;
+        lossFraction = loss;
+        reportedPackets = 0;
+        lostPackets = 0;
+        if (loss > 0.1f) {
+            targetBitrate = clamp((long) (targetBitrate * (1 - 0.5f * loss)));
+            lastDecreaseUs = nowUs;
+        }
+    }
+
+    private void updateTarget(long nowUs) {
+        if (lastUpdateUs < 0) {
+            lastUpdateUs = nowUs;
+        }
+        long elapsedUs = nowUs - lastUpdateUs;
+        lastUpdateUs = nowUs;
+
+        long target = targetBitrate;
+        if (usage == Usage.OVERUSING) {
+            if (nowUs - lastDecreaseUs >= DECREASE_INTERVAL_US) {
+                long base = (ackedBitrate > 0) ? Math.min(ackedBitrate, target) : target;
+                target = (long) (DECREASE_FACTOR * base);
+                lastDecreaseUs = nowUs;
+            }
+        } else if (usage == Usage.NORMAL && lossFraction <= 0.02f
+                && nowUs - lastDecreaseUs >= DECREASE_INTERVAL_US) {
+            target = (long) (target * Math.pow(INCREASE_PER_SECOND, elapsedUs / 1000000.0));
+            if (ackedBitrate > 0) {
+                // An encoder sending less than the target does not prove the path carries more
+                target = Math.min(target, (long) (1.5 * ackedBitrate) + 10000);
+            }
+        }
+        // while under using the queues drain, the target holds
+        targetBitrate = clamp(target);
+    }
+
+    private long clamp(long bitrate) {
+        return Math.max(minBitrate, Math.min(maxBitrate, bitrate));
+    }
+}
@@ -0,0 +1,219 @@
+package net.xvis.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+// ULPFEC packet payload (RFC 5109, section 7), after the RTP header of the FEC packet
+//  0                   1                   2                   3
+//  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |E|L|P|X|  CC   |M| PT recovery |            SN base            |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                          TS recovery                          |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |        length recovery        |       Protection Length       |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |             mask              |   mask cont. (present only when L = 1)
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                     level 0 payload (XOR)                     |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// Every recovery field is the XOR of the same field of the protected packets. The level 0 payload
+// is the XOR of everything after their fixed 12-byte RTP header, zero padded to the longest one.
+
+/**
+ * Generates one XOR parity packet (ULPFEC, RFC 5109, level 0 only) per group of consecutive media
+ * packets, which lets a receiver rebuild any one packet of the group it lost without asking for it.
+ * <p>
+ * The group size follows the loss the receivers report: about half a lost packet per group, the
+ * most a single parity packet repairs. Lossless links get the largest groups, hence the least
+ * overhead.
+ * <p>
+ * Runs on the socket's FEC worker, on the packets as sent, with their send-time header extensions:
+ * a packet rebuilt from the parity is byte for byte the one that was sent. The parity is
+ * accumulated in place and nothing is allocated per packet.
+ */
+class FecEncoder {
+    static final int FEC_HEADER_SIZE = 10;
+    static final int MAX_LEVEL_HEADER_SIZE = 8; // with the long mask
+    static final int MAX_GROUP_SIZE = 48;
+    private static final int SHORT_MASK_SIZE = 16;
+
+    private final ByteBuffer parity;
+    private final int minGroupSize;
+    private final int maxGroupSize;
+    private volatile float lossFraction;
+
+    // the current group
+    private int groupSize;
+    private int count;
+    private int baseSequenceNum;
+    private int lastSequenceNum;
+    private long mask; // bit 47 is the base sequence number
+    private int recoveryBits; // P|X|CC|M|PT of the packets
+    private int timestampRecovery;
+    private int lengthRecovery;
+    private int protectionLength;
+    private int lastRtpTimestamp;
+    private long lastTimestampUs;
+    // the timestamps of the group, a subscriber with a timestamp offset needs its own TS recovery
+    private final int[] timestamps = new int[MAX_GROUP_SIZE];
+
+    /**
+     * @param maxProtectedLength The longest packet, less its fixed 12-byte header
+     */
+    FecEncoder(int maxProtectedLength, int minGroupSize, int maxGroupSize) {
+        if (minGroupSize < 2 || maxGroupSize > MAX_GROUP_SIZE || minGroupSize > maxGroupSize) {
+            throw new IllegalArgumentException("Invalid FEC group sizes " + minGroupSize + "-" + maxGroupSize);
+        }
+        this.minGroupSize = minGroupSize;
+        this.maxGroupSize = maxGroupSize;
+        parity = ByteBuffer.allocateDirect(maxProtectedLength);
+        groupSize = maxGroupSize;
+    }
+
+    /**
+     * Takes the fraction of packets a receiver lost since its last report. The highest loss
+     * counts at once, lower reports bring the estimate down gradually.
+     */
+    void onLossReported(float fraction) {
+        float loss = lossFraction;
+        lossFraction = (fraction > loss) ? fraction : loss + (fraction - loss) / 4;
+    }
+
+    /**
+     * Returns the size of the current group, the protection level is 1 / group size.
+     */
+    int getGroupSize() {
+        return groupSize;
+    }
+
+    int getMinGroupSize() {
+        return minGroupSize;
+    }
+
+    int getMaxGroupSize() {
+        return maxGroupSize;
+    }
+
+    int getRtpTimestamp() {
+        return lastRtpTimestamp;
+    }
+
+    long getTimestampUs() {
+        return lastTimestampUs;
+    }
+
+    /**
+     * Copies the RTP timestamps of the packets of the current group, before the parity packet is
+     * written.
+     *
+     * @return The number of packets in the group
+     */
+    int getTimestamps(int[] out) {
+        System.arraycopy(timestamps, 0, out, 0, count);
+        return count;
+    }
+
+    /**
+     * Adds a media packet to the current group.
+     *
+     * @param fragment The slice the payload ends with, or null
+     *
+     * @return true when the packet completes the group, its parity packet is then to be
+     * written with {@link #writeFecPacket(ByteBuffer)}
+     */
+    boolean protect(ByteBuffer header, ByteBuffer payload, ByteBuffer fragment, long timestampUs) {
+        int sequenceNum = header.getShort(2) & 0xFFFF;
+        if (count > 0 && ((sequenceNum - baseSequenceNum) & 0xFFFF) >= MAX_GROUP_SIZE) {
+            // The stream jumped, the group cannot span that far
+            reset();
+        }
+        if (count == 0) {
+            baseSequenceNum = sequenceNum;
+            groupSize = targetGroupSize();
+        }
+
+        int headerLength = header.limit();
+        int fragmentLength = (fragment != null) ? fragment.limit() : 0;
+        int protectedLength = headerLength - RtpSocket.HEADER_SIZE + payload.limit() + fragmentLength;
+        recoveryBits ^= header.getShort(0) & 0xFFFF;
+        timestampRecovery ^= header.getInt(4);
+        lengthRecovery ^= protectedLength;
+        if (protectedLength > protectionLength) {
+            // The parity beyond the previous packets is still zero from the reset
+            protectionLength = protectedLength;
+        }
+        xor(header, RtpSocket.HEADER_SIZE, headerLength - RtpSocket.HEADER_SIZE, 0);
+        xor(payload, 0, payload.limit(), headerLength - RtpSocket.HEADER_SIZE);
+        if (fragment != null) {
+            xor(fragment, 0, fragmentLength, headerLength - RtpSocket.HEADER_SIZE + payload.limit());
+        }
+
+        mask |= 1L << (MAX_GROUP_SIZE - 1 - ((sequenceNum - baseSequenceNum) & 0xFFFF));
+        lastSequenceNum = sequenceNum;
+        lastRtpTimestamp = header.getInt(4);
+        lastTimestampUs = timestampUs;
+        timestamps[count] = lastRtpTimestamp;
+        count++;
+        return count >= groupSize;
+    }
+
+    /**
+     * Writes the payload of the parity packet of the current group, and starts the next group.
+     */
+    void writeFecPacket(ByteBuffer out) {
+        boolean longMask = ((lastSequenceNum - baseSequenceNum) & 0xFFFF) >= SHORT_MASK_SIZE;
+        out.put((byte) ((longMask ? 0x40 : 0) | ((recoveryBits >> 8) & 0x3F))); // E=0|L|P|X|CC
+        out.put((byte) recoveryBits); // M|PT
+        out.putShort((short) baseSequenceNum);
+        out.putInt(timestampRecovery);
+        out.putShort((short) lengthRecovery);
+        out.putShort((short) protectionLength);
+        out.putShort((short) (mask >>> 32));
+        if (longMask) {
+            out.putInt((int) mask);
+        }
+        parity.limit(protectionLength);
+        parity.position(0);
+        out.put(parity);
+        parity.clear();
+        reset();
+    }
+
+    private int targetGroupSize() {
+        float loss = lossFraction;
+        if (loss <= 0) {
+            return maxGroupSize;
+        }
+        int size = (int) (0.5f / loss);
+        return Math.max(minGroupSize, Math.min(maxGroupSize, size));
+    }
+
+    private void reset() {
+        for (int i = 0; i < protectionLength; i += Long.BYTES) {
+            if (i + Long.BYTES <= parity.capacity()) {
+                parity.putLong(i, 0);
+            } else {
+                for (int j = i; j < parity.capacity(); j++) {
+                    parity.put(j, (byte) 0);
+                }
+            }
+        }
+        count = 0;
+        mask = 0;
+        recoveryBits = 0;
+        timestampRecovery = 0;
+        lengthRecovery = 0;
+        protectionLength = 0;
+    }
+
+    private void xor(ByteBuffer source, int offset, int length, int parityOffset) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            parity.putLong(parityOffset + i, parity.getLong(parityOffset + i) ^ source.getLong(offset + i));
+        }
+        for (; i < length; i++) {
+            parity.put(parityOffset + i, (byte) (parity.get(parityOffset + i) ^ source.get(offset + i)));
+        }
+    }
+}
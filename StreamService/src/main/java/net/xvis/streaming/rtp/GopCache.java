@@ -0,0 +1,121 @@
+package net.xvis.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies of the packets of the stream since its last keyframe, the parameter sets sent in front
+ * of it included, so that a client joining the stream gets a picture right away rather than at
+ * the next keyframe, which can be seconds away.
+ * <p>
+ * The copies live back to back in one direct slab of a fixed size. A group of pictures that does
+ * not fit is not cached: clients joining during it wait for the next keyframe, as they would
+ * without the cache. Parity packets are not cached.
+ * <p>
+ * Only used by the socket's send thread.
+ */
+class GopCache {
+    private final int capacity;
+    private ByteBuffer slab; // allocated with the first keyframe
+    private ByteBuffer view;
+    private int[] offsets = new int[256];
+    private int[] lengths = new int[256];
+    private int count;
+    private int used;
+    private int firstSequenceNumber;
+    private boolean valid;
+
+    /**
+     * @param capacity The memory the copies can take, in bytes
+     */
+    GopCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns true while the cache holds a group of pictures from its keyframe on.
+     */
+    boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Returns the sequence number of the first packet of the keyframe.
+     */
+    int getFirstSequenceNumber() {
+        return firstSequenceNumber;
+    }
+
+    /**
+     * Returns the sequence number the next packet cached will have.
+     */
+    int getEndSequenceNumber() {
+        return (firstSequenceNumber + count) & 0xFFFF;
+    }
+
+    /**
+     * Returns the memory the packets cached take, in bytes.
+     */
+    int getSize() {
+        return used;
+    }
+
+    void put(RtpSocket.RtpData rtpData) {
+        if (rtpData.isFec()) {
+            return;
+        }
+        if (rtpData.isKeyFrame()) {
+            if (slab == null) {
+                slab = ByteBuffer.allocateDirect(capacity);
+                view = slab.duplicate();
+            }
+            valid = true;
+            count = 0;
+            used = 0;
+            firstSequenceNumber = rtpData.getSequenceNumber();
+        }
+        if (!valid) {
+            return;
+        }
+        int length = rtpData.getLength();
+        if (used + length > capacity || rtpData.getSequenceNumber() != getEndSequenceNumber()) {
+            // Too large a group, or packets are missing
+            valid = false;
+            return;
+        }
+        if (count == offsets.length) {
+            int[] newOffsets = new int[count * 2];
+            int[] newLengths = new int[count * 2];
+            System.arraycopy(offsets, 0, newOffsets, 0, count);
+            System.arraycopy(lengths, 0, newLengths, 0, count);
+            offsets = newOffsets;
+            lengths = newLengths;
+        }
+        slab.clear();
+        slab.position(used);
+        for (ByteBuffer buffer : rtpData.getBuffers()) {
+            slab.put(buffer);
+        }
+        offsets[count] = used;
+        lengths[count] = length;
+        count++;
+        used += length;
+    }
+
+    /**
+     * Returns the packet with the given sequence number, positioned at its first byte and limited
+     * to its end, or null if it is not cached. The buffer is only valid until the next call.
+     */
+    ByteBuffer get(int sequenceNumber) {
+        int index = (sequenceNumber - firstSequenceNumber) & 0xFFFF;
+        if (!valid || index >= count) {
+            return null;
+        }
+        view.limit(offsets[index] + lengths[index]);
+        view.position(offsets[index]);
+        return view;
+    }
+}
@@ -0,0 +1,515 @@
+package net.xvis.streaming.rtp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The RTSP control connection of a client, carrying RTP and RTCP interleaved with the RTSP
+ * messages ({@code RTP/AVP/TCP;interleaved=x-y}, RFC 2326 section 10.12).
+ * <p>
+ * The socket is non-blocking. Everything sent goes through one ring of bytes: RTSP responses and
+ * the framed packets of all the tracks of the client. Packets are only copied into the ring by
+ * {@link #send(int, ByteBuffer...)}. {@link #flush()} writes all that is queued with one gathering
+ * write, so the packets of a sending run leave coalesced. When the ring is full, the
+ * {@link RtpDestination.OverflowPolicy} drops whole packets that have not started to leave,
+ * so the TCP stream stays framed. RTSP messages are never dropped.
+ * <p>
+ * {@link #getInputStream()} and {@link #getOutputStream()} are for the RTSP session thread.
+ * The input stream blocks, hands out the RTSP text and passes the interleaved packets sent by the
+ * client to their {@link RtpReactor.Receiver}. The output stream blocks until the message is out.
+ */
+public class InterleavedChannel {
+    public static final String TAG = "InterleavedChannel";
+
+    public static final int DEFAULT_CAPACITY = 256 * 1024; // must be a power of two
+    public static final int MAX_CHANNEL_ID = 255;
+    private static final int FRAME_HEADER_SIZE = 4; // '$', channel id, 16 bits length
+    private static final int MAX_QUEUED_MESSAGES = 4096;
+    private static final int READ_BUFFER_SIZE = FRAME_HEADER_SIZE + 65535;
+    private static final long WRITE_WAIT_MS = 100;
+
+    private final SocketChannel channel;
+    private final SocketAddress remoteAddress;
+    private final Selector readSelector;
+    private final Selector writeSelector;
+    private final RtpReactor.Receiver[] receivers = new RtpReactor.Receiver[256];
+    private final InputStream inputStream = new ControlInputStream();
+    private final OutputStream outputStream = new ControlOutputStream();
+
+    // ring of bytes to send, head and tail are absolute positions
+    private final ByteBuffer ring;
+    private final ByteBuffer[] views;
+    private final long mask;
+    private long head;
+    private long tail;
+
+    // the queued messages, to drop whole packets only
+    private final long[] messageEnds = new long[MAX_QUEUED_MESSAGES];
+    private final boolean[] droppable = new boolean[MAX_QUEUED_MESSAGES];
+    private int messageHead;
+    private int messageCount;
+    private long firstMessageStart;
+
+    private volatile RtpDestination.OverflowPolicy overflowPolicy = RtpDestination.OverflowPolicy.DROP_OLDEST;
+    // the channel ids the tracks set up on the connection use, under the channel's lock
+    private final boolean[] channelIdsInUse = new boolean[MAX_CHANNEL_ID + 1];
+    private volatile boolean closed;
+
+    // statistics
+    private volatile long sentPackets;
+    private volatile long sentBytes;
+    private volatile long droppedPackets;
+    private volatile long queuedBytes;
+    private volatile long maxQueuedBytes;
+
+    public InterleavedChannel(SocketChannel channel) throws IOException {
+        this(channel, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The size of the send ring in bytes, a power of two.
+     */
+    public InterleavedChannel(SocketChannel channel, int capacity) throws IOException {
+        if (Integer.bitCount(capacity) != 1 || capacity < READ_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        this.channel = channel;
+        this.remoteAddress = channel.socket().getRemoteSocketAddress();
+        channel.configureBlocking(false);
+        readSelector = Selector.open();
+        writeSelector = Selector.open();
+        channel.register(readSelector, SelectionKey.OP_READ);
+        channel.register(writeSelector, SelectionKey.OP_WRITE);
+
+        ring = ByteBuffer.allocateDirect(capacity);
+        views = new ByteBuffer[] { ring.duplicate(), ring.duplicate() };
+        mask = capacity - 1;
+    }
+
+    /**
+     * Returns the socket of the connection, for its addresses only: it must not be read or
+     * written directly.
+     */
+    public Socket getSocket() {
+        return channel.socket();
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public void setOverflowPolicy(RtpDestination.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Receives the packets the client interleaves on the given channel id.
+     */
+    public void setReceiver(int channelId, RtpReactor.Receiver receiver) {
+        receivers[channelId & 0xFF] = receiver;
+    }
+
+    /**
+     * Takes the first free pair of channel ids, for a client that did not pick them.
+     *
+     * @return The first id of the pair, -1 if there is none left
+     */
+    public synchronized int allocateChannelPair() {
+        for (int channelId = 0; channelId < MAX_CHANNEL_ID; channelId += 2) {
+            if (!channelIdsInUse[channelId] && !channelIdsInUse[channelId + 1]) {
+                channelIdsInUse[channelId] = true;
+                channelIdsInUse[channelId + 1] = true;
+                return channelId;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Takes the channel ids a client picked, so that later allocated ones do not collide.
+     *
+     * @param rtpChannelId A valid id, see {@link #isValidChannelId(int)}
+     * @param rtcpChannelId A valid id, other than rtpChannelId
+     * @return false if either id is in use already
+     */
+    public synchronized boolean reserveChannelPair(int rtpChannelId, int rtcpChannelId) {
+        if (!isValidChannelId(rtpChannelId) || !isValidChannelId(rtcpChannelId) || rtpChannelId == rtcpChannelId) {
+            throw new IllegalArgumentException("Invalid channel ids " + rtpChannelId + "-" + rtcpChannelId);
+        }
+        if (channelIdsInUse[rtpChannelId] || channelIdsInUse[rtcpChannelId]) {
+            return false;
+        }
+        channelIdsInUse[rtpChannelId] = true;
+        channelIdsInUse[rtcpChannelId] = true;
+        return true;
+    }
+
+    /**
+     * Gives back a pair of channel ids taken by {@link #allocateChannelPair()} or
+     * {@link #reserveChannelPair(int, int)}.
+     */
+    public synchronized void releaseChannelPair(int rtpChannelId, int rtcpChannelId) {
+        channelIdsInUse[rtpChannelId] = false;
+        channelIdsInUse[rtcpChannelId] = false;
+    }
+
+    public static boolean isValidChannelId(int channelId) {
+        return channelId >= 0 && channelId <= MAX_CHANNEL_ID;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public long getSentPackets() {
+        return sentPackets;
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    public long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * Returns the number of bytes waiting for the socket.
+     */
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * Queues a packet on an interleaved channel. Does not write to the socket, see {@link #flush()}.
+     *
+     * @return false if the packet, or older ones to make room for it, had to be dropped
+     */
+    public synchronized boolean send(int channelId, ByteBuffer... buffers) {
+        if (closed) {
+            return false;
+        }
+        int length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        int size = FRAME_HEADER_SIZE + length;
+
+        boolean dropped = false;
+        if (!hasRoom(size)) {
+            flush();
+            dropped = !hasRoom(size) && makeRoom(size);
+            if (!hasRoom(size)) {
+                droppedPackets++;
+                return false;
+            }
+        }
+
+        putByte((byte) '$');
+        putByte((byte) channelId);
+        putByte((byte) (length >> 8));
+        putByte((byte) length);
+        for (ByteBuffer buffer : buffers) {
+            put(buffer);
+        }
+        pushMessage(true);
+        return !dropped;
+    }
+
+    /**
+     * Writes as much of the queue as the socket takes, in a single gathering write.
+     *
+     * @return true when nothing is left to write
+     */
+    public synchronized boolean flush() {
+        while (head < tail) {
+            int first = (int) (head & mask);
+            int firstLength = (int) Math.min(tail - head, ring.capacity() - first);
+            int secondLength = (int) (tail - head - firstLength);
+            views[0].limit(first + firstLength).position(first);
+            views[1].limit(secondLength).position(0);
+
+            long written;
+            try {
+                written = channel.write(views, 0, (secondLength > 0) ? 2 : 1);
+            } catch (IOException e) {
+                Log.e(TAG, "Connection to " + remoteAddress + " lost: " + e.getMessage());
+                close();
+                return true;
+            }
+            if (written == 0) {
+                return false;
+            }
+            head += written;
+            sentBytes += written;
+            while (messageCount > 0 && messageEnds[messageHead] <= head) {
+                if (droppable[messageHead]) {
+                    sentPackets++;
+                }
+                popMessage();
+            }
+            updateQueuedBytes();
+        }
+        return true;
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            head = tail;
+            messageCount = 0;
+            updateQueuedBytes();
+        }
+        try {
+            channel.close();
+            readSelector.close();
+            writeSelector.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private boolean hasRoom(int size) {
+        return tail + size - head <= ring.capacity() && messageCount < MAX_QUEUED_MESSAGES;
+    }
+
+    /**
+     * Drops queued packets that have not started to leave, as the overflow policy says.
+     *
+     * @return true if packets were dropped
+     */
+    private boolean makeRoom(int size) {
+        int dropped = 0;
+        if (overflowPolicy == RtpDestination.OverflowPolicy.DROP_ALL) {
+            // from the newest back to the one being written or to an RTSP message
+            while (messageCount > 0) {
+                int last = (messageHead + messageCount - 1) % MAX_QUEUED_MESSAGES;
+                long start = (messageCount == 1) ? firstMessageStart : messageEnds[(last + MAX_QUEUED_MESSAGES - 1) % MAX_QUEUED_MESSAGES];
+                if (!droppable[last] || start < head) {
+                    break;
+                }
+                tail = start;
+                messageCount--;
+                dropped++;
+            }
+        } else {
+            // from the oldest on, unless it is being written or an RTSP message
+            while (messageCount > 0 && !hasRoom(size)) {
+                if (!droppable[messageHead] || firstMessageStart < head) {
+                    break;
+                }
+                head = messageEnds[messageHead];
+                popMessage();
+                dropped++;
+            }
+        }
+        droppedPackets += dropped;
+        updateQueuedBytes();
+        return dropped > 0;
+    }
+
+    private void putByte(byte value) {
+        ring.put((int) (tail & mask), value);
+        tail++;
+    }
+
+    private void put(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        while (buffer.hasRemaining()) {
+            int index = (int) (tail & mask);
+            int length = Math.min(buffer.remaining(), ring.capacity() - index);
+            ring.limit(index + length).position(index);
+            buffer.limit(buffer.position() + length);
+            ring.put(buffer);
+            buffer.limit(limit);
+            tail += length;
+        }
+        ring.clear();
+    }
+
+    private void pushMessage(boolean isPacket) {
+        int index = (messageHead + messageCount) % MAX_QUEUED_MESSAGES;
+        messageEnds[index] = tail;
+        droppable[index] = isPacket;
+        messageCount++;
+        updateQueuedBytes();
+    }
+
+    private void popMessage() {
+        firstMessageStart = messageEnds[messageHead];
+        messageHead = (messageHead + 1) % MAX_QUEUED_MESSAGES;
+        messageCount--;
+    }
+
+    private void updateQueuedBytes() {
+        queuedBytes = tail - head;
+        if (queuedBytes > maxQueuedBytes) {
+            maxQueuedBytes = queuedBytes;
+        }
+    }
+
+    /**
+     * Queues an RTSP message, waiting for room if needed, and waits until it is written.
+     */
+    private void sendMessage(byte[] b, int off, int len) throws IOException {
+        while (true) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                if (hasRoom(len)) {
+                    put(ByteBuffer.wrap(b, off, len));
+                    pushMessage(false);
+                    break;
+                }
+                flush();
+            }
+            waitFor(writeSelector, WRITE_WAIT_MS);
+        }
+
+        while (!flush()) {
+            waitFor(writeSelector, WRITE_WAIT_MS);
+        }
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    private void waitFor(Selector selector, long timeoutMs) throws IOException {
+        try {
+            selector.select(timeoutMs);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    private class ControlOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            sendMessage(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            sendMessage(b, off, len);
+        }
+    }
+
+    private class ControlInputStream extends InputStream {
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private boolean lineStart = true;
+
+        ControlInputStream() {
+            buffer.flip();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = 0;
+            while (count == 0 && len > 0) {
+                if (!buffer.hasRemaining() && !fill(1)) {
+                    return -1;
+                }
+                while (buffer.hasRemaining() && count < len) {
+                    // A '$' at the start of a line can only begin an interleaved packet
+                    if (lineStart && buffer.get(buffer.position()) == '$') {
+                        if (count > 0) {
+                            return count;
+                        }
+                        if (!receivePacket()) {
+                            return -1;
+                        }
+                        continue;
+                    }
+                    byte value = buffer.get();
+                    b[off + count++] = value;
+                    lineStart = (value == '\n');
+                }
+            }
+            return count;
+        }
+
+        private boolean receivePacket() throws IOException {
+            if (!fill(FRAME_HEADER_SIZE)) {
+                return false;
+            }
+            buffer.get(); // '$'
+            int channelId = buffer.get() & 0xFF;
+            int length = buffer.getShort() & 0xFFFF;
+            if (!fill(length)) {
+                return false;
+            }
+
+            ByteBuffer packet = buffer.slice();
+            packet.limit(length);
+            buffer.position(buffer.position() + length);
+            RtpReactor.Receiver receiver = receivers[channelId];
+            if (receiver != null) {
+                try {
+                    receiver.onReceive(packet, remoteAddress);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Receiver failed: " + e.getMessage());
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads until at least the given number of bytes is buffered.
+         *
+         * @return false at the end of the stream
+         */
+        private boolean fill(int size) throws IOException {
+            while (buffer.remaining() < size) {
+                buffer.compact();
+                int read;
+                try {
+                    read = channel.read(buffer);
+                } finally {
+                    buffer.flip();
+                }
+                if (read < 0) {
+                    return false;
+                }
+                if (read == 0) {
+                    if (closed) {
+                        return false;
+                    }
+                    waitFor(readSelector, 0);
+                }
+            }
+            return true;
+        }
+    }
+}
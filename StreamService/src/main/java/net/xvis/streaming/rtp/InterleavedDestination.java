@@ -0,0 +1,157 @@
+package net.xvis.streaming.rtp;
+
+import net.xvis.streaming.rtcp.SenderReport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A receiver of an RTP stream over its RTSP connection, on a pair of interleaved channel ids.
+ * <p>
+ * Queueing, backpressure and the counters belong to the {@link InterleavedChannel}, which is
+ * shared by all the tracks the client plays.
+ */
+public class InterleavedDestination {
+    private final InterleavedChannel channel;
+    private final int rtpChannelId;
+    private final int rtcpChannelId;
+    private final BandwidthEstimator bandwidthEstimator = new BandwidthEstimator();
+    // see RtpDestination
+    private final PacketPacer catchUpPacer = new PacketPacer();
+    private final ReceptionStats receptionStats = new ReceptionStats();
+    private final SenderReport senderReport = new SenderReport();
+    private final RtpRewriter rewriter = new RtpRewriter();
+    // the largest packet the client asked for (RTSP Blocksize), 0 for no limit
+    private volatile int maxPacketSize;
+
+    InterleavedDestination(InterleavedChannel channel, int rtpChannelId, int rtcpChannelId) {
+        this.channel = channel;
+        this.rtpChannelId = rtpChannelId;
+        this.rtcpChannelId = rtcpChannelId;
+    }
+
+    public InterleavedChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns the sequence number of the first packet this client gets, for RTP-Info.
+     */
+    public int getInitialSequenceNumber() {
+        return rewriter.getInitialSequenceNumber();
+    }
+
+    /**
+     * Returns the RTP timestamp of the first packet this client gets, for RTP-Info.
+     */
+    public long getInitialRtpTimestamp() {
+        return rewriter.getInitialTimestamp();
+    }
+
+    RtpRewriter getRewriter() {
+        return rewriter;
+    }
+
+    SenderReport getSenderReport() {
+        return senderReport;
+    }
+
+    /**
+     * Returns the estimate of the bandwidth to this client, fed by its transport-wide feedback.
+     */
+    public BandwidthEstimator getBandwidthEstimator() {
+        return bandwidthEstimator;
+    }
+
+    /**
+     * Returns the loss, jitter and round-trip time the reception reports of this client tell.
+     */
+    public ReceptionStats getReceptionStats() {
+        return receptionStats;
+    }
+
+    /**
+     * Returns the largest RTP packet this client gets, 0 if it takes whatever the socket sends.
+     * TCP does not fragment, only the size the client asked for counts.
+     */
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    void setRequestedPacketSize(int packetSize) {
+        maxPacketSize = packetSize;
+    }
+
+    public int getRtpChannelId() {
+        return rtpChannelId;
+    }
+
+    public int getRtcpChannelId() {
+        return rtcpChannelId;
+    }
+
+    /**
+     * Queues the packet on the connection, it leaves with the next {@link #flush()}.
+     */
+    void dispatch(RtpSocket.RtpData rtpData) {
+        ByteBuffer[] buffers = rewriter.rewrite(rtpData, rtpData.getBuffers());
+        if (buffers != null) {
+            channel.send(rtpChannelId, buffers);
+        }
+    }
+
+    /**
+     * See {@link RtpDestination#startCatchUp(int, long)}.
+     */
+    void startCatchUp(int sequenceNumber, long bitrate) {
+        catchUpPacer.reset();
+        catchUpPacer.setMaxBitrate(bitrate);
+        rewriter.catchUpFrom(sequenceNumber);
+    }
+
+    /**
+     * Queues the cached packets the client still misses on the connection, as many as the pacer
+     * lets through, up to the given number.
+     * See {@link RtpDestination#catchUp(GopCache, RtpHeaderExtension[], int, long)}.
+     */
+    long catchUp(GopCache cache, RtpHeaderExtension[] extensions, int maxPackets, long now) {
+        for (int i = 0; i < maxPackets && rewriter.isCatchingUp(); i++) {
+            int sequenceNumber = rewriter.getCatchUpSequenceNumber();
+            ByteBuffer packet = cache.get(sequenceNumber);
+            if (packet == null) {
+                if (cache.isValid() && sequenceNumber != cache.getEndSequenceNumber()) {
+                    rewriter.catchUpFrom(cache.getFirstSequenceNumber());
+                    continue;
+                }
+                rewriter.finishCatchUp(sequenceNumber);
+                break;
+            }
+            int length = packet.remaining();
+            long delay = catchUpPacer.delayNanos(length, 0, now);
+            if (delay > 0) {
+                return delay;
+            }
+            channel.send(rtpChannelId, rewriter.rewriteCached(packet, extensions, now));
+            catchUpPacer.onSent(length, now);
+            rewriter.catchUpFrom((sequenceNumber + 1) & 0xFFFF);
+        }
+        return rewriter.isCatchingUp() ? 0 : Long.MAX_VALUE;
+    }
+
+    /**
+     * Queues a retransmission on the connection like any other packet.
+     */
+    void resend(ByteBuffer packet) {
+        channel.send(rtpChannelId, packet);
+    }
+
+    /**
+     * @return true when the connection has nothing left to write
+     */
+    boolean flush() {
+        return channel.flush();
+    }
+
+    void close() {
+        channel.setReceiver(rtcpChannelId, null);
+    }
+}
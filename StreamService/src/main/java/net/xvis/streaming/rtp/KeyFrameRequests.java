@@ -0,0 +1,81 @@
+package net.xvis.streaming.rtp;
+
+/**
+ * Merges the keyframe requests (PLI, FIR) of all the clients of a stream into as few keyframes as
+ * possible. A loss burst seen by 50 clients brings 50 requests within a few milliseconds: they
+ * make one keyframe, not 50, each of them a bitrate spike.
+ * <p>
+ * A request is passed on to the encoder at once if the last keyframe is at least the minimum
+ * interval old, else when it gets that old. A keyframe sent in the meantime, asked for or not,
+ * answers the requests that came before it.
+ * <p>
+ * {@link #request()} is called from the receive thread, the others from the send thread.
+ */
+class KeyFrameRequests {
+    static final long DEFAULT_MIN_INTERVAL_MS = 500;
+
+    private volatile long minIntervalNs = DEFAULT_MIN_INTERVAL_MS * 1000000L;
+    private boolean pending;
+    private boolean started;
+    private long lastKeyFrameNs; // the last keyframe sent or asked for
+
+    private volatile long requests;
+    private volatile long keyFrames;
+
+    void setMinIntervalMs(long minIntervalMs) {
+        if (minIntervalMs < 0) {
+            throw new IllegalArgumentException("Invalid keyframe interval " + minIntervalMs);
+        }
+        minIntervalNs = minIntervalMs * 1000000L;
+    }
+
+    long getMinIntervalMs() {
+        return minIntervalNs / 1000000L;
+    }
+
+    /**
+     * Returns the requests received from the clients.
+     */
+    long getRequestCount() {
+        return requests;
+    }
+
+    /**
+     * Returns the keyframes asked to the encoder for them.
+     */
+    long getKeyFrameCount() {
+        return keyFrames;
+    }
+
+    synchronized void request() {
+        requests++;
+        pending = true;
+    }
+
+    synchronized void onKeyFrameSent(long now) {
+        pending = false;
+        started = true;
+        lastKeyFrameNs = now;
+    }
+
+    /**
+     * Tells whether the encoder is to be asked for a keyframe now.
+     *
+     * @return 0 to ask now, else the delay in nanoseconds before asking, Long.MAX_VALUE if no
+     * request is pending
+     */
+    synchronized long poll(long now) {
+        if (!pending) {
+            return Long.MAX_VALUE;
+        }
+        long delay = lastKeyFrameNs + minIntervalNs - now;
+        if (started && delay > 0) {
+            return delay;
+        }
+        pending = false;
+        started = true;
+        lastKeyFrameNs = now;
+        keyFrames++;
+        return 0;
+    }
+}
@@ -0,0 +1,48 @@
+package net.xvis.streaming.rtp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A buffer the packets of a socket carry slices of rather than copies, e.g. a MediaCodec output
+ * buffer, see {@link RtpSocket.RtpData#setFragment(ByteBuffer, LentBuffer)}.
+ * <p>
+ * The owner holds a reference of its own until it {@link #seal()}s the buffer, after the last
+ * packet took its slice. The buffer can be reused once {@link #isReleased()}: every packet that
+ * took a slice was written to all the destinations, or dropped.
+ */
+public class LentBuffer {
+    private final int index;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * @param index Tells the owner which buffer this is, e.g. the codec's buffer index
+     */
+    public LentBuffer(int index) {
+        this.index = index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Drops the owner's reference, no packet takes a slice after that.
+     *
+     * @return true if no packet holds a slice anymore
+     */
+    public boolean seal() {
+        return references.decrementAndGet() == 0;
+    }
+
+    public boolean isReleased() {
+        return references.get() == 0;
+    }
+
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    void release() {
+        references.decrementAndGet();
+    }
+}
@@ -0,0 +1,91 @@
+package net.xvis.streaming.rtp;
+
+/**
+ * The clock the media of all the streams is timed on: System.nanoTime(), the monotonic clock the
+ * codecs stamp their buffers with (presentationTimeUs of a surface or of audio captured with
+ * System.nanoTime()), anchored once to the wall clock.
+ * <p>
+ * Any instant of a track maps to an RTP timestamp and to an NTP timestamp with sub-microsecond
+ * resolution. The sender reports of the tracks of a session pair them the same way, so that
+ * players can lip-sync the tracks and size their jitter buffers from the reports. The wall clock
+ * being stepped afterwards (NTP sync, user change) does not move the NTP timestamps: they follow
+ * the monotonic clock, as RFC 3550 expects of a sender.
+ * <p>
+ * The anchor is taken at the edge of a millisecond tick of the wall clock, so it is as precise as
+ * the wall clock itself rather than off by up to a millisecond.
+ */
+public final class MediaClock {
+    // from 1900-01-01 (NTP) to 1970-01-01 (Unix)
+    private static final long NTP_UNIX_OFFSET_SECONDS = 2208988800L;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long MAX_ANCHOR_WAIT_NS = 20000000L; // 20 ms, coarse wall clocks tick slower
+
+    private static MediaClock instance;
+
+    private final long anchorNanos; // System.nanoTime()
+    private final long anchorWallNanos; // Unix time at anchorNanos
+
+    public static synchronized MediaClock getInstance() {
+        if (instance == null) {
+            instance = new MediaClock();
+        }
+        return instance;
+    }
+
+    private MediaClock() {
+        // Waits for the wall clock to tick: its new value is exact at that instant
+        long start = System.nanoTime();
+        long millis = System.currentTimeMillis();
+        long tick;
+        long nanos;
+        do {
+            tick = System.currentTimeMillis();
+            nanos = System.nanoTime();
+        } while (tick == millis && nanos - start < MAX_ANCHOR_WAIT_NS);
+        anchorNanos = nanos;
+        anchorWallNanos = tick * 1000000L;
+    }
+
+    /**
+     * Returns the 64-bit NTP timestamp of an instant: 32 bits of seconds since 1900, 32 bits of
+     * fraction.
+     *
+     * @param nanoTime On the System.nanoTime() clock
+     */
+    public long toNtpTimestamp(long nanoTime) {
+        long wallNanos = anchorWallNanos + (nanoTime - anchorNanos);
+        long seconds = wallNanos / NANOS_PER_SECOND + NTP_UNIX_OFFSET_SECONDS;
+        long fraction = ((wallNanos % NANOS_PER_SECOND) << 32) / NANOS_PER_SECOND;
+        return (seconds << 32) | fraction;
+    }
+
+    /**
+     * Returns the NTP timestamp of an instant of a track.
+     *
+     * @param timeUs A presentation time, on the System.nanoTime() clock in microseconds
+     */
+    public long toNtpTimestampUs(long timeUs) {
+        return toNtpTimestamp(timeUs * 1000L);
+    }
+
+    /**
+     * Returns the middle 32 bits of an NTP timestamp, as receivers echo it in the LSR of their
+     * reports, in 1/65536 seconds.
+     */
+    public static long toCompactNtp(long ntpTimestamp) {
+        return (ntpTimestamp >>> 16) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Returns the RTP timestamp of an instant of a track, rounded to the nearest tick and not yet
+     * truncated to 32 bits. The same instant gives the same value for any track of the clock rate.
+     *
+     * @param timeUs A presentation time, on the System.nanoTime() clock in microseconds
+     */
+    public static long toRtpTimestamp(long timeUs, long clockRateHz) {
+        // in two parts, a product of the full time would overflow after a few days of uptime
+        long seconds = timeUs / 1000000L;
+        long micros = timeUs % 1000000L;
+        return seconds * clockRateHz + (micros * clockRateHz + 500000L) / 1000000L;
+    }
+}
@@ -0,0 +1,82 @@
+package net.xvis.streaming.rtp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+
+/**
+ * Joins a multicast group on its RTCP port and passes on what the members send there: their
+ * reception reports, NACKs and keyframe requests (RFC 3550, section 6). The members send their
+ * RTCP to the group, not to the sender.
+ * <p>
+ * The reactor's channels cannot join a group below API 24 (MulticastChannel), so the group is
+ * joined with a MulticastSocket, read by a thread of its own. There is one per multicast stream.
+ */
+class MulticastRtcpReceiver extends Thread {
+    public static final String TAG = "MulticastRtcpReceiver";
+
+    private static final int MAX_DATAGRAM_SIZE = 65536;
+
+    private final MulticastSocket socket;
+    private final InetSocketAddress group;
+    private final NetworkInterface networkInterface;
+    private final RtpReactor.Receiver receiver;
+    private volatile boolean closed;
+
+    /**
+     * @param networkInterface The interface the stream is sent on, null for the system's default
+     * @param receiver Gets the packets on this receiver's thread
+     */
+    MulticastRtcpReceiver(InetAddress group, int rtcpPort, NetworkInterface networkInterface,
+                          RtpReactor.Receiver receiver) throws IOException {
+        super("MulticastRtcpReceiver-" + group.getHostAddress() + ":" + rtcpPort);
+        setDaemon(true);
+        this.group = new InetSocketAddress(group, rtcpPort);
+        this.networkInterface = networkInterface;
+        this.receiver = receiver;
+        socket = new MulticastSocket(rtcpPort);
+        try {
+            socket.joinGroup(this.group, networkInterface);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+        while (!closed) {
+            try {
+                datagram.setLength(buffer.length);
+                socket.receive(datagram);
+                receiver.onReceive(ByteBuffer.wrap(buffer, 0, datagram.getLength()), datagram.getSocketAddress());
+            } catch (IOException e) {
+                if (!closed) {
+                    Log.e(TAG, "Receive failed: " + e.getMessage());
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Receiver failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Leaves the group, the thread ends.
+     */
+    void close() {
+        closed = true;
+        try {
+            socket.leaveGroup(group, networkInterface);
+        } catch (IOException ignore) {
+        }
+        socket.close();
+    }
+}
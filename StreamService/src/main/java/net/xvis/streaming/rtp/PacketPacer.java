@@ -0,0 +1,188 @@
+package net.xvis.streaming.rtp;
+
+/**
+ * Paces the packets of one stream with a token bucket.
+ * <p>
+ * The bucket refills at the rate that sends the current frame within {@code pacingShare} of the
+ * frame interval, never faster than {@code maxBitrate}. A large IDR frame therefore leaves as a
+ * train of packets spread over the interval instead of a line-rate burst, and is not held back to
+ * the rate of the small frames around it. The average frame sets the floor of the rate, and the
+ * rate when the size of the frame is not known. Waits have nanosecond
+ * resolution: the pacer tells the sending thread how long to wait, it never blocks by itself.
+ * <p>
+ * Pacing debt is how far the packets of the current frame run past the start of the next frame.
+ * It stays at zero while the pacer keeps up. A steady positive value means the rate cap is too low
+ * for the stream.
+ * <p>
+ * {@link #delayNanos(int, long, int, long)} and {@link #onSent(int, long)} are called from the sending
+ * thread only. The setters and getters can be called from any thread.
+ */
+public class PacketPacer {
+    public static final float DEFAULT_PACING_SHARE = 0.5f;
+    public static final long DEFAULT_MAX_BITRATE = 20000000L; // 20 Mbps
+    public static final int DEFAULT_BURST_SIZE = 2 * 1500; // two full-sized packets
+
+    private static final double AVERAGE_WEIGHT = 0.1;
+    private static final long MAX_FRAME_INTERVAL_NS = 1000000000L;
+
+    private volatile float pacingShare = DEFAULT_PACING_SHARE;
+    private volatile long maxBitrate = DEFAULT_MAX_BITRATE;
+    private volatile int burstSize = DEFAULT_BURST_SIZE;
+
+    // frame tracking
+    private long frameTimestampUs = Long.MIN_VALUE;
+    private long frameStartNs;
+    private long frameBytes;
+    private double avgFrameBytes;
+    private double avgFrameIntervalNs;
+
+    // token bucket, in bytes
+    private double bytesPerNs;
+    private double tokens;
+    private long lastRefillNs;
+    private long blockedSinceNs;
+
+    private volatile long pacingRate; // bits per second
+    private volatile long debtNanos;
+
+    /**
+     * @param pacingShare Share of the frame interval over which a frame is spread, in (0, 1].
+     */
+    public void setPacingShare(float pacingShare) {
+        if (pacingShare <= 0 || pacingShare > 1) {
+            throw new IllegalArgumentException("Pacing share must be in (0, 1]: " + pacingShare);
+        }
+        this.pacingShare = pacingShare;
+    }
+
+    /**
+     * @param maxBitrate Cap of the instantaneous sending rate in bits per second.
+     */
+    public void setMaxBitrate(long maxBitrate) {
+        if (maxBitrate <= 0) {
+            throw new IllegalArgumentException("Max bitrate must be positive: " + maxBitrate);
+        }
+        this.maxBitrate = maxBitrate;
+    }
+
+    public long getMaxBitrate() {
+        return maxBitrate;
+    }
+
+    /**
+     * @param burstSize Bytes that may leave back to back after an idle period.
+     */
+    public void setBurstSize(int burstSize) {
+        this.burstSize = burstSize;
+    }
+
+    /**
+     * Returns the current pacing rate in bits per second.
+     */
+    public long getPacingRate() {
+        return pacingRate;
+    }
+
+    /**
+     * Returns the pacing debt in nanoseconds.
+     */
+    public long getPacingDebtNanos() {
+        return debtNanos;
+    }
+
+    public void reset() {
+        frameTimestampUs = Long.MIN_VALUE;
+        frameBytes = 0;
+        avgFrameBytes = 0;
+        avgFrameIntervalNs = 0;
+        bytesPerNs = 0;
+        tokens = 0;
+        lastRefillNs = 0;
+        blockedSinceNs = 0;
+        pacingRate = 0;
+        debtNanos = 0;
+    }
+
+    /**
+     * Returns how long the packet at the head of the stream has to wait before it may be sent.
+     * Can be called again for the same packet until it returns 0, then {@link #onSent(int, long)}.
+     *
+     * @param length The length of the packet in bytes
+     * @param timestampUs The presentation time of the frame the packet belongs to
+     * @param now The current time from System.nanoTime()
+     * @return The delay in nanoseconds, 0 if the packet may be sent now
+     */
+    public long delayNanos(int length, long timestampUs, long now) {
+        return delayNanos(length, timestampUs, 0, now);
+    }
+
+    /**
+     * Same as {@link #delayNanos(int, long, long)}, for the first packet of a frame of known size.
+     *
+     * @param frameSize The bytes of the frame the packet starts, 0 if unknown. Only read for the
+     *                  first packet of a frame.
+     */
+    public long delayNanos(int length, long timestampUs, int frameSize, long now) {
+        if (timestampUs != frameTimestampUs) {
+            onFrameStart(timestampUs, frameSize, now);
+        }
+
+        refill(now);
+        int needed = Math.min(length, burstSize);
+        if (tokens >= needed) {
+            return 0;
+        }
+        if (blockedSinceNs == 0) {
+            blockedSinceNs = now;
+        } else if (avgFrameIntervalNs > 0 && now - blockedSinceNs >= avgFrameIntervalNs) {
+            return 0; // never stall on a bad estimate
+        }
+        return Math.max(1, (long) ((needed - tokens) / bytesPerNs));
+    }
+
+    /**
+     * Takes a sent packet out of the bucket.
+     */
+    public void onSent(int length, long now) {
+        blockedSinceNs = 0;
+        tokens -= length;
+        frameBytes += length;
+
+        long overrun = (avgFrameIntervalNs > 0) ? now - frameStartNs - (long) avgFrameIntervalNs : 0;
+        debtNanos = Math.max(0, overrun);
+    }
+
+    private void onFrameStart(long timestampUs, int frameSize, long now) {
+        if (frameTimestampUs != Long.MIN_VALUE) {
+            long intervalNs = (timestampUs - frameTimestampUs) * 1000L;
+            if (intervalNs > 0 && intervalNs < MAX_FRAME_INTERVAL_NS) {
+                avgFrameIntervalNs = (avgFrameIntervalNs == 0) ? intervalNs
+                        : avgFrameIntervalNs + AVERAGE_WEIGHT * (intervalNs - avgFrameIntervalNs);
+            }
+            avgFrameBytes = (avgFrameBytes == 0) ? frameBytes
+                    : avgFrameBytes + AVERAGE_WEIGHT * (frameBytes - avgFrameBytes);
+        }
+        frameTimestampUs = timestampUs;
+        frameStartNs = now;
+        frameBytes = 0;
+
+        double maxBytesPerNs = maxBitrate / 8e9;
+        bytesPerNs = maxBytesPerNs;
+        if (avgFrameIntervalNs > 0) {
+            double bytes = Math.max(avgFrameBytes, frameSize);
+            if (bytes > 0) {
+                bytesPerNs = Math.min(maxBytesPerNs, bytes / (pacingShare * avgFrameIntervalNs));
+            }
+        }
+        pacingRate = (long) (bytesPerNs * 8e9);
+    }
+
+    private void refill(long now) {
+        if (lastRefillNs != 0) {
+            tokens = Math.min(burstSize, tokens + (now - lastRefillNs) * bytesPerNs);
+        } else {
+            tokens = burstSize;
+        }
+        lastRefillNs = now;
+    }
+}
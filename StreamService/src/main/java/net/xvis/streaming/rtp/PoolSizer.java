@@ -0,0 +1,147 @@
+package net.xvis.streaming.rtp;
+
+/**
+ * Sizes the packet pool of a socket from the queue depth the producer sees.
+ * <p>
+ * The depth is sampled on every packet the producer takes and its maximum kept per window of
+ * {@link #WINDOW_NS}. A window that filled half of the pool, where the frame drop policy starts
+ * shedding frames, or a producer that found no free packet at all, doubles the pool. A pool that
+ * stayed below an eighth of its packets for {@link #SHRINK_WINDOWS} windows in a row is halved.
+ * The pool stays a power of two between the limits.
+ * <p>
+ * Only gives the size the pool should have: the socket resizes when it can, and reports it with
+ * {@link #onResized(int)}. Used by the producer thread, the statistics can be read from any thread.
+ */
+class PoolSizer {
+    static final long WINDOW_NS = 2000000000L;
+    static final int SHRINK_WINDOWS = 15; // 30 s
+
+    private volatile int minPackets;
+    private volatile int maxPackets;
+    private int capacity;
+    private int targetCapacity;
+
+    // current window
+    private long windowStartNs = Long.MIN_VALUE;
+    private int windowHighWater;
+    private int quietWindows;
+
+    private volatile int highWaterMark;
+    private volatile int lastWindowHighWater;
+    private volatile long exhaustions;
+    private volatile int resizes;
+
+    /**
+     * @param capacity The packets the pool starts with, a power of two within the limits
+     */
+    PoolSizer(int capacity, int minPackets, int maxPackets) {
+        setLimits(minPackets, maxPackets);
+        this.capacity = capacity;
+        targetCapacity = clamp(capacity);
+    }
+
+    /**
+     * @param minPackets A power of two, at least 2
+     * @param maxPackets A power of two, at least minPackets
+     */
+    void setLimits(int minPackets, int maxPackets) {
+        if (minPackets < 2 || maxPackets < minPackets
+                || Integer.bitCount(minPackets) != 1 || Integer.bitCount(maxPackets) != 1) {
+            throw new IllegalArgumentException("Invalid pool limits " + minPackets + "-" + maxPackets);
+        }
+        this.minPackets = minPackets;
+        this.maxPackets = maxPackets;
+    }
+
+    int getMinPackets() {
+        return minPackets;
+    }
+
+    int getMaxPackets() {
+        return maxPackets;
+    }
+
+    /**
+     * Samples the queue depth before the producer takes a packet.
+     *
+     * @param depth The packets queued and not sent yet
+     * @return The number of packets the pool should have
+     */
+    int onDequeue(int depth, long now) {
+        if (depth > windowHighWater) {
+            windowHighWater = depth;
+            if (depth > highWaterMark) {
+                highWaterMark = depth;
+            }
+        }
+        if (depth >= capacity) {
+            // The producer is about to wait for the send thread
+            exhaustions++;
+            targetCapacity = clamp(capacity * 2);
+        }
+
+        if (windowStartNs == Long.MIN_VALUE) {
+            windowStartNs = now;
+        } else if (now - windowStartNs >= WINDOW_NS) {
+            endWindow();
+            windowStartNs = now;
+        }
+        // The limits may have moved
+        return clamp(targetCapacity);
+    }
+
+    void onResized(int newCapacity) {
+        capacity = newCapacity;
+        targetCapacity = newCapacity;
+        quietWindows = 0;
+        resizes++;
+    }
+
+    /**
+     * Returns the most packets that were queued at once since the socket was created.
+     */
+    int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Returns the most packets that were queued at once in the last complete window.
+     */
+    int getLastWindowHighWater() {
+        return lastWindowHighWater;
+    }
+
+    /**
+     * Returns how many times the producer found no free packet.
+     */
+    long getExhaustions() {
+        return exhaustions;
+    }
+
+    int getResizes() {
+        return resizes;
+    }
+
+    private void endWindow() {
+        int highWater = windowHighWater;
+        lastWindowHighWater = highWater;
+        windowHighWater = 0;
+        if (highWater >= capacity / 2) {
+            quietWindows = 0;
+            targetCapacity = clamp(capacity * 2);
+        } else if (highWater < capacity / 8) {
+            if (++quietWindows >= SHRINK_WINDOWS) {
+                quietWindows = 0;
+                targetCapacity = clamp(capacity / 2);
+            }
+        } else {
+            // A shrink not done yet is off
+            quietWindows = 0;
+            targetCapacity = capacity;
+        }
+    }
+
+    private int clamp(int packets) {
+        return Math.max(minPackets, Math.min(maxPackets, packets));
+    }
+}
@@ -0,0 +1,160 @@
+package net.xvis.streaming.rtp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What a client's RTCP reception reports (RFC 3550, section 6.4.1) tell about its delivery: loss,
+ * interarrival jitter and round-trip time, the last report and a window of the previous ones.
+ * <p>
+ * Fed by the receive thread only, under the socket's lock. The getters take no lock: the window
+ * slots are single atomic values, a reader racing a report sees each slot either before or after
+ * it. For a multicast group, the reports of all its members count.
+ */
+public class ReceptionStats {
+    public static final int WINDOW_SIZE = 16; // reports
+
+    // [fraction lost (1/256) | jitter (us) | round-trip time (us, -1 if unknown)] per report
+    private static final int SLOT_SIZE = 3;
+
+    private final AtomicLongArray window = new AtomicLongArray(WINDOW_SIZE * SLOT_SIZE);
+    private volatile long reportCount;
+
+    private volatile int fractionLost;
+    private volatile int cumulativeLost;
+    private volatile int highestSequenceNumber = -1;
+    private volatile long jitterUs;
+    private volatile long roundTripTimeUs = -1;
+    private volatile long lastReportNanos;
+
+    /**
+     * @param highestSequenceNumber The highest one received, in the stream's numbering
+     * @param roundTripTimeUs -1 if the report does not tell
+     */
+    void onReport(int fractionLost, int cumulativeLost, int highestSequenceNumber, long jitterUs,
+                  long roundTripTimeUs, long now) {
+        long count = reportCount;
+        int slot = (int) (count % WINDOW_SIZE) * SLOT_SIZE;
+        window.lazySet(slot, fractionLost);
+        window.lazySet(slot + 1, jitterUs);
+        window.lazySet(slot + 2, roundTripTimeUs);
+
+        this.fractionLost = fractionLost;
+        this.cumulativeLost = cumulativeLost;
+        this.highestSequenceNumber = highestSequenceNumber;
+        this.jitterUs = jitterUs;
+        if (roundTripTimeUs >= 0) {
+            this.roundTripTimeUs = roundTripTimeUs;
+        }
+        lastReportNanos = now;
+        reportCount = count + 1;
+    }
+
+    public long getReportCount() {
+        return reportCount;
+    }
+
+    /**
+     * Returns when the last report came, on the System.nanoTime() clock, 0 before the first one.
+     */
+    public long getLastReportNanos() {
+        return lastReportNanos;
+    }
+
+    /**
+     * Returns the fraction of the packets lost between the last two reports.
+     */
+    public float getFractionLost() {
+        return fractionLost / 256f;
+    }
+
+    /**
+     * Returns the fraction of the packets lost over the reports of the window.
+     */
+    public float getAverageFractionLost() {
+        int reports = windowReports();
+        if (reports == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < reports; i++) {
+            sum += window.get(i * SLOT_SIZE);
+        }
+        return sum / (256f * reports);
+    }
+
+    /**
+     * Returns the packets lost since the client joined, less the duplicates it got.
+     */
+    public int getCumulativeLost() {
+        return cumulativeLost;
+    }
+
+    /**
+     * Returns the highest sequence number the client received, in the stream's numbering, -1
+     * before the first report.
+     */
+    public int getHighestSequenceNumber() {
+        return highestSequenceNumber;
+    }
+
+    /**
+     * Returns the interarrival jitter of the last report, in microseconds.
+     */
+    public long getJitterUs() {
+        return jitterUs;
+    }
+
+    /**
+     * Returns the highest interarrival jitter of the window, in microseconds.
+     */
+    public long getMaxJitterUs() {
+        long max = 0;
+        for (int i = 0, reports = windowReports(); i < reports; i++) {
+            max = Math.max(max, window.get(i * SLOT_SIZE + 1));
+        }
+        return max;
+    }
+
+    /**
+     * Returns the last round-trip time measured, in microseconds, -1 until a report echoes one of
+     * the sender reports.
+     */
+    public long getRoundTripTimeUs() {
+        return roundTripTimeUs;
+    }
+
+    /**
+     * Returns the shortest round-trip time of the window, the one with the least queueing, in
+     * microseconds, -1 if none was measured.
+     */
+    public long getMinRoundTripTimeUs() {
+        long min = -1;
+        for (int i = 0, reports = windowReports(); i < reports; i++) {
+            long roundTripTimeUs = window.get(i * SLOT_SIZE + 2);
+            if (roundTripTimeUs >= 0 && (min < 0 || roundTripTimeUs < min)) {
+                min = roundTripTimeUs;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Returns the average round-trip time of the window, in microseconds, -1 if none was measured.
+     */
+    public long getAverageRoundTripTimeUs() {
+        long sum = 0;
+        int samples = 0;
+        for (int i = 0, reports = windowReports(); i < reports; i++) {
+            long roundTripTimeUs = window.get(i * SLOT_SIZE + 2);
+            if (roundTripTimeUs >= 0) {
+                sum += roundTripTimeUs;
+                samples++;
+            }
+        }
+        return (samples > 0) ? sum / samples : -1;
+    }
+
+    private int windowReports() {
+        return (int) Math.min(reportCount, WINDOW_SIZE);
+    }
+}
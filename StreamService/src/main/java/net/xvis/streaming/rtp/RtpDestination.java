@@ -0,0 +1,406 @@
+package net.xvis.streaming.rtp;
+
+import android.os.Build;
+import android.util.Log;
+
+import net.xvis.streaming.rtcp.SenderReport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A unicast client or a multicast group, with a connected channel on the socket's RTP port and a
+ * backlog for the packets the channel does not take right away.
+ */
+public class RtpDestination {
+    public static final String TAG = "RtpDestination";
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    public enum OverflowPolicy {
+        /** Drops the oldest queued packet to make room for the new one. */
+        DROP_OLDEST,
+        /** Drops the whole backlog, the client restarts from the new packet. */
+        DROP_ALL
+    }
+
+    private final InetAddress address;
+    private final int rtpPort;
+    private final int rtcpPort;
+    private final InetSocketAddress rtcpAddress;
+    private final DatagramChannel channel;
+    // the largest packet the local interface to the client carries unfragmented, 0 if unknown
+    private final int interfacePacketSize;
+    // the largest packet the client asked for (RTSP Blocksize), 0 for no limit
+    private volatile int requestedPacketSize;
+
+    // backlog, a circular array, under the socket's syncObject
+    private final RtpSocket.RtpData[] queue;
+    private int queueHead;
+    private int queueSize;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    // statistics
+    private volatile long sentPackets;
+    private volatile long sentBytes;
+    private volatile long droppedPackets;
+    private volatile long retransmittedPackets;
+    private volatile int queueDepth;
+    private volatile int maxQueueDepth;
+
+    private final BandwidthEstimator bandwidthEstimator = new BandwidthEstimator();
+    private final ReceptionStats receptionStats = new ReceptionStats();
+    private final SenderReport senderReport = new SenderReport();
+    private final RtpRewriter rewriter = new RtpRewriter();
+    // paces the cached packets as one frame, at the max bitrate set when the catch-up starts
+    private final PacketPacer catchUpPacer = new PacketPacer();
+
+    RtpDestination(InetAddress address, int rtpPort, int rtcpPort, InetSocketAddress localAddress, int queueCapacity) throws IOException {
+        this.address = address;
+        this.rtpPort = rtpPort;
+        this.rtcpPort = rtcpPort;
+        this.rtcpAddress = new InetSocketAddress(address, rtcpPort);
+        this.queue = new RtpSocket.RtpData[queueCapacity];
+
+        channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setReuseAddress(true); // joins the socket's port, see RtpReactor.openRtpChannel()
+            channel.socket().bind(localAddress);
+            channel.connect(new InetSocketAddress(address, rtpPort));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        interfacePacketSize = findInterfacePacketSize();
+    }
+
+    /**
+     * Returns the largest packet the network interface the client is reached through carries
+     * without IP fragmentation, e.g. less than 1472 bytes through a VPN's tun interface. The
+     * connected channel has the local address the system routes to the client from.
+     */
+    private int findInterfacePacketSize() {
+        try {
+            NetworkInterface networkInterface = getNetworkInterface();
+            int mtu = (networkInterface != null) ? networkInterface.getMTU() : -1;
+            if (mtu <= 0) {
+                return 0;
+            }
+            // IPv6 + UDP = 40 + 8, IPv4 + UDP = 20 + 8
+            return mtu - ((address instanceof Inet6Address) ? 48 : 28);
+        } catch (SocketException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the network interface the system routes to the client through, null if unknown.
+     */
+    NetworkInterface getNetworkInterface() throws SocketException {
+        InetAddress localAddress = channel.socket().getLocalAddress();
+        return (localAddress != null && !localAddress.isAnyLocalAddress())
+                ? NetworkInterface.getByInetAddress(localAddress) : null;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public int getRtpPort() {
+        return rtpPort;
+    }
+
+    public int getRtcpPort() {
+        return rtcpPort;
+    }
+
+    public InetSocketAddress getRtcpAddress() {
+        return rtcpAddress;
+    }
+
+    /**
+     * Returns true if RTCP is multiplexed with RTP on the RTP port (RFC 5761).
+     */
+    public boolean isRtcpMux() {
+        return rtpPort == rtcpPort;
+    }
+
+    DatagramChannel getChannel() {
+        return channel;
+    }
+
+    public boolean isMulticast() {
+        return address.isMulticastAddress();
+    }
+
+    /**
+     * Sets the TTL of the packets sent to a multicast group. Only effective from API 24, where
+     * socket options can be set on a DatagramChannel. Older devices keep the system default of 1,
+     * which does not leave the local network.
+     */
+    void setTimeToLive(int timeToLive) {
+        if (Build.VERSION.SDK_INT >= 24) {
+            try {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, timeToLive);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to set the TTL of " + address + ", " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the largest RTP packet this client gets, 0 if it takes whatever the socket sends.
+     * The smallest of the size the client asked for and of what its network interface carries.
+     */
+    public int getMaxPacketSize() {
+        int requested = requestedPacketSize;
+        if (requested == 0 || interfacePacketSize == 0) {
+            return Math.max(requested, interfacePacketSize);
+        }
+        return Math.min(requested, interfacePacketSize);
+    }
+
+    void setRequestedPacketSize(int packetSize) {
+        requestedPacketSize = packetSize;
+    }
+
+    /**
+     * Returns the sequence number of the first packet this destination gets, for RTP-Info.
+     */
+    public int getInitialSequenceNumber() {
+        return rewriter.getInitialSequenceNumber();
+    }
+
+    /**
+     * Returns the RTP timestamp of the first packet this destination gets, for RTP-Info.
+     */
+    public long getInitialRtpTimestamp() {
+        return rewriter.getInitialTimestamp();
+    }
+
+    RtpRewriter getRewriter() {
+        return rewriter;
+    }
+
+    SenderReport getSenderReport() {
+        return senderReport;
+    }
+
+    /**
+     * Returns the estimate of the bandwidth to this destination, fed by its transport-wide feedback.
+     */
+    public BandwidthEstimator getBandwidthEstimator() {
+        return bandwidthEstimator;
+    }
+
+    /**
+     * Returns the loss, jitter and round-trip time the reception reports of this destination tell.
+     */
+    public ReceptionStats getReceptionStats() {
+        return receptionStats;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getSentPackets() {
+        return sentPackets;
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    public long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * Returns the number of packets sent again because the client reported them lost.
+     */
+    public long getRetransmittedPackets() {
+        return retransmittedPackets;
+    }
+
+    /**
+     * Returns the number of packets waiting in this destination's backlog.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Sends the packet, or queues it behind the packets this destination could not send yet.
+     */
+    void dispatch(RtpSocket.RtpData rtpData) {
+        if ((queueSize == 0 || flush()) && trySend(rtpData)) {
+            return;
+        }
+
+        if (queueSize == queue.length) {
+            if (overflowPolicy == OverflowPolicy.DROP_ALL) {
+                while (queueSize > 0) {
+                    poll().unref();
+                    droppedPackets++;
+                }
+            } else {
+                poll().unref();
+                droppedPackets++;
+            }
+        }
+        rtpData.ref();
+        queue[(queueHead + queueSize) % queue.length] = rtpData;
+        queueSize++;
+        updateQueueDepth();
+    }
+
+    /**
+     * Sends as much of the backlog as the channel takes.
+     *
+     * @return true when the backlog is empty
+     */
+    boolean flush() {
+        while (queueSize > 0) {
+            if (!trySend(queue[queueHead])) {
+                return false;
+            }
+            poll().unref();
+        }
+        return true;
+    }
+
+    /**
+     * Starts sending the client the cached packets from the given one on, at the given rate in
+     * bits per second.
+     */
+    void startCatchUp(int sequenceNumber, long bitrate) {
+        catchUpPacer.reset();
+        catchUpPacer.setMaxBitrate(bitrate);
+        rewriter.catchUpFrom(sequenceNumber);
+    }
+
+    /**
+     * Sends the cached packets the client still misses, as many as the pacer lets through and
+     * the channel takes.
+     *
+     * @return Nanoseconds until the next cached packet may go, 0 to come back as soon as the
+     * channel takes more, Long.MAX_VALUE once the client gets the live packets
+     */
+    long catchUp(GopCache cache, RtpHeaderExtension[] extensions, int maxPackets, long now) {
+        for (int i = 0; i < maxPackets && rewriter.isCatchingUp(); i++) {
+            int sequenceNumber = rewriter.getCatchUpSequenceNumber();
+            ByteBuffer packet = cache.get(sequenceNumber);
+            if (packet == null) {
+                if (cache.isValid() && sequenceNumber != cache.getEndSequenceNumber()) {
+                    // A keyframe came in the meantime, the client starts over from it
+                    rewriter.catchUpFrom(cache.getFirstSequenceNumber());
+                    continue;
+                }
+                // Caught up, or the group did not fit in the cache: the client waits for the
+                // next keyframe
+                rewriter.finishCatchUp(sequenceNumber);
+                break;
+            }
+            int length = packet.remaining();
+            long delay = catchUpPacer.delayNanos(length, 0, now);
+            if (delay > 0) {
+                return delay;
+            }
+            try {
+                if (channel.write(rewriter.rewriteCached(packet, extensions, now)) == 0) {
+                    return 0;
+                }
+                sentPackets++;
+                sentBytes += length;
+            } catch (IOException e) {
+                droppedPackets++;
+            }
+            catchUpPacer.onSent(length, now);
+            rewriter.catchUpFrom((sequenceNumber + 1) & 0xFFFF);
+        }
+        return rewriter.isCatchingUp() ? 0 : Long.MAX_VALUE;
+    }
+
+    /**
+     * Sends a retransmission right away. It does not wait behind the backlog: if the channel does
+     * not take it, it is dropped and the client will ask again.
+     */
+    void resend(ByteBuffer packet) {
+        try {
+            if (channel.write(packet) > 0) {
+                retransmittedPackets++;
+            }
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Drops the backlog, its packets count as dropped.
+     */
+    void dropBacklog() {
+        while (queueSize > 0) {
+            poll().unref();
+            droppedPackets++;
+        }
+    }
+
+    void close() {
+        while (queueSize > 0) {
+            poll().unref();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private RtpSocket.RtpData poll() {
+        RtpSocket.RtpData rtpData = queue[queueHead];
+        queue[queueHead] = null;
+        queueHead = (queueHead + 1) % queue.length;
+        queueSize--;
+        updateQueueDepth();
+        return rtpData;
+    }
+
+    /**
+     * @return false if the channel would block, true if the packet is done with
+     */
+    private boolean trySend(RtpSocket.RtpData rtpData) {
+        ByteBuffer[] buffers = rewriter.rewrite(rtpData, rtpData.getBuffers());
+        if (buffers == null) {
+            return true;
+        }
+        try {
+            if (channel.write(buffers) == 0) {
+                return false;
+            }
+            sentPackets++;
+            sentBytes += rtpData.getLength();
+        } catch (IOException e) {
+            // e.g. PortUnreachableException while the client is not listening yet
+            droppedPackets++;
+        }
+        return true;
+    }
+
+    private void updateQueueDepth() {
+        queueDepth = queueSize;
+        if (queueSize > maxQueueDepth) {
+            maxQueueDepth = queueSize;
+        }
+    }
+}
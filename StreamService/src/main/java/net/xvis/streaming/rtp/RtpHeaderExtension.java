@@ -0,0 +1,99 @@
+package net.xvis.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An RTP header extension (RFC 8285). The socket sends its extensions in the one-byte header
+ * form, after the CSRC list: up to 14 elements of 1 to 16 bytes, announced in the SDP with
+ * a=extmap:&lt;id&gt; &lt;uri&gt;.
+ * <p>
+ * A value known when the packet is made is written by {@link #onSetHeader(ByteBuffer, int, long)}
+ * on the producer thread, a value that depends on when the packet leaves by
+ * {@link #onSend(ByteBuffer, int, int, long)} on the send thread.
+ */
+public abstract class RtpHeaderExtension {
+    public static final int MAX_LENGTH = 16;
+
+    private final String uri;
+    private final int length;
+    // set when the extension is added to a socket
+    int id;
+    int offset; // of the value, from the start of the extension block
+
+    protected RtpHeaderExtension(String uri, int length) {
+        if (length < 1 || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Invalid header extension length " + length);
+        }
+        this.uri = uri;
+        this.length = length;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Writes the value when the producer sets the packet's header.
+     *
+     * @param offset Position of the value in the header
+     */
+    protected void onSetHeader(ByteBuffer header, int offset, long timestampUs) {
+    }
+
+    /**
+     * Writes the value right before the packet is sent, under the socket's lock.
+     *
+     * @param offset Position of the value in the header
+     * @param packetLength Length of the whole packet
+     */
+    protected void onSend(ByteBuffer header, int offset, int packetLength, long now) {
+    }
+
+    /**
+     * Writes the value of a copy of a packet that is sent again, e.g. a retransmission, under the
+     * socket's lock. The copy keeps the value of the original by default.
+     *
+     * @param offset Position of the value in the header
+     * @param packetLength Length of the whole copy
+     * @return false to take the element out of the copy
+     */
+    protected boolean onResend(ByteBuffer header, int offset, int packetLength, long now) {
+        return true;
+    }
+
+    /**
+     * Updates the elements of a copy of a packet sent again, see
+     * {@link #onResend(ByteBuffer, int, int, long)}. An element taken out is replaced with padding
+     * bytes (RFC 8285, section 4.2), the header keeps its length.
+     *
+     * @param packet Starts with the RTP header of the copy
+     */
+    static void resend(RtpHeaderExtension[] extensions, ByteBuffer packet, int packetLength, long now) {
+        if ((packet.get(0) & 0x10) == 0) {
+            return;
+        }
+        int extensionStart = RtpSocket.HEADER_SIZE + (packet.get(0) & 0x0F) * Integer.BYTES;
+        // header extension: 16 bits profile, 16 bits length in 32-bit words
+        int extensionEnd = extensionStart + Integer.BYTES
+                + (packet.getShort(extensionStart + 2) & 0xFFFF) * Integer.BYTES;
+        for (RtpHeaderExtension extension : extensions) {
+            int offset = extensionStart + extension.offset;
+            if (offset + extension.length > extensionEnd) {
+                continue; // added after the packet was sent
+            }
+            if (!extension.onResend(packet, offset, packetLength, now)) {
+                for (int i = offset - 1; i < offset + extension.length; i++) {
+                    packet.put(i, (byte) 0);
+                }
+            }
+        }
+    }
+}
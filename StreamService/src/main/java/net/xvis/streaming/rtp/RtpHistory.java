@@ -0,0 +1,83 @@
+package net.xvis.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies of the packets a stream sent recently, by sequence number, for retransmission.
+ * <p>
+ * The copies live in one direct slab, one slot per sequence number modulo the capacity, so the
+ * memory is bounded by capacity * max packet size. A packet older than the maximum age is not
+ * handed out anymore: the receiver has given up on it or is about to.
+ * <p>
+ * Only used by the sending thread.
+ */
+class RtpHistory {
+    private final ByteBuffer[] slots;
+    private final int[] sequenceNumbers;
+    private final long[] sentTimesNs;
+    private final int mask;
+    private final long maxAgeNs;
+
+    /**
+     * @param capacity The number of packets kept, a power of two
+     * @param maxPacketSize The size of the largest packet
+     * @param maxAgeMs How long a packet can be retransmitted after it was sent
+     */
+    RtpHistory(int capacity, int maxPacketSize, long maxAgeMs) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("History size must be a power of two: " + capacity);
+        }
+        ByteBuffer slab = ByteBuffer.allocateDirect(capacity * maxPacketSize);
+        slots = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slab.limit((i + 1) * maxPacketSize);
+            slab.position(i * maxPacketSize);
+            slots[i] = slab.slice();
+        }
+        sequenceNumbers = new int[capacity];
+        sentTimesNs = new long[capacity];
+        mask = capacity - 1;
+        maxAgeNs = maxAgeMs * 1000000L;
+        clear();
+    }
+
+    int getCapacity() {
+        return slots.length;
+    }
+
+    long getMaxAgeMs() {
+        return maxAgeNs / 1000000L;
+    }
+
+    void clear() {
+        for (int i = 0; i < sequenceNumbers.length; i++) {
+            sequenceNumbers[i] = -1;
+        }
+    }
+
+    void put(RtpSocket.RtpData rtpData, long now) {
+        int sequenceNumber = rtpData.getSequenceNumber();
+        int index = sequenceNumber & mask;
+        ByteBuffer slot = slots[index];
+        slot.clear();
+        for (ByteBuffer buffer : rtpData.getBuffers()) {
+            slot.put(buffer);
+        }
+        slot.flip();
+        sequenceNumbers[index] = sequenceNumber;
+        sentTimesNs[index] = now;
+    }
+
+    /**
+     * Returns the packet, positioned at its first byte, or null if it is not kept anymore.
+     */
+    ByteBuffer get(int sequenceNumber, long now) {
+        int index = sequenceNumber & mask;
+        if (sequenceNumbers[index] != sequenceNumber || now - sentTimesNs[index] > maxAgeNs) {
+            return null;
+        }
+        ByteBuffer slot = slots[index];
+        slot.rewind();
+        return slot;
+    }
+}
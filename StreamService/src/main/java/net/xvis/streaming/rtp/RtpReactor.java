@@ -0,0 +1,344 @@
+package net.xvis.streaming.rtp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The process-wide RTP/RTCP I/O reactor: hands out port pairs, receives on one selector thread and
+ * runs the send loops of all streams on a small pool of send threads.
+ */
+public class RtpReactor {
+    public static final String TAG = "RtpReactor";
+
+    public static final int DEFAULT_MIN_PORT = 45004;
+    public static final int DEFAULT_MAX_PORT = 45999;
+
+    private static final int MAX_DATAGRAM_SIZE = 65536;
+    private static final long MAX_IDLE_NS = 100000000L; // 100 ms, only bounds a missed wakeup
+
+    /**
+     * Handles the datagrams received on a channel registered with the reactor.
+     * Called on the receive thread, the packet buffer is only valid during the call.
+     */
+    public interface Receiver {
+        void onReceive(ByteBuffer packet, SocketAddress source);
+    }
+
+    /**
+     * A stream's send loop, run on one of the send threads.
+     */
+    interface Sender {
+        /**
+         * Sends whatever is ready to be sent.
+         *
+         * @return Nanoseconds until the sender wants to run again, 0 to run again right away,
+         * Long.MAX_VALUE to run again only after {@link SendThread#wakeup()}
+         */
+        long process(long now);
+    }
+
+    private static int sendThreadCount = Math.min(2, Runtime.getRuntime().availableProcessors());
+    private static RtpReactor instance;
+
+    // port allocation
+    private int minPort = DEFAULT_MIN_PORT;
+    private int maxPort = DEFAULT_MAX_PORT;
+    private int nextPort = DEFAULT_MIN_PORT;
+    private final Set<Integer> usedPorts = new HashSet<>();
+    // the RTCP channels bound with their RTP channel and not handed out yet, by RTP port
+    private final Map<Integer, DatagramChannel> reservedRtcpChannels = new HashMap<>();
+
+    private final Selector selector;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final SendThread[] sendThreads;
+    private int nextSendThread = 0;
+
+    /**
+     * Sets the number of send threads. Must be called before the reactor is first used.
+     */
+    public static synchronized void setSendThreadCount(int count) {
+        if (instance != null) {
+            throw new IllegalStateException("The RTP reactor is already running");
+        }
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one send thread is needed");
+        }
+        sendThreadCount = count;
+    }
+
+    public static synchronized RtpReactor getInstance() {
+        if (instance == null) {
+            try {
+                instance = new RtpReactor(sendThreadCount);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to open the RTP reactor: " + e.getMessage());
+            }
+        }
+        return instance;
+    }
+
+    private RtpReactor(int sendThreadCount) throws IOException {
+        selector = Selector.open();
+        ReceiveThread receiveThread = new ReceiveThread();
+        receiveThread.start();
+
+        sendThreads = new SendThread[sendThreadCount];
+        for (int i = 0; i < sendThreadCount; i++) {
+            sendThreads[i] = new SendThread(i);
+            sendThreads[i].start();
+        }
+    }
+
+    /**
+     * Sets the range of local ports streams get their RTP/RTCP port pairs from. RTP ports are even,
+     * each RTCP port is the RTP port plus one.
+     */
+    public synchronized void setPortRange(int minPort, int maxPort) {
+        if (minPort % 2 != 0) {
+            minPort++;
+        }
+        if (minPort <= 0 || maxPort > 65535 || maxPort <= minPort) {
+            throw new IllegalArgumentException("Invalid port range " + minPort + "-" + maxPort);
+        }
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+        this.nextPort = minPort;
+    }
+
+    /**
+     * Binds a free RTP/RTCP port pair exclusively and returns the RTP channel, the RTCP one is
+     * kept for {@link #openRtcpChannel(int)}.
+     */
+    synchronized DatagramChannel openRtpChannel() throws IOException {
+        int pairs = (maxPort - minPort + 1) / 2;
+        for (int i = 0; i < pairs; i++) {
+            int rtpPort = nextPort;
+            nextPort = (rtpPort + 3 > maxPort) ? minPort : rtpPort + 2;
+            if (usedPorts.contains(rtpPort)) {
+                continue;
+            }
+
+            DatagramChannel rtpChannel = null;
+            DatagramChannel rtcpChannel = null;
+            try {
+                rtpChannel = openChannel(rtpPort);
+                rtcpChannel = openChannel(rtpPort + 1);
+                // A bind without SO_REUSEADDR still fails on the port, see RtpDestination
+                rtpChannel.socket().setReuseAddress(true);
+                usedPorts.add(rtpPort);
+                reservedRtcpChannels.put(rtpPort, rtcpChannel);
+                return rtpChannel;
+            } catch (IOException e) {
+                Log.d(TAG, "Port pair " + rtpPort + "-" + (rtpPort + 1) + " unavailable: " + e.getMessage());
+                close(rtpChannel);
+                close(rtcpChannel);
+            }
+        }
+        throw new IOException("No free RTP/RTCP port pair in " + minPort + "-" + maxPort);
+    }
+
+    /**
+     * Returns the non-blocking RTCP channel bound with the given RTP port. The caller owns it.
+     */
+    synchronized DatagramChannel openRtcpChannel(int rtpPort) throws IOException {
+        DatagramChannel rtcpChannel = reservedRtcpChannels.remove(rtpPort);
+        if (rtcpChannel == null) {
+            throw new IOException("No RTCP channel reserved for RTP port " + rtpPort);
+        }
+        return rtcpChannel;
+    }
+
+    /**
+     * Frees the port pair, the RTCP channel is closed if it was never handed out.
+     */
+    synchronized void releasePortPair(int rtpPort) {
+        usedPorts.remove(rtpPort);
+        close(reservedRtcpChannels.remove(rtpPort));
+    }
+
+    private static DatagramChannel openChannel(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Starts receiving on the channel. The channel must be non-blocking.
+     */
+    public void registerReceiver(final DatagramChannel channel, final Receiver receiver) {
+        selectorTasks.add(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, receiver);
+                } catch (ClosedChannelException e) {
+                    Log.e(TAG, "Channel closed before registration");
+                }
+            }
+        });
+        selector.wakeup();
+    }
+
+    public void unregisterReceiver(final DatagramChannel channel) {
+        selectorTasks.add(new Runnable() {
+            @Override
+            public void run() {
+                SelectionKey key = channel.keyFor(selector);
+                if (key != null) {
+                    key.cancel();
+                }
+            }
+        });
+        selector.wakeup();
+    }
+
+    /**
+     * Assigns a stream's send loop to the least loaded send thread.
+     */
+    synchronized SendThread register(Sender sender) {
+        SendThread sendThread = sendThreads[nextSendThread];
+        for (SendThread thread : sendThreads) {
+            if (thread.senders.size() < sendThread.senders.size()) {
+                sendThread = thread;
+            }
+        }
+        nextSendThread = (nextSendThread + 1) % sendThreads.length;
+        sendThread.senders.add(sender);
+        sendThread.wakeup();
+        return sendThread;
+    }
+
+    synchronized void unregister(Sender sender) {
+        for (SendThread thread : sendThreads) {
+            thread.senders.remove(sender);
+        }
+    }
+
+    private static void close(DatagramChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private class ReceiveThread extends Thread {
+        ReceiveThread() {
+            super("RtpReactor-receive");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+            while (true) {
+                try {
+                    Runnable task;
+                    while ((task = selectorTasks.poll()) != null) {
+                        task.run();
+                    }
+                    selector.select();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid() || !key.isReadable()) {
+                            continue;
+                        }
+                        DatagramChannel channel = (DatagramChannel) key.channel();
+                        Receiver receiver = (Receiver) key.attachment();
+                        SocketAddress source;
+                        buffer.clear();
+                        while ((source = channel.receive(buffer)) != null) {
+                            buffer.flip();
+                            try {
+                                receiver.onReceive(buffer, source);
+                            } catch (RuntimeException e) {
+                                Log.e(TAG, "Receiver failed: " + e.getMessage());
+                            }
+                            buffer.clear();
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Receive failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the send loops of the streams assigned to it, sleeping until the earliest of them
+     * wants to run again or a producer wakes it up.
+     */
+    static class SendThread extends Thread {
+        private final List<Sender> senders = new CopyOnWriteArrayList<>();
+        private volatile boolean sleeping;
+        private volatile boolean signalled;
+
+        SendThread(int index) {
+            super("RtpReactor-send-" + index);
+            setDaemon(true);
+        }
+
+        /**
+         * Called by producers after they published packets.
+         */
+        void wakeup() {
+            signalled = true;
+            if (sleeping) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                signalled = false;
+                long now = System.nanoTime();
+                long delay = Long.MAX_VALUE;
+                for (Sender sender : senders) {
+                    try {
+                        delay = Math.min(delay, sender.process(now));
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Sender failed: " + e.getMessage());
+                    }
+                }
+                if (delay == 0) {
+                    continue;
+                }
+
+                sleeping = true;
+                if (!signalled) {
+                    LockSupport.parkNanos(Math.min(delay, MAX_IDLE_NS));
+                }
+                sleeping = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package net.xvis.streaming.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Numbers the packets of a stream for one subscriber. A client that joins a running stream gets
+ * sequence numbers and timestamps starting at random values of its own (RFC 3550, section 5.1),
+ * known before its first packet is sent, so that the PLAY response can tell them in RTP-Info.
+ * <p>
+ * The offsets from the stream's numbering are fixed by the first media packet written to the
+ * subscriber. The packets stay shared and are not changed: their header is copied and rewritten
+ * in a buffer of the subscriber's. So is the FEC header of a parity packet, whose recovery fields
+ * cover the sequence numbers and timestamps of the media packets.
+ * <p>
+ * A subscriber that joins while the {@link GopCache} holds a group of pictures catches up first:
+ * it is sent the cached packets, from the keyframe on, before the live ones. Its numbering starts
+ * at the keyframe, the cached packets and the live ones that follow keep their spacing.
+ * <p>
+ * Used by the thread that writes to the subscriber, under the destination's lock. The offsets can
+ * be read from any thread once {@link #isStarted()}.
+ */
+class RtpRewriter {
+    private static final Random random = new Random();
+
+    private final int initialSequenceNumber;
+    private final int initialTimestamp;
+    private volatile boolean started;
+    private volatile int sequenceOffset;
+    private volatile int timestampOffset;
+    // the stream's sequence number of the next cached packet to send, -1 once live
+    private int catchUpSequenceNumber = -1;
+    // the first live packet, the older ones went out from the cache
+    private int liveSequenceNumber = -1;
+
+    private final ByteBuffer header = ByteBuffer.allocateDirect(RtpSocket.MAX_HEADER_SIZE);
+    private final ByteBuffer fecHeader = ByteBuffer.allocateDirect(FecEncoder.FEC_HEADER_SIZE);
+    private final ByteBuffer[] buffers = new ByteBuffer[2];
+    private final ByteBuffer[] fragmentBuffers = new ByteBuffer[3];
+    private final ByteBuffer[] fecBuffers = new ByteBuffer[3];
+    private final ByteBuffer[] cachedBuffers = new ByteBuffer[2];
+
+    RtpRewriter() {
+        initialSequenceNumber = random.nextInt(0x10000);
+        initialTimestamp = random.nextInt();
+    }
+
+    /**
+     * Returns the sequence number of the first packet the subscriber gets.
+     */
+    int getInitialSequenceNumber() {
+        return initialSequenceNumber;
+    }
+
+    /**
+     * Returns the RTP timestamp of the first packet the subscriber gets, unsigned.
+     */
+    long getInitialTimestamp() {
+        return initialTimestamp & 0xFFFFFFFFL;
+    }
+
+    boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Returns what is added to the stream's RTP timestamps for this subscriber.
+     */
+    int getTimestampOffset() {
+        return timestampOffset;
+    }
+
+    /**
+     * Sends the cached packets from the given one on before the live ones.
+     */
+    void catchUpFrom(int sequenceNumber) {
+        catchUpSequenceNumber = sequenceNumber;
+    }
+
+    boolean isCatchingUp() {
+        return catchUpSequenceNumber >= 0;
+    }
+
+    /**
+     * Returns the stream's sequence number of the next cached packet to send.
+     */
+    int getCatchUpSequenceNumber() {
+        return catchUpSequenceNumber;
+    }
+
+    /**
+     * Goes live: the packets from the given one on are taken as they are sent.
+     */
+    void finishCatchUp(int sequenceNumber) {
+        catchUpSequenceNumber = -1;
+        liveSequenceNumber = sequenceNumber;
+    }
+
+    /**
+     * Returns the buffers to write a cached packet with. The caller moves on to the next one
+     * once it is written. The send-time header extensions are written again, the packet leaves
+     * now, see {@link RtpHeaderExtension#onResend(ByteBuffer, int, int, long)}.
+     *
+     * @param packet Positioned at its first byte, limited to its end
+     */
+    ByteBuffer[] rewriteCached(ByteBuffer packet, RtpHeaderExtension[] extensions, long now) {
+        int start = packet.position();
+        int end = packet.limit();
+        int headerLength = RtpSocket.HEADER_SIZE + (packet.get(start) & 0x0F) * Integer.BYTES;
+        if ((packet.get(start) & 0x10) != 0) {
+            // header extension: 16 bits profile, 16 bits length in 32-bit words
+            headerLength += Integer.BYTES + (packet.getShort(start + headerLength + 2) & 0xFFFF) * Integer.BYTES;
+        }
+        int sequenceNumber = packet.getShort(start + 2) & 0xFFFF;
+        int timestamp = packet.getInt(start + 4);
+        if (!started) {
+            sequenceOffset = initialSequenceNumber - sequenceNumber;
+            timestampOffset = initialTimestamp - timestamp;
+            started = true;
+        }
+        packet.limit(start + headerLength);
+        header.clear();
+        header.put(packet);
+        header.flip();
+        header.putShort(2, (short) (sequenceNumber + sequenceOffset));
+        header.putInt(4, timestamp + timestampOffset);
+        RtpHeaderExtension.resend(extensions, header, end - start, now);
+        packet.limit(end);
+
+        cachedBuffers[0] = header;
+        cachedBuffers[1] = packet;
+        return cachedBuffers;
+    }
+
+    /**
+     * Turns a sequence number of the subscriber, e.g. from a NACK, into the stream's.
+     */
+    int toStreamSequenceNumber(int sequenceNumber) {
+        return (sequenceNumber - sequenceOffset) & 0xFFFF;
+    }
+
+    /**
+     * Rewrites a copy of a retransmitted packet in place, the RTX packet's original sequence
+     * number included (RFC 4588).
+     *
+     * @param originalSequenceNumberOffset Where the original sequence number is, -1 if the
+     * packet is sent again as it was
+     */
+    void rewriteRetransmission(ByteBuffer packet, int originalSequenceNumberOffset) {
+        if (originalSequenceNumberOffset < 0) {
+            packet.putShort(2, (short) (packet.getShort(2) + sequenceOffset));
+        } else {
+            packet.putShort(originalSequenceNumberOffset,
+                    (short) (packet.getShort(originalSequenceNumberOffset) + sequenceOffset));
+        }
+        packet.putInt(4, packet.getInt(4) + timestampOffset);
+    }
+
+    /**
+     * Returns the buffers to write the packet with, or null if the packet is not for this
+     * subscriber: a parity packet before its first media packet, or a packet it gets from the
+     * cache.
+     *
+     * @param packetBuffers What {@link RtpSocket.RtpData#getBuffers(int)} returned
+     */
+    ByteBuffer[] rewrite(RtpSocket.RtpData rtpData, ByteBuffer[] packetBuffers) {
+        ByteBuffer packetHeader = packetBuffers[0];
+        if (catchUpSequenceNumber >= 0) {
+            // Comes from the cache, or is for a group the subscriber does not have
+            return null;
+        }
+        if (rtpData.isFec()) {
+            return started ? rewriteFec(rtpData, packetBuffers) : null;
+        }
+        if (liveSequenceNumber >= 0) {
+            if (((rtpData.getSequenceNumber() - liveSequenceNumber) & 0xFFFF) >= 0x8000) {
+                // Sent from the cache already
+                return null;
+            }
+            liveSequenceNumber = -1;
+        }
+        if (!started) {
+            sequenceOffset = initialSequenceNumber - (packetHeader.getShort(2) & 0xFFFF);
+            timestampOffset = initialTimestamp - packetHeader.getInt(4);
+            started = true;
+        }
+        copyHeader(packetHeader);
+        header.putShort(2, (short) (packetHeader.getShort(2) + sequenceOffset));
+        header.putInt(4, packetHeader.getInt(4) + timestampOffset);
+
+        ByteBuffer[] buffers = (packetBuffers.length == 3) ? fragmentBuffers : this.buffers;
+        buffers[0] = header;
+        for (int i = 1; i < buffers.length; i++) {
+            buffers[i] = packetBuffers[i];
+        }
+        return buffers;
+    }
+
+    // The FEC stream keeps its own sequence numbers, only what refers to the media packets changes
+    private ByteBuffer[] rewriteFec(RtpSocket.RtpData rtpData, ByteBuffer[] packetBuffers) {
+        ByteBuffer packetHeader = packetBuffers[0];
+        ByteBuffer payload = packetBuffers[1];
+        copyHeader(packetHeader);
+        header.putInt(4, packetHeader.getInt(4) + timestampOffset);
+
+        fecHeader.clear();
+        for (int i = 0; i < FecEncoder.FEC_HEADER_SIZE; i++) {
+            fecHeader.put(i, payload.get(i));
+        }
+        fecHeader.putShort(2, (short) (payload.getShort(2) + sequenceOffset)); // SN base
+        // TS recovery, the XOR of the timestamps the subscriber got
+        int[] timestamps = rtpData.getFecTimestamps();
+        int timestampRecovery = 0;
+        for (int i = 0; i < rtpData.getFecTimestampCount(); i++) {
+            timestampRecovery ^= timestamps[i] + timestampOffset;
+        }
+        fecHeader.putInt(4, timestampRecovery);
+        payload.position(FecEncoder.FEC_HEADER_SIZE);
+
+        fecBuffers[0] = header;
+        fecBuffers[1] = fecHeader;
+        fecBuffers[2] = payload;
+        return fecBuffers;
+    }
+
+    private void copyHeader(ByteBuffer packetHeader) {
+        header.clear();
+        packetHeader.rewind();
+        header.put(packetHeader);
+        header.flip();
+    }
+}
@@ -3,18 +3,21 @@ package net.xvis.streaming.rtp;
 import android.os.SystemClock;
 import android.util.Log;
 
-import net.xvis.streaming.Utils;
+import net.xvis.streaming.rtcp.RtcpParser;
 import net.xvis.streaming.rtcp.SenderReport;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 public class RtpSocket {
     public static final String TAG = "RtpSocket";
@@ -22,6 +25,36 @@ public class RtpSocket {
     public static final int TRANSPORT_UDP = 0;
     public static final int TRANSPORT_TCP = 1;
     public static final int HEADER_SIZE = 12;
+    public static final int MAX_CSRC_COUNT = 15;
+    // one-byte header extensions (RFC 8285), including the 4-byte extension header
+    public static final int MAX_EXTENSION_SIZE = 32;
+    public static final int MAX_HEADER_SIZE = HEADER_SIZE + MAX_CSRC_COUNT * Integer.BYTES + MAX_EXTENSION_SIZE;
+    private static final int ONE_BYTE_EXTENSION_PROFILE = 0xBEDE;
+    private static final int MAX_EXTENSION_ID = 14;
+
+    // how often backlogs of stalled destinations are retried while no new packet comes in
+    private static final long FLUSH_INTERVAL_NS = 1000000L; // 1 ms
+    // how much faster than the live frames a client that joins gets the cached ones
+    private static final int CATCH_UP_SPEED = 2;
+    // packets sent per run before the send thread moves on to the other streams
+    private static final int MAX_PACKETS_PER_RUN = 64;
+    // sent packets kept for retransmission, and for how long
+    private static final int DEFAULT_HISTORY_SIZE = 512;
+    private static final long DEFAULT_HISTORY_AGE_MS = 1000;
+    // lost packets waiting to be retransmitted, requests beyond that are ignored
+    private static final int MAX_PENDING_NACKS = 256;
+    // the original sequence number prepended to the payload of an RTX packet
+    private static final int RTX_HEADER_SIZE = 2;
+    // the smallest packet size a client can ask for, the IPv4 minimum reassembly size less IP + UDP
+    public static final int MIN_PACKET_SIZE = 576 - 28;
+    // packets in the pool, a power of two, resized within the limits by the queue depth
+    public static final int DEFAULT_POOL_PACKETS = 256;
+    public static final int DEFAULT_MIN_POOL_PACKETS = 64;
+    public static final int DEFAULT_MAX_POOL_PACKETS = 1024;
+    // the memory the last group of pictures can take for clients that join, see setGopCacheSize()
+    public static final int DEFAULT_GOP_CACHE_SIZE = 2 * 1024 * 1024;
+    // presentation times further from now are taken as not being on the MediaClock
+    private static final long MAX_PRESENTATION_DELAY_US = 10000000L; // 10 s
 
     //  0                   1                   2                   3
     //  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
@@ -42,67 +75,287 @@ public class RtpSocket {
     // clock that increments monotonically and linearly in time to allow
     // synchronization and jitter calculations
 
+    /**
+     * An RTP packet: header and payload slices of the socket's slab, plus an optional fragment
+     * lent by the encoder, written with one gathering write.
+     */
     public class RtpData {
-        private DatagramPacket packet;
+        private final ByteBuffer header;
+        private final ByteBuffer payload;
+        private final ByteBuffer[] buffers;
+        private final ByteBuffer[] fragmentBuffers;
         private long timestampUs;
-
-        public RtpData(int maxPacketSize, long timestampUs) {
-            packet = new DatagramPacket(new byte[maxPacketSize], 2);
-            this.timestampUs = timestampUs;
+        // a parity packet of the FEC stream rather than a media packet, and the timestamps of
+        // the packets it protects
+        private boolean fec;
+        private int[] fecTimestamps;
+        private int fecTimestampCount;
+        // the first packet of a keyframe, reset on dequeue
+        private boolean keyFrame;
+        // the bytes of the frame the packet starts, 0 if unknown or not the first, reset on dequeue
+        private int frameSize;
+        // holders of the packet: the send thread while it sends it and the destination backlogs.
+        // The producer only reuses it once there is none left.
+        private final AtomicInteger queuedCount = new AtomicInteger();
+        // the slice at the end of the payload and the buffer it comes from, reset on dequeue
+        private ByteBuffer fragment;
+        private LentBuffer lender;
+
+        RtpData(ByteBuffer header, ByteBuffer payload) {
+            this.header = header;
+            this.payload = payload;
+            this.buffers = new ByteBuffer[] { header, payload };
+            this.fragmentBuffers = new ByteBuffer[] { header, payload, null };
         }
 
-        public DatagramPacket getPacket() {
-            return packet;
+        /**
+         * Returns the payload buffer. It is cleared by {@link #dequeueData()} and limited to
+         * {@link #getMaxPayloadSize()}, the packetizer only has to put the payload bytes.
+         */
+        public ByteBuffer getPayload() {
+            return payload;
         }
 
         public long getTimestampUs() {
             return timestampUs;
         }
 
+        /**
+         * Ends the payload with a slice of a lent buffer, held until every destination wrote it.
+         *
+         * @param fragment Positioned at its first byte, its remaining bytes are sent
+         */
+        public void setFragment(ByteBuffer fragment, LentBuffer lender) {
+            if (fragment.remaining() > payload.remaining()) {
+                throw new IllegalArgumentException("Fragment of " + fragment.remaining()
+                        + " bytes does not fit in " + payload.remaining());
+            }
+            this.fragment = fragment.slice();
+            this.lender = lender;
+            fragmentBuffers[2] = this.fragment;
+            lender.retain();
+        }
+
+        public int getLength() {
+            return header.limit() + payload.limit() + ((fragment != null) ? fragment.limit() : 0);
+        }
+
+        /**
+         * Marks the first packet of a keyframe, the parameter sets sent in front of it included:
+         * a client that joins can start decoding from it, see {@link #setGopCacheSize(int)}.
+         */
+        public void setKeyFrame(boolean keyFrame) {
+            this.keyFrame = keyFrame;
+        }
+
+        boolean isKeyFrame() {
+            return keyFrame;
+        }
+
+        /**
+         * Tells the pacer the size of the frame this packet is the first of, so that the frame
+         * is paced at its own rate rather than at the average one.
+         */
+        public void setFrameSize(int frameSize) {
+            this.frameSize = frameSize;
+        }
+
+        /**
+         * Changes the marker bit once the header is set, when whether the packet ends a frame is
+         * only known later.
+         */
+        public void setMarker(boolean marker) {
+            header.put(1, (byte) ((header.get(1) & 0x7F) | (marker ? 0x80 : 0)));
+        }
+
+        public int getSequenceNumber() {
+            return header.getShort(2) & 0xFFFF;
+        }
+
+        ByteBuffer[] getBuffers() {
+            header.rewind();
+            payload.rewind();
+            if (fragment != null) {
+                fragment.rewind();
+                return fragmentBuffers;
+            }
+            return buffers;
+        }
+
+        ByteBuffer getFragment() {
+            return fragment;
+        }
+
+        boolean isFec() {
+            return fec;
+        }
+
+        int[] getFecTimestamps() {
+            return fecTimestamps;
+        }
+
+        int getFecTimestampCount() {
+            return fecTimestampCount;
+        }
+
+        void ref() {
+            queuedCount.incrementAndGet();
+        }
+
+        void unref() {
+            // Read before the count drops, the producer may reuse the packet right after
+            LentBuffer lender = this.lender;
+            if (queuedCount.decrementAndGet() == 0 && lender != null) {
+                lender.release();
+            }
+        }
+
+        /**
+         * Called by the producer on a free packet.
+         */
+        private void resetFragment() {
+            fragment = null;
+            lender = null;
+            fragmentBuffers[2] = null;
+        }
+
+        boolean isQueued() {
+            return queuedCount.get() > 0;
+        }
+
         public void setHeader(boolean marker, long rtpTimestamp, long timestampUs, long sequenceNum) {
             this.timestampUs = timestampUs;
-            packet.getData()[1] = (byte) (((byte) payloadType) | ((byte) (marker ? (0x80) : 0)));
-            Utils.writeValue(packet.getData(), sequenceNum, 2, 4);
-            Utils.writeValue(packet.getData(), rtpTimestamp, 4, 8);
+            RtpHeaderExtension[] extensions = headerExtensions;
+            int csrcCount = csrc.length;
+            header.put(0, (byte) (0b10000000 | (extensions.length > 0 ? 0x10 : 0) | csrcCount)); // Version|P|X|CC
+            header.put(1, (byte) (payloadType | (marker ? 0x80 : 0)));
+            header.putShort(2, (short) sequenceNum);
+            header.putInt(4, (int) rtpTimestamp);
+
+            int extensionStart = HEADER_SIZE + csrcCount * Integer.BYTES;
+            if (extensions.length == 0) {
+                header.limit(extensionStart);
+                return;
+            }
+            int blockSize = extensionBlockSize;
+            header.limit(extensionStart + blockSize);
+            header.putShort(extensionStart, (short) ONE_BYTE_EXTENSION_PROFILE);
+            header.putShort(extensionStart + 2, (short) (blockSize / Integer.BYTES - 1));
+            for (int i = extensionStart + Integer.BYTES; i < extensionStart + blockSize; i++) {
+                header.put(i, (byte) 0); // padding
+            }
+            for (RtpHeaderExtension extension : extensions) {
+                int offset = extensionStart + extension.offset;
+                header.put(offset - 1, (byte) ((extension.id << 4) | (extension.getLength() - 1)));
+                extension.onSetHeader(header, offset, timestampUs);
+            }
         }
     }
 
-    private MulticastSocket multicastSocket;
-    private SenderReport senderReport;
+    /**
+     * Asked for a keyframe when clients lost part of a picture, on a send thread of the reactor.
+     */
+    public interface KeyFrameListener {
+        void onKeyFrameRequest();
+    }
 
-    // destinations
-    private Map<InetAddress, int[]> destinationMap = new LinkedHashMap<>();
+    private RtpReactor reactor;
+    private RtpReactor.SendThread sendThread;
+    private RtpSender rtpSender;
+    private volatile long fanOutNanos = -1;
+    // the last group of pictures, for the clients that join, and how many of them catch up
+    private GopCache gopCache = new GopCache(DEFAULT_GOP_CACHE_SIZE);
+    private int catchingUpDestinations;
+    // the PLIs and FIRs of all the clients, merged
+    private final KeyFrameRequests keyFrameRequests = new KeyFrameRequests();
+    private volatile KeyFrameListener keyFrameListener;
+    private boolean keyFrameRequested; // by the RTCP packet being parsed
+    private DatagramChannel rtpChannel;
+    private DatagramChannel rtcpChannel; // opened for the first client that does not use rtcp-mux
+    private int localRtpPort;
+    // the stream's RTP so far, for the sender reports, under syncObject
+    private long sentPacketCount;
+    private long sentOctetCount;
+    private int lastRtpTimestamp;
+    private long lastTimestampUs;
+    private long lastRtpNanos = -1;
+    private String cname; // null for the default one
+    // when the earliest report of the destinations is due
+    private volatile long nextReportNanos = Long.MAX_VALUE;
+
+    // destinations, under syncObject
+    private Map<InetAddress, RtpDestination> destinationMap = new LinkedHashMap<>();
+    private RtpDestination multicastDestination;
+    // the group's RTCP port, joined to get the feedback of the members
+    private MulticastRtcpReceiver multicastRtcpReceiver;
+    private Map<InterleavedChannel, InterleavedDestination> interleavedMap = new LinkedHashMap<>();
     private int defaultRtpPort;
     private int defaultRtcpPort;
-    private int transport;
+    private int timeToLive = 64;
 
     private long mCacheSize;
-    private long mClock = 0;
+    private long startTimeNs = Long.MIN_VALUE;
 
     private int mtu;
     private int maxPacketSize;
+    // the largest packet every destination takes, at most maxPacketSize
+    private volatile int packetSizeLimit;
     private int maxPayloadSize;
     private long clockRateHz;
     private int payloadType;
 
     private int[] csrc = new int[0];
+    private volatile RtpHeaderExtension[] headerExtensions = new RtpHeaderExtension[0];
+    private volatile int extensionBlockSize = 0;
+    private TransportSequenceNumberExtension transportSequenceNumber;
     private int ssrc;
     private int sequenceNum = 0;
-    private int numBuffers;
     private int mBufferIn;
     private int mBufferOut;
     private int mCount = 0;
-    private byte mTcpHeader[];
-    protected OutputStream mOutputStream = null;
+    // the packet pool, replaced by the producer only while the ring is empty, rtpBuffers under syncObject
+    private int slotSize;
     private RtpData[] rtpBuffers;
-    BlockingQueue<RtpData> emptyRtpData;
-    BlockingQueue<RtpData> filledRtpData;
+    private volatile SpscRing<RtpData> rtpRing;
+    // packets taken out of the ring while a destination's backlog held them, under syncObject
+    private final ArrayList<RtpData> evictedData = new ArrayList<>();
+    private volatile long evictedPackets;
+    private volatile SpscRing.WaitStrategy producerWait = SpscRing.WaitStrategy.PARK;
+    private final PoolSizer poolSizer;
 
-    private RtpThread rtpThread;
-    //private RtcpThread rtcpThread;
     private final Object syncObject = new Object();
 
     private AverageBitrate mAverageBitrate;
+    private PacketPacer pacer;
+
+    // retransmissions (generic NACK, RFC 4585), optionally on an RTX stream (RFC 4588)
+    private volatile RtpHistory history;
+    private volatile int rtxPayloadType = -1;
+    private volatile int rtxSsrc;
+    private int rtxSequenceNum = 0;
+    private ByteBuffer rtxBuffer;
+    // lost packets reported by the clients, one of the two destinations is set, under syncObject
+    private final RtpDestination[] nackDestinations = new RtpDestination[MAX_PENDING_NACKS];
+    private final InterleavedDestination[] nackInterleavedDestinations = new InterleavedDestination[MAX_PENDING_NACKS];
+    private final int[] nackSequenceNumbers = new int[MAX_PENDING_NACKS];
+    private int nackCount;
+    // the client whose RTCP packet is being parsed
+    private RtpDestination feedbackSource;
+    private InterleavedDestination feedbackInterleavedSource;
+    private volatile long retransmittedPackets;
+    private volatile long missedRetransmissions;
+
+    // forward error correction (ULPFEC, RFC 5109), parity computed by the FEC worker
+    private volatile FecEncoder fecEncoder;
+    private volatile FecWorker fecWorker;
+    private volatile int fecPayloadType = -1;
+    private volatile int fecSsrc;
+    private int fecSequenceNum = 0;
+    private volatile long fecPackets;
+
+    // what the receiver reports say about the worst receiver
+    private volatile float lossFraction;
+    private volatile long roundTripTimeUs = -1;
 
     public RtpSocket(int mtu, int defaultRtpPort, int defaultRtcpPort) {
         this.mtu = mtu;
@@ -110,81 +363,343 @@ public class RtpSocket {
         this.defaultRtcpPort = defaultRtcpPort;
         maxPacketSize = mtu - 28; // IP + UDP = 20 + 8
         maxPayloadSize = maxPacketSize - HEADER_SIZE;
+        packetSizeLimit = maxPacketSize;
 
         mCacheSize = 0;
 
-        numBuffers = 300; // TODO: readjust that when the FIFO is full
-        rtpBuffers = new RtpData[numBuffers];
-        senderReport = new SenderReport(45005);
+        // The local RTP/RTCP ports come from the reactor's range, so any number of streams can run
+        reactor = RtpReactor.getInstance();
+        try {
+            rtpChannel = reactor.openRtpChannel();
+            localRtpPort = rtpChannel.socket().getLocalPort();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
         mAverageBitrate = new AverageBitrate();
-        transport = TRANSPORT_UDP;
-        mTcpHeader = new byte[] { 0x24, 0, 0, 0 }; // 0x24, channel number, data length
+        pacer = new PacketPacer();
+        history = new RtpHistory(DEFAULT_HISTORY_SIZE, maxPacketSize, DEFAULT_HISTORY_AGE_MS);
+        rtxBuffer = ByteBuffer.allocateDirect(maxPacketSize + RTX_HEADER_SIZE);
 
         resetFifo();
 
-        emptyRtpData = new ArrayBlockingQueue<>(numBuffers);
-        filledRtpData = new ArrayBlockingQueue<>(numBuffers);
+        slotSize = MAX_HEADER_SIZE + maxPayloadSize;
+        poolSizer = new PoolSizer(DEFAULT_POOL_PACKETS, DEFAULT_MIN_POOL_PACKETS, DEFAULT_MAX_POOL_PACKETS);
+        allocatePool(DEFAULT_POOL_PACKETS);
 
-        for (int i = 0; i < numBuffers; i++) {
-            RtpData rtpData = new RtpData(maxPacketSize, 0L);
-            rtpData.getPacket().getData()[0] = (byte) 0b10000000; // Version|P|X|CC
-            rtpData.getPacket().getData()[1] = (byte) payloadType;//0b01100000; // M|payload type -> 0|dynamic(96)
-            rtpBuffers[i] = rtpData;
-            emptyRtpData.add(rtpData);
-        }
+        reactor.registerReceiver(rtpChannel, muxReceiver);
+        rtpSender = new RtpSender();
+        sendThread = reactor.register(rtpSender);
+    }
 
-        try {
-            multicastSocket = new MulticastSocket(45004);
-        } catch (Exception e) {
-            throw new RuntimeException(e.getMessage());
+    /**
+     * Carves a new pool of packets out of one direct slab and puts it in place of the current one.
+     */
+    private SpscRing<RtpData> allocatePool(int count) {
+        ByteBuffer slab = ByteBuffer.allocateDirect(count * slotSize);
+        RtpData[] buffers = new RtpData[count];
+        for (int i = 0; i < count; i++) {
+            int begin = i * slotSize;
+            ByteBuffer header = sliceSlab(slab, begin, MAX_HEADER_SIZE);
+            ByteBuffer payload = sliceSlab(slab, begin + MAX_HEADER_SIZE, slotSize - MAX_HEADER_SIZE);
+            buffers[i] = new RtpData(header, payload);
+        }
+        SpscRing<RtpData> ring = new SpscRing<>(buffers);
+        ring.setWaitStrategy(producerWait, SpscRing.WaitStrategy.PARK);
+        synchronized (syncObject) {
+            for (RtpData rtpData : buffers) {
+                restoreHeader(rtpData);
+            }
+            rtpBuffers = buffers;
+            rtpRing = ring;
+            evictedData.clear();
         }
+        return ring;
+    }
 
-        rtpThread = new RtpThread();
-        rtpThread.start();
+    private static ByteBuffer sliceSlab(ByteBuffer slab, int begin, int length) {
+        slab.limit(begin + length);
+        slab.position(begin);
+        ByteBuffer slice = slab.slice();
+        slab.clear();
+        return slice;
     }
 
     private void resetFifo() {
         mCount = 0;
         mBufferIn = 0;
         mBufferOut = 0;
-        senderReport.reset();
         mAverageBitrate.reset();
+        pacer.reset();
     }
 
     public void close() {
-        senderReport.close();
-        multicastSocket.close();
+        reactor.unregister(rtpSender);
+        synchronized (syncObject) {
+            long now = System.nanoTime();
+            for (RtpDestination destination : destinationMap.values()) {
+                sendBye(destination.getSenderReport(), destination.getRewriter(), now);
+                destination.close();
+            }
+            destinationMap.clear();
+            multicastDestination = null;
+            closeFecWorker();
+            if (multicastRtcpReceiver != null) {
+                multicastRtcpReceiver.close();
+                multicastRtcpReceiver = null;
+            }
+            for (InterleavedDestination destination : interleavedMap.values()) {
+                sendBye(destination.getSenderReport(), destination.getRewriter(), now);
+                destination.flush();
+                destination.close();
+            }
+            interleavedMap.clear();
+            // Closing the channels also removes them from the reactor's selector
+            try {
+                rtpChannel.close();
+                if (rtcpChannel != null) {
+                    rtcpChannel.close();
+                }
+            } catch (IOException ignore) {
+            }
+        }
+        reactor.releasePortPair(localRtpPort);
+    }
+
+    /**
+     * Returns true if the packet is RTCP, to tell it from RTP on a channel that carries both.
+     * RTCP packet types 192-223 never collide with RTP payload types (RFC 5761, section 4).
+     */
+    public static boolean isRtcpPacket(ByteBuffer packet) {
+        if (packet.remaining() < 2) {
+            return false;
+        }
+        int packetType = packet.get(packet.position() + 1) & 0xFF;
+        return packetType >= 192 && packetType <= 223;
+    }
+
+    /**
+     * Sets the MTU the packets are sized for, 1500 by default. Must be called before the stream starts.
+     */
+    public void setMtu(int mtu) {
+        if (mtu - 28 < MIN_PACKET_SIZE) {
+            throw new IllegalArgumentException("MTU too small: " + mtu);
+        }
+        synchronized (syncObject) {
+            this.mtu = mtu;
+            maxPacketSize = mtu - 28; // IP + UDP = 20 + 8
+            maxPayloadSize = maxPacketSize - HEADER_SIZE - csrc.length * Integer.BYTES;
+            slotSize = MAX_HEADER_SIZE + maxPacketSize - HEADER_SIZE;
+            allocatePool(rtpRing.capacity());
+            RtpHistory history = this.history;
+            if (history != null) {
+                this.history = new RtpHistory(history.getCapacity(), maxPacketSize, history.getMaxAgeMs());
+            }
+            rtxBuffer = ByteBuffer.allocateDirect(maxPacketSize + RTX_HEADER_SIZE);
+            FecEncoder fecEncoder = this.fecEncoder;
+            if (fecEncoder != null) {
+                this.fecEncoder = new FecEncoder(maxPacketSize - HEADER_SIZE, fecEncoder.getMinGroupSize(),
+                        fecEncoder.getMaxGroupSize());
+            }
+            updatePacketSizeLimit();
+        }
     }
 
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Returns the size of the largest packet sent, the largest all the destinations take.
+     */
     public int getMaxPacketSize() {
-        return maxPacketSize;
+        return packetSizeLimit;
+    }
+
+    /**
+     * Limits the packets of a client to the RTSP Blocksize it asked for, without IP and UDP headers.
+     *
+     * @param packetSize 0 to lift the limit
+     * @return The size the packets to this client are limited to, 0 if there is no limit
+     */
+    public int setMaxPacketSize(InetAddress destination, int packetSize) {
+        synchronized (syncObject) {
+            RtpDestination rtpDestination = destinationMap.get(destination);
+            if (rtpDestination == null) {
+                return 0;
+            }
+            rtpDestination.setRequestedPacketSize(grantPacketSize(packetSize, rtpDestination));
+            updatePacketSizeLimit();
+            return rtpDestination.getMaxPacketSize();
+        }
+    }
+
+    /**
+     * Same as {@link #setMaxPacketSize(InetAddress, int)}, for a client on an RTSP connection.
+     */
+    public int setMaxPacketSize(InterleavedChannel channel, int packetSize) {
+        synchronized (syncObject) {
+            InterleavedDestination destination = interleavedMap.get(channel);
+            if (destination == null) {
+                return 0;
+            }
+            destination.setRequestedPacketSize(grantPacketSize(packetSize, destination));
+            updatePacketSizeLimit();
+            return destination.getMaxPacketSize();
+        }
+    }
+
+    /**
+     * Returns the packet size a client gets: at least what the other destinations take.
+     */
+    private int grantPacketSize(int packetSize, Object client) {
+        if (packetSize <= 0) {
+            return 0;
+        }
+        int limit = maxPacketSize;
+        boolean alone = true;
+        for (RtpDestination destination : destinationMap.values()) {
+            int size = destination.getMaxPacketSize();
+            if (destination != client) {
+                alone = false;
+                if (size > 0) {
+                    limit = Math.min(limit, size);
+                }
+            }
+        }
+        for (InterleavedDestination destination : interleavedMap.values()) {
+            int size = destination.getMaxPacketSize();
+            if (destination != client) {
+                alone = false;
+                if (size > 0) {
+                    limit = Math.min(limit, size);
+                }
+            }
+        }
+        return Math.max(alone ? MIN_PACKET_SIZE : limit, packetSize);
+    }
+
+    /**
+     * Sizes the packets for the destination that takes the smallest.
+     */
+    private void updatePacketSizeLimit() {
+        int limit = maxPacketSize;
+        for (RtpDestination destination : destinationMap.values()) {
+            int packetSize = destination.getMaxPacketSize();
+            if (packetSize > 0) {
+                limit = Math.min(limit, packetSize);
+            }
+        }
+        for (InterleavedDestination destination : interleavedMap.values()) {
+            int packetSize = destination.getMaxPacketSize();
+            if (packetSize > 0) {
+                limit = Math.min(limit, packetSize);
+            }
+        }
+        limit = Math.max(MIN_PACKET_SIZE, limit);
+        if (limit != packetSizeLimit) {
+            Log.d(TAG, "Packets limited to " + limit + " bytes");
+            packetSizeLimit = limit;
+        }
     }
 
     public int getMaxPayloadSize() {
-        return maxPacketSize - HEADER_SIZE - (csrc.length * Integer.BYTES);
+        // Leaves room for the original sequence number, an RTX packet must fit the MTU as well
+        int rtxHeaderSize = (rtxPayloadType >= 0) ? RTX_HEADER_SIZE : 0;
+        // and for the FEC headers, the parity of the largest packets must fit too
+        int fecHeaderSize = (fecPayloadType >= 0) ? FecEncoder.FEC_HEADER_SIZE + FecEncoder.MAX_LEVEL_HEADER_SIZE : 0;
+        return packetSizeLimit - HEADER_SIZE - (csrc.length * Integer.BYTES) - extensionBlockSize
+                - rtxHeaderSize - fecHeaderSize;
+    }
+
+    /**
+     * Adds a header extension to every packet from now on. Must be called before the stream
+     * starts, receivers learn the extension from the SDP.
+     *
+     * @return The id the extension is sent with
+     */
+    public int addHeaderExtension(RtpHeaderExtension extension) {
+        synchronized (syncObject) {
+            RtpHeaderExtension[] extensions = headerExtensions;
+            int elementsSize = 0;
+            for (RtpHeaderExtension other : extensions) {
+                elementsSize += 1 + other.getLength();
+            }
+            // each element is a 1-byte id|length header and the value, the block is padded to 32 bits
+            int blockSize = Integer.BYTES + (elementsSize + 1 + extension.getLength() + 3) / 4 * 4;
+            if (extensions.length == MAX_EXTENSION_ID || blockSize > MAX_EXTENSION_SIZE) {
+                throw new IllegalStateException("No room for header extension " + extension.getUri());
+            }
+            extension.id = extensions.length + 1;
+            extension.offset = Integer.BYTES + elementsSize + 1;
+            RtpHeaderExtension[] newExtensions = new RtpHeaderExtension[extensions.length + 1];
+            System.arraycopy(extensions, 0, newExtensions, 0, extensions.length);
+            newExtensions[extensions.length] = extension;
+            extensionBlockSize = blockSize;
+            headerExtensions = newExtensions;
+            if (extension instanceof TransportSequenceNumberExtension) {
+                transportSequenceNumber = (TransportSequenceNumberExtension) extension;
+            }
+            return extension.id;
+        }
+    }
+
+    public RtpHeaderExtension[] getHeaderExtensions() {
+        return headerExtensions.clone();
     }
 
-    public int getPayloadOffset() {
-        return HEADER_SIZE - (csrc.length * Integer.BYTES);
+    /**
+     * Returns the bitrate, in bits per second, the stream should be encoded at for its slowest
+     * receiver to keep up, as estimated from the receivers' transport-wide feedback. 0 while no
+     * receiver sent any, see {@link TransportSequenceNumberExtension}.
+     */
+    public long getTargetBitrate() {
+        long target = Long.MAX_VALUE;
+        synchronized (syncObject) {
+            for (RtpDestination destination : destinationMap.values()) {
+                BandwidthEstimator estimator = destination.getBandwidthEstimator();
+                if (estimator.hasEstimate()) {
+                    target = Math.min(target, estimator.getTargetBitrate());
+                }
+            }
+            for (InterleavedDestination destination : interleavedMap.values()) {
+                BandwidthEstimator estimator = destination.getBandwidthEstimator();
+                if (estimator.hasEstimate()) {
+                    target = Math.min(target, estimator.getTargetBitrate());
+                }
+            }
+        }
+        return (target == Long.MAX_VALUE) ? 0 : target;
     }
 
     public void setSSRC(int ssrc) {
         synchronized (syncObject) {
             this.ssrc = ssrc;
-            for (int i = 0; i < numBuffers; i++) {
-                Utils.writeValue(rtpBuffers[i].getPacket().getData(), ssrc, 8, 12);
+            for (RtpData rtpData : rtpBuffers) {
+                rtpData.header.putInt(8, ssrc);
+            }
+            for (RtpDestination destination : destinationMap.values()) {
+                destination.getSenderReport().setSSRC(ssrc);
+            }
+            for (InterleavedDestination destination : interleavedMap.values()) {
+                destination.getSenderReport().setSSRC(ssrc);
             }
-            senderReport.setSSRC(this.ssrc);
         }
     }
 
     public void setCSRC(int[] csrc) {
+        if (csrc.length > MAX_CSRC_COUNT) {
+            throw new IllegalArgumentException("At most " + MAX_CSRC_COUNT + " CSRC identifiers");
+        }
         synchronized (syncObject) {
             this.csrc = csrc;
-            maxPayloadSize = maxPacketSize - HEADER_SIZE - csrc.length * 4;
-            for (int i = 0; i < csrc.length; i++) {
-                int begin = HEADER_SIZE + i * 4;
-                Utils.writeValue(rtpBuffers[i].getPacket().getData(), csrc[i], begin, begin + 4);
+            maxPayloadSize = maxPacketSize - HEADER_SIZE - csrc.length * Integer.BYTES;
+            for (RtpData rtpData : rtpBuffers) {
+                ByteBuffer header = rtpData.header;
+                header.limit(HEADER_SIZE + csrc.length * Integer.BYTES);
+                header.put(0, (byte) (0b10000000 | csrc.length)); // Version|P|X|CC
+                for (int j = 0; j < csrc.length; j++) {
+                    header.putInt(HEADER_SIZE + j * Integer.BYTES, csrc[j]);
+                }
             }
         }
     }
@@ -208,162 +723,1307 @@ public class RtpSocket {
         mCacheSize = cacheSize;
     }
 
-    public void setTimeToLive(int timeToLive) {
-        try {
-            multicastSocket.setTimeToLive(timeToLive);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Configures the packet pacing of the stream.
+     *
+     * @param pacingShare Share of the frame interval over which each frame is spread, in (0, 1]
+     * @param maxBitrate Cap of the instantaneous sending rate in bits per second
+     */
+    public void setPacing(float pacingShare, long maxBitrate) {
+        pacer.setPacingShare(pacingShare);
+        pacer.setMaxBitrate(maxBitrate);
     }
 
-    public void addDestination(InetAddress destination, int rtpPort, int rtcpPort) {
-        synchronized (syncObject) {
-            destinationMap.put(destination, new int[]{rtpPort, rtcpPort});
-        }
+    /**
+     * Returns how late, in nanoseconds, the pacer is sending the current frame compared to the
+     * start of the next one. Zero while pacing keeps up with the stream.
+     */
+    public long getPacingDebtNanos() {
+        return pacer.getPacingDebtNanos();
     }
 
-    public void removeDestination(InetAddress destination) {
-        synchronized (syncObject) {
-            destinationMap.remove(destination);
-        }
+    /**
+     * Sets how many of the last packets are kept to answer NACKs, and for how long.
+     *
+     * @param packets A power of two, 0 to stop retransmitting
+     */
+    public void setRetransmissionHistory(int packets, long maxAgeMs) {
+        history = (packets > 0) ? new RtpHistory(packets, maxPacketSize, maxAgeMs) : null;
     }
 
-    public int getRtpPort(InetAddress destination) {
-        synchronized (syncObject) {
-            int[] ports = (destination != null) ? destinationMap.get(destination) : null;
-            return (ports != null) ? ports[0] : defaultRtpPort;
-        }
+    /**
+     * Returns how long, in ms, a lost packet can still be retransmitted. 0 if it cannot.
+     */
+    public long getRetransmissionTimeMs() {
+        RtpHistory history = this.history;
+        return (history != null) ? history.getMaxAgeMs() : 0;
     }
 
-    public int getRtcpPort(InetAddress destination) {
-        synchronized (syncObject) {
-            int[] ports = (destination != null) ? destinationMap.get(destination) : null;
-            return (ports != null) ? ports[1] : defaultRtcpPort;
-        }
+    /**
+     * Retransmits on a separate RTX stream (RFC 4588) instead of resending the lost packets as they were.
+     *
+     * @param payloadType The RTX payload type, -1 to resend the original packets
+     * @param ssrc The SSRC of the RTX stream, different from the stream's
+     */
+    public void setRtx(int payloadType, int ssrc) {
+        rtxSsrc = ssrc;
+        rtxPayloadType = payloadType;
     }
 
-    public int getLocalRtpPort() {
-        return multicastSocket.getLocalPort();
+    public int getRtxPayloadType() {
+        return rtxPayloadType;
     }
 
-    public int getLocalRtcpPort() {
-        return senderReport.getLocalPort();
+    public int getRtxSSRC() {
+        return rtxSsrc;
     }
 
-    synchronized public RtpData dequeueData() throws InterruptedException {
-        return emptyRtpData.take();
+    /**
+     * Returns the number of packets sent again because a client reported them lost.
+     */
+    public long getRetransmittedPackets() {
+        return retransmittedPackets;
     }
 
-    synchronized public void enqueueData(RtpData rtpData) throws InterruptedException {
-        mAverageBitrate.push(rtpData.getPacket().getLength());
-        filledRtpData.put(rtpData);
+    /**
+     * Returns the number of lost packets that were too old, or already overwritten, to be sent again.
+     */
+    public long getMissedRetransmissions() {
+        return missedRetransmissions;
     }
 
-    public long getBitrate() {
-        return mAverageBitrate.average();
+    /**
+     * Sends a parity packet (ULPFEC, RFC 5109) after each group of media packets, on a separate stream.
+     *
+     * @param payloadType The FEC payload type, -1 to stop sending parity packets
+     * @param ssrc The SSRC of the FEC stream, different from the stream's
+     * @param minGroupSize Group size at high loss, at least 2
+     * @param maxGroupSize Group size without loss, at most 48
+     */
+    public void setFec(int payloadType, int ssrc, int minGroupSize, int maxGroupSize) {
+        synchronized (syncObject) {
+            if (payloadType < 0) {
+                fecPayloadType = -1;
+                fecEncoder = null;
+                closeFecWorker();
+                return;
+            }
+            fecEncoder = new FecEncoder(maxPacketSize - HEADER_SIZE, minGroupSize, maxGroupSize);
+            fecSsrc = ssrc;
+            fecPayloadType = payloadType;
+            if (fecWorker == null) {
+                fecWorker = new FecWorker();
+                fecWorker.start();
+            }
+        }
     }
 
-    public void stop() {
+    private void closeFecWorker() {
+        if (fecWorker != null) {
+            fecWorker.close();
+            fecWorker = null;
+        }
     }
 
+    public int getFecPayloadType() {
+        return fecPayloadType;
+    }
 
-    private class RtpThread extends Thread {
+    public int getFecSSRC() {
+        return fecSsrc;
+    }
 
-        @Override
-        public void run() {
-            Statistics stats = new Statistics(50, 3000);
-            // Caches mCacheSize milliseconds of the stream in the FIFO.
-            Utils.sleepSlient(mCacheSize);
+    /**
+     * Returns the number of media packets each parity packet currently protects, 0 without FEC.
+     */
+    public int getFecGroupSize() {
+        FecEncoder fecEncoder = this.fecEncoder;
+        return (fecEncoder != null) ? fecEncoder.getGroupSize() : 0;
+    }
 
-            long delta = 0;
-            boolean keepSending = true;
-            long oldTimestamp = 0L;
+    public long getFecPackets() {
+        return fecPackets;
+    }
 
-            while (keepSending) {
-                try {
-                    RtpData rtpData = filledRtpData.take();
-
-                    DatagramPacket packet = rtpData.getPacket();
-                    long timestampUs = rtpData.getTimestampUs();
-
-                    if (oldTimestamp != 0) {
-                        // We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-                        // compute the time lapse that the packet represents.
-                        if ((timestampUs - oldTimestamp) > 0) {
-                            stats.push(timestampUs - oldTimestamp);
-                            long d = stats.average() / 1000000;
-                            //Log.e(TAG, "delay: " + d + " d: " + (mTimestamps[mBufferOut] - mOldTimestamp) / 1000000);
-                            // We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-                            if (mCacheSize > 0) Thread.sleep(d);
-                        } else if ((timestampUs - oldTimestamp) < 0) {
-                            Log.e(TAG, "TS: " + timestampUs + " OLD: " + oldTimestamp);
-                        }
-                        delta += timestampUs - oldTimestamp;
-                        if (delta > 500000000 || delta < 0) {
-                            //Log.e(TAG, "permits: " + mBufferCommitted.availablePermits());
-                            delta = 0;
-                        }
-                    }
+    /**
+     * Returns the fraction of packets lost, from the reception reports of the receivers. The
+     * highest loss reported counts at once and fades out over the next reports.
+     */
+    public float getLossFraction() {
+        return lossFraction;
+    }
 
-                    oldTimestamp = timestampUs;
-                    if (transport == TRANSPORT_UDP) {
-                        synchronized (syncObject) {
-                            for (Map.Entry<InetAddress, int[]> entry : destinationMap.entrySet()) {
-                                InetAddress clientAddress = entry.getKey();
-                                int rtpPort = entry.getValue()[0];
-                                int rtcpPort = entry.getValue()[1];
-                                packet.setAddress(clientAddress);
-                                packet.setPort(rtpPort);
-                                senderReport.setDestination(clientAddress, rtcpPort);
-                                try {
-                                    senderReport.update(packet.getLength(), (timestampUs / 100L) * (mClock / 1000L) / 10000L);
-                                    multicastSocket.send(packet);
-                                    Log.e(TAG, "sent to: " + packet.getAddress() + ":" + packet.getPort() + " " + packet.getLength());
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        }
-                    } else {
-                        int len = packet.getLength();
-                        mTcpHeader[2] = (byte) (len >> 8);
-                        mTcpHeader[3] = (byte) (len & 0xFF);
-                        try {
-                            mOutputStream.write(mTcpHeader);
-                            mOutputStream.write(packet.getData(), 0, len);
-                        } catch (Exception e) {
-                        }
-                    }
+    /**
+     * Returns the smoothed round trip time to the receivers, in microseconds, -1 until a receiver
+     * reported on a sender report.
+     */
+    public long getRoundTripTimeUs() {
+        return roundTripTimeUs;
+    }
 
-                    emptyRtpData.put(rtpData);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    keepSending = false;
+    /**
+     * Sets the TTL of multicast packets. Only effective from API 24, where socket options can be
+     * set on a DatagramChannel.
+     */
+    public void setTimeToLive(int timeToLive) {
+        synchronized (syncObject) {
+            this.timeToLive = timeToLive;
+            for (RtpDestination destination : destinationMap.values()) {
+                if (destination.isMulticast()) {
+                    destination.setTimeToLive(timeToLive);
                 }
             }
         }
     }
 
+    public int getTimeToLive() {
+        return timeToLive;
+    }
+
     /**
-     * Computes an average bit rate.
-     **/
-    protected static class AverageBitrate {
+     * Sends the stream to a multicast group, and takes the members' feedback on its RTCP port.
+     *
+     * @param group The group address, null to stop sending to the current group
+     */
+    public void setMulticastGroup(InetAddress group, int rtpPort, int rtcpPort) {
+        if (group != null && !group.isMulticastAddress()) {
+            throw new IllegalArgumentException(group + " is not a multicast address");
+        }
+        synchronized (syncObject) {
+            if (multicastDestination != null) {
+                removeDestination(multicastDestination.getAddress());
+            }
+            if (group != null) {
+                addDestination(group, rtpPort, rtcpPort);
+                multicastDestination = destinationMap.get(group);
+            }
+            if (multicastDestination != null) {
+                try {
+                    multicastRtcpReceiver = new MulticastRtcpReceiver(group, rtcpPort,
+                            multicastDestination.getNetworkInterface(), groupRtcpReceiver);
+                    multicastRtcpReceiver.start();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to join " + group + ":" + rtcpPort + ", " + e.getMessage());
+                }
+            }
+        }
+    }
 
-        private final static long RESOLUTION = 200;
+    /**
+     * Returns the multicast group the stream is sent to, null if it is sent to each client.
+     */
+    public InetAddress getMulticastGroup() {
+        synchronized (syncObject) {
+            return (multicastDestination != null) ? multicastDestination.getAddress() : null;
+        }
+    }
 
-        private long mOldNow, mNow, mDelta;
-        private long[] mElapsed, mSum;
-        private int mCount, mIndex, mTotal;
-        private int mSize;
+    /**
+     * Adds a destination. Passing the same port for RTP and RTCP multiplexes RTCP with RTP on that
+     * port (rtcp-mux, RFC 5761), the client then needs one port and one NAT binding only.
+     */
+    public void addDestination(InetAddress destination, int rtpPort, int rtcpPort) {
+        synchronized (syncObject) {
+            removeDestination(destination);
+            try {
+                InetSocketAddress localAddress = new InetSocketAddress(localRtpPort);
+                RtpDestination rtpDestination = new RtpDestination(destination, rtpPort, rtcpPort, localAddress,
+                        RtpDestination.DEFAULT_QUEUE_CAPACITY);
+                if (rtpDestination.isMulticast()) {
+                    rtpDestination.setTimeToLive(timeToLive);
+                }
+                destinationMap.put(destination, rtpDestination);
+                // A client gets the cached keyframe first, a group gets the stream as it is
+                if (gopCache != null && gopCache.isValid() && !rtpDestination.isMulticast()) {
+                    rtpDestination.startCatchUp(gopCache.getFirstSequenceNumber(), catchUpBitrate());
+                    catchingUpDestinations++;
+                    sendThread.wakeup();
+                }
+                updatePacketSizeLimit();
+
+                // The destination's connected channel gets the datagrams its client sends back
+                if (rtpDestination.isRtcpMux()) {
+                    reactor.registerReceiver(rtpDestination.getChannel(), muxReceiver);
+                } else if (rtcpChannel == null) {
+                    rtcpChannel = reactor.openRtcpChannel(localRtpPort);
+                    reactor.registerReceiver(rtcpChannel, rtcpReceiver);
+                }
+                SenderReport senderReport = rtpDestination.getSenderReport();
+                senderReport.setDestination(rtpDestination.isRtcpMux() ? rtpDestination.getChannel() : rtcpChannel,
+                        rtpDestination.getRtcpAddress());
+                startReports(senderReport);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open a channel to " + destination + ":" + rtpPort + ", " + e.getMessage());
+            }
+        }
+    }
 
-        public AverageBitrate() {
-            mSize = 5000 / ((int) RESOLUTION);
-            reset();
+    public void removeDestination(InetAddress destination) {
+        synchronized (syncObject) {
+            RtpDestination oldDestination = destinationMap.remove(destination);
+            if (oldDestination != null) {
+                sendBye(oldDestination.getSenderReport(), oldDestination.getRewriter(), System.nanoTime());
+                oldDestination.close();
+            }
+            if (oldDestination == multicastDestination) {
+                multicastDestination = null;
+                if (multicastRtcpReceiver != null) {
+                    multicastRtcpReceiver.close();
+                    multicastRtcpReceiver = null;
+                }
+            }
+            updatePacketSizeLimit();
         }
+    }
 
-        public AverageBitrate(int delay) {
-            mSize = delay / ((int) RESOLUTION);
-            reset();
+    /**
+     * Adds a client that receives the stream over its RTSP connection, on the given interleaved
+     * channel ids. The connection is removed by itself once it is closed.
+     */
+    public void addInterleavedDestination(InterleavedChannel channel, int rtpChannelId, int rtcpChannelId) {
+        synchronized (syncObject) {
+            removeInterleavedDestination(channel);
+            channel.setReceiver(rtcpChannelId, rtcpReceiver);
+            InterleavedDestination destination = new InterleavedDestination(channel, rtpChannelId, rtcpChannelId);
+            if (gopCache != null && gopCache.isValid()) {
+                destination.startCatchUp(gopCache.getFirstSequenceNumber(), catchUpBitrate());
+                catchingUpDestinations++;
+                sendThread.wakeup();
+            }
+            interleavedMap.put(channel, destination);
+            SenderReport senderReport = destination.getSenderReport();
+            senderReport.setDestination(channel, rtcpChannelId);
+            startReports(senderReport);
+        }
+    }
+
+    public void removeInterleavedDestination(InterleavedChannel channel) {
+        synchronized (syncObject) {
+            InterleavedDestination oldDestination = interleavedMap.remove(channel);
+            if (oldDestination != null) {
+                sendBye(oldDestination.getSenderReport(), oldDestination.getRewriter(), System.nanoTime());
+                oldDestination.flush();
+                oldDestination.close();
+            }
+            updatePacketSizeLimit();
+        }
+    }
+
+    /**
+     * Returns the destination for the given address, to read its queue and drop counters or to
+     * set its overflow policy. Null if there is no such destination.
+     */
+    public RtpDestination getDestination(InetAddress destination) {
+        synchronized (syncObject) {
+            return destinationMap.get(destination);
+        }
+    }
+
+    /**
+     * Returns the client on the given RTSP connection, null if there is none.
+     */
+    public InterleavedDestination getInterleavedDestination(InterleavedChannel channel) {
+        synchronized (syncObject) {
+            return interleavedMap.get(channel);
+        }
+    }
+
+    /**
+     * Returns the RTP port packets are sent to for the destination. Null stands for the default
+     * destination, which is the multicast group when there is one.
+     */
+    public int getRtpPort(InetAddress destination) {
+        synchronized (syncObject) {
+            RtpDestination rtpDestination = (destination != null) ? destinationMap.get(destination) : multicastDestination;
+            return (rtpDestination != null) ? rtpDestination.getRtpPort() : defaultRtpPort;
+        }
+    }
+
+    public int getRtcpPort(InetAddress destination) {
+        synchronized (syncObject) {
+            RtpDestination rtpDestination = (destination != null) ? destinationMap.get(destination) : multicastDestination;
+            return (rtpDestination != null) ? rtpDestination.getRtcpPort() : defaultRtcpPort;
+        }
+    }
+
+    public int getLocalRtpPort() {
+        return localRtpPort;
+    }
+
+    /**
+     * Returns the local RTCP port for clients that do not use rtcp-mux. It is reserved with the
+     * RTP port, its socket is only opened when such a client is added.
+     */
+    public int getLocalRtcpPort() {
+        return localRtpPort + 1;
+    }
+
+    /**
+     * Sets how the producer waits for a free packet when the ring is full, PARK by default.
+     */
+    public void setWaitStrategy(SpscRing.WaitStrategy producerWait) {
+        this.producerWait = producerWait;
+        rtpRing.setWaitStrategy(producerWait, SpscRing.WaitStrategy.PARK);
+    }
+
+    public void setKeyFrameListener(KeyFrameListener listener) {
+        keyFrameListener = listener;
+    }
+
+    /**
+     * Sets the shortest interval between two keyframes asked for by the clients (PLI, FIR). The
+     * requests that come within it are answered all at once at its end, by a single keyframe.
+     */
+    public void setMinKeyFrameIntervalMs(long minIntervalMs) {
+        keyFrameRequests.setMinIntervalMs(minIntervalMs);
+    }
+
+    public long getMinKeyFrameIntervalMs() {
+        return keyFrameRequests.getMinIntervalMs();
+    }
+
+    /**
+     * Returns the keyframe requests (PLI, FIR) received from the clients.
+     */
+    public long getKeyFrameRequestCount() {
+        return keyFrameRequests.getRequestCount();
+    }
+
+    /**
+     * Returns the keyframes the encoder was asked for, to answer the requests of the clients.
+     */
+    public long getRequestedKeyFrameCount() {
+        return keyFrameRequests.getKeyFrameCount();
+    }
+
+    /**
+     * Returns the smoothed time, in nanoseconds, from when the send loop takes a packet to when
+     * the last UDP destination got it. -1 before the first packet.
+     */
+    public long getFanOutNanos() {
+        return fanOutNanos;
+    }
+
+    /**
+     * Sets how much memory the cache of the last group of pictures, sent to the clients that join, can take.
+     *
+     * @param size In bytes, 0 to cache nothing
+     */
+    public void setGopCacheSize(int size) {
+        synchronized (syncObject) {
+            gopCache = (size > 0) ? new GopCache(size) : null;
+        }
+    }
+
+    public int getGopCacheSize() {
+        synchronized (syncObject) {
+            return (gopCache != null) ? gopCache.getCapacity() : 0;
+        }
+    }
+
+    /**
+     * Sets how much memory the packet pool can take, see {@link PoolSizer}.
+     *
+     * @param minBytes The memory the pool keeps, at least two packets
+     * @param maxBytes The most memory the pool grows to
+     */
+    public void setPoolMemoryLimits(long minBytes, long maxBytes) {
+        int minPackets = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE / 2, minBytes / slotSize));
+        int maxPackets = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE / 2, maxBytes / slotSize));
+        poolSizer.setLimits(minPackets, maxPackets);
+    }
+
+    /**
+     * Returns the memory the packet pool takes, in bytes.
+     */
+    public long getPoolMemory() {
+        return (long) rtpRing.capacity() * slotSize;
+    }
+
+    /**
+     * Returns the most packets that were queued at once, which tells how large the bursts of
+     * the stream get compared to {@link #getPacketCount()}.
+     */
+    public int getHighWaterMark() {
+        return poolSizer.getHighWaterMark();
+    }
+
+    /**
+     * Returns the most packets that were queued at once in the last few seconds.
+     */
+    public int getRecentHighWaterMark() {
+        return poolSizer.getLastWindowHighWater();
+    }
+
+    /**
+     * Returns how many times the producer had to wait for a free packet.
+     */
+    public long getPoolExhaustions() {
+        return poolSizer.getExhaustions();
+    }
+
+    public int getPoolResizes() {
+        return poolSizer.getResizes();
+    }
+
+    /**
+     * Returns the next free packet. Must only be called from a single producer thread, and every
+     * packet must be handed back with {@link #enqueueData(RtpData)} before the next one is dequeued.
+     */
+    public RtpData dequeueData() throws InterruptedException {
+        SpscRing<RtpData> ring = rtpRing;
+        int depth = ring.size();
+        int packets = poolSizer.onDequeue(depth, System.nanoTime());
+        if (packets != ring.capacity() && depth == 0) {
+            ring = resizePool(packets);
+        }
+        RtpData rtpData = ring.claim();
+        // Still in the backlog of a stalled destination, which keeps it
+        if (rtpData.isQueued()) {
+            rtpData = evictQueued(ring, rtpData);
+        }
+        rtpData.keyFrame = false;
+        rtpData.frameSize = 0;
+        rtpData.resetFragment();
+        rtpData.payload.clear();
+        rtpData.payload.limit(getMaxPayloadSize());
+        return rtpData;
+    }
+
+    public void enqueueData(RtpData rtpData) throws InterruptedException {
+        rtpData.payload.flip();
+        mAverageBitrate.push(rtpData.getLength());
+        rtpRing.publish();
+        sendThread.wakeup();
+    }
+
+    /**
+     * Takes a packet still held by a destination out of the ring and puts a free one in its slot,
+     * a packet evicted before and since written, or a new one. The holders keep the evicted packet
+     * until they wrote it, it then waits in {@link #evictedData} to be put back in the ring.
+     */
+    private RtpData evictQueued(SpscRing<RtpData> ring, RtpData queued) {
+        synchronized (syncObject) {
+            RtpData rtpData = null;
+            for (Iterator<RtpData> it = evictedData.iterator(); it.hasNext(); ) {
+                RtpData evicted = it.next();
+                if (!evicted.isQueued()) {
+                    it.remove();
+                    rtpData = evicted;
+                    break;
+                }
+            }
+            if (rtpData == null) {
+                ByteBuffer slot = ByteBuffer.allocateDirect(slotSize);
+                rtpData = new RtpData(sliceSlab(slot, 0, MAX_HEADER_SIZE),
+                        sliceSlab(slot, MAX_HEADER_SIZE, slotSize - MAX_HEADER_SIZE));
+            }
+            restoreHeader(rtpData);
+            evictedData.add(queued);
+            // setSSRC(), setCSRC() and getFreeCount() go through rtpBuffers
+            rtpBuffers[ring.replaceClaimed(rtpData)] = rtpData;
+            evictedPackets++;
+            return rtpData;
+        }
+    }
+
+    /**
+     * Returns how many packets the producer took out of the pool because a stalled destination
+     * still held them when the ring came back to them.
+     */
+    public long getEvictedPackets() {
+        return evictedPackets;
+    }
+
+    private SpscRing<RtpData> resizePool(int packets) {
+        Log.d(TAG, "Packet pool resized from " + rtpRing.capacity() + " to " + packets + " packets, "
+                + (long) packets * slotSize / 1024 + " KiB");
+        SpscRing<RtpData> ring = allocatePool(packets);
+        poolSizer.onResized(packets);
+        return ring;
+    }
+
+    /**
+     * Writes the fixed fields of a new media packet.
+     */
+    private void restoreHeader(RtpData rtpData) {
+        rtpData.fec = false;
+        int[] csrc = this.csrc;
+        ByteBuffer header = rtpData.header;
+        header.limit(HEADER_SIZE + csrc.length * Integer.BYTES);
+        header.put(0, (byte) (0b10000000 | csrc.length)); // Version|P|X|CC
+        header.putInt(8, ssrc);
+        for (int j = 0; j < csrc.length; j++) {
+            header.putInt(HEADER_SIZE + j * Integer.BYTES, csrc[j]);
+        }
+    }
+
+    public long getBitrate() {
+        return mAverageBitrate.average();
+    }
+
+    /**
+     * Returns how many packets {@link #dequeueData()} hands out without waiting or evicting one.
+     */
+    public int getFreeCount() {
+        SpscRing<RtpData> ring = rtpRing;
+        int held = 0;
+        for (RtpData rtpData : rtpBuffers) {
+            // Held by the backlog of a destination that has not written it yet
+            if (rtpData.isQueued()) {
+                held++;
+            }
+        }
+        return Math.max(0, ring.capacity() - ring.size() - held);
+    }
+
+    public int getPacketCount() {
+        return rtpRing.capacity();
+    }
+
+    /**
+     * Drops the packets waiting in the backlogs of the destinations, which gives the buffers lent
+     * to them back to their owner. The packets being written are done with soon after. The stream
+     * can start again afterwards.
+     */
+    public void stop() {
+        synchronized (syncObject) {
+            for (RtpDestination destination : destinationMap.values()) {
+                destination.dropBacklog();
+            }
+        }
+    }
+
+
+    /**
+     * Writes the packets queued on the RTSP connections and retries the destination backlogs.
+     *
+     * @return true if no destination has a backlog left
+     */
+    private boolean flushDestinations() {
+        boolean flushed = true;
+        synchronized (syncObject) {
+            for (RtpDestination destination : destinationMap.values()) {
+                flushed &= destination.flush();
+            }
+            boolean removed = false;
+            Iterator<InterleavedDestination> iterator = interleavedMap.values().iterator();
+            while (iterator.hasNext()) {
+                InterleavedDestination destination = iterator.next();
+                flushed &= destination.flush();
+                if (destination.getChannel().isClosed()) {
+                    destination.close();
+                    iterator.remove();
+                    removed = true;
+                }
+            }
+            if (removed) {
+                updatePacketSizeLimit();
+            }
+        }
+        return flushed;
+    }
+
+    /**
+     * Returns the rate a client that joins gets the cached packets at.
+     */
+    private long catchUpBitrate() {
+        long bitrate = pacer.getPacingRate() * CATCH_UP_SPEED;
+        return (bitrate > 0) ? Math.min(bitrate, pacer.getMaxBitrate()) : pacer.getMaxBitrate();
+    }
+
+    /**
+     * Sends the clients that joined the cached packets they still miss.
+     *
+     * @return Nanoseconds until the next cached packet may go, Long.MAX_VALUE when every client
+     * gets the live packets
+     */
+    private long catchUpDestinations(long now) {
+        synchronized (syncObject) {
+            if (catchingUpDestinations == 0) {
+                return Long.MAX_VALUE;
+            }
+            GopCache gopCache = this.gopCache;
+            if (gopCache == null) {
+                return FLUSH_INTERVAL_NS;
+            }
+            RtpHeaderExtension[] extensions = headerExtensions;
+            int catchingUp = 0;
+            long delay = Long.MAX_VALUE;
+            for (RtpDestination destination : destinationMap.values()) {
+                if (destination.getRewriter().isCatchingUp()) {
+                    long next = destination.catchUp(gopCache, extensions, MAX_PACKETS_PER_RUN, now);
+                    if (next != Long.MAX_VALUE) {
+                        catchingUp++;
+                        delay = Math.min(delay, (next > 0) ? next : FLUSH_INTERVAL_NS);
+                    }
+                }
+            }
+            for (InterleavedDestination destination : interleavedMap.values()) {
+                if (destination.getRewriter().isCatchingUp()) {
+                    long next = destination.catchUp(gopCache, extensions, MAX_PACKETS_PER_RUN, now);
+                    if (next != Long.MAX_VALUE) {
+                        catchingUp++;
+                        delay = Math.min(delay, (next > 0) ? next : FLUSH_INTERVAL_NS);
+                    }
+                }
+            }
+            catchingUpDestinations = catchingUp;
+            return delay;
+        }
+    }
+
+    /**
+     * Sets the canonical name in the SDES of the reports, the same for the tracks players are to
+     * synchronize. The default one is the same for all the streams of the process.
+     */
+    public void setCname(String cname) {
+        synchronized (syncObject) {
+            this.cname = cname;
+            for (RtpDestination destination : destinationMap.values()) {
+                destination.getSenderReport().setCname(cname);
+            }
+            for (InterleavedDestination destination : interleavedMap.values()) {
+                destination.getSenderReport().setCname(cname);
+            }
+        }
+    }
+
+    private void startReports(SenderReport senderReport) {
+        senderReport.setSSRC(ssrc);
+        if (cname != null) {
+            senderReport.setCname(cname);
+        }
+        senderReport.start(System.nanoTime(), sentPacketCount, sentOctetCount);
+        if (senderReport.getNextReportNanos() < nextReportNanos) {
+            nextReportNanos = senderReport.getNextReportNanos();
+            sendThread.wakeup();
+        }
+    }
+
+    private void sendBye(SenderReport senderReport, RtpRewriter rewriter, long now) {
+        senderReport.sendBye(now, rewriter.isStarted(), sentPacketCount, sentOctetCount,
+                currentRtpTimestamp(now) + rewriter.getTimestampOffset());
+    }
+
+    /**
+     * Returns the RTP timestamp of now: the last packet's, moved on by the {@link MediaClock}.
+     */
+    private int currentRtpTimestamp(long now) {
+        if (lastRtpNanos < 0) {
+            return 0;
+        }
+        long nowUs = now / 1000L;
+        if (Math.abs(nowUs - lastTimestampUs) > MAX_PRESENTATION_DELAY_US) {
+            return lastRtpTimestamp + (int) ((now - lastRtpNanos) * clockRateHz / 1000000000L);
+        }
+        return lastRtpTimestamp + (int) (MediaClock.toRtpTimestamp(nowUs, clockRateHz)
+                - MediaClock.toRtpTimestamp(lastTimestampUs, clockRateHz));
+    }
+
+    /**
+     * Sends the RTCP reports that are due, from the send loop.
+     *
+     * @return Nanoseconds until the next one is due, Long.MAX_VALUE if there is no destination
+     */
+    private long sendReports(long now) {
+        if (now < nextReportNanos) {
+            return nextReportNanos - now;
+        }
+        synchronized (syncObject) {
+            int rtpTimestamp = currentRtpTimestamp(now);
+            long next = Long.MAX_VALUE;
+            for (RtpDestination destination : destinationMap.values()) {
+                next = Math.min(next, onReportTimer(destination.getSenderReport(), destination.getRewriter(),
+                        now, rtpTimestamp));
+            }
+            for (InterleavedDestination destination : interleavedMap.values()) {
+                next = Math.min(next, onReportTimer(destination.getSenderReport(), destination.getRewriter(),
+                        now, rtpTimestamp));
+            }
+            nextReportNanos = next;
+            return (next == Long.MAX_VALUE) ? next : Math.max(0, next - now);
+        }
+    }
+
+    private long onReportTimer(SenderReport senderReport, RtpRewriter rewriter, long now, int rtpTimestamp) {
+        // Each client has timestamps of its own
+        senderReport.onTimer(now, rewriter.isStarted(), sentPacketCount, sentOctetCount,
+                rtpTimestamp + rewriter.getTimestampOffset());
+        return senderReport.getNextReportNanos();
+    }
+
+    /**
+     * Returns the report timer of the client an RTCP packet came from.
+     */
+    private SenderReport feedbackSenderReport() {
+        if (feedbackSource != null) {
+            return feedbackSource.getSenderReport();
+        }
+        return (feedbackInterleavedSource != null) ? feedbackInterleavedSource.getSenderReport() : null;
+    }
+
+    /**
+     * Finds the client an RTCP packet came from, a multicast receiver's being the group.
+     *
+     * @return false if the packet comes from none, it is then dropped
+     */
+    private boolean findFeedbackSource(ByteBuffer packet, SocketAddress source) {
+        feedbackSource = null;
+        feedbackInterleavedSource = null;
+        for (InterleavedDestination destination : interleavedMap.values()) {
+            if (source.equals(destination.getChannel().getRemoteAddress())) {
+                feedbackInterleavedSource = destination;
+                return true;
+            }
+        }
+        if (source instanceof InetSocketAddress) {
+            feedbackSource = destinationMap.get(((InetSocketAddress) source).getAddress());
+        }
+        if (feedbackSource == null && multicastDestination != null && isGroupMember(packet)) {
+            feedbackSource = multicastDestination;
+        }
+        return feedbackSource != null;
+    }
+
+    /**
+     * Tells whether an RTCP packet comes from a member of the group, or one joining with a report.
+     */
+    private boolean isGroupMember(ByteBuffer packet) {
+        if (packet.remaining() < 8) {
+            return false;
+        }
+        // The SSRC of the first packet of a compound packet is its sender's
+        int senderSsrc = packet.getInt(packet.position() + 4);
+        return multicastDestination.getSenderReport().isMember(senderSsrc) || RtcpParser.reportsOn(packet, ssrc);
+    }
+
+    private final RtcpParser.Listener feedbackListener = new RtcpParser.Listener() {
+        @Override
+        public void onNack(int mediaSsrc, int sequenceNumber) {
+            if (history == null || mediaSsrc != ssrc || nackCount == MAX_PENDING_NACKS
+                    || (feedbackSource == null && feedbackInterleavedSource == null)) {
+                return;
+            }
+            // Each client has sequence numbers of its own
+            RtpRewriter rewriter = (feedbackSource != null) ? feedbackSource.getRewriter()
+                    : feedbackInterleavedSource.getRewriter();
+            if (!rewriter.isStarted()) {
+                return;
+            }
+            sequenceNumber = rewriter.toStreamSequenceNumber(sequenceNumber);
+            for (int i = 0; i < nackCount; i++) {
+                if (nackSequenceNumbers[i] == sequenceNumber && nackDestinations[i] == feedbackSource
+                        && nackInterleavedDestinations[i] == feedbackInterleavedSource) {
+                    return;
+                }
+            }
+            nackDestinations[nackCount] = feedbackSource;
+            nackInterleavedDestinations[nackCount] = feedbackInterleavedSource;
+            nackSequenceNumbers[nackCount] = sequenceNumber;
+            nackCount++;
+        }
+
+        @Override
+        public void onTransportFeedback(int sequenceNumber, long arrivalTimeUs) {
+            TransportSequenceNumberExtension transportSequenceNumber = RtpSocket.this.transportSequenceNumber;
+            BandwidthEstimator estimator = null;
+            if (feedbackSource != null) {
+                estimator = feedbackSource.getBandwidthEstimator();
+            } else if (feedbackInterleavedSource != null) {
+                estimator = feedbackInterleavedSource.getBandwidthEstimator();
+            }
+            if (transportSequenceNumber == null || estimator == null) {
+                return;
+            }
+            long sendTimeUs = transportSequenceNumber.getSendTimeUs(sequenceNumber);
+            if (sendTimeUs < 0) {
+                return;
+            }
+            long nowUs = System.nanoTime() / 1000L;
+            if (arrivalTimeUs < 0) {
+                estimator.onPacketLost(nowUs);
+            } else {
+                estimator.onPacketReceived(sendTimeUs, arrivalTimeUs, transportSequenceNumber.getSize(sequenceNumber), nowUs);
+            }
+        }
+
+        @Override
+        public void onBye(int ssrc) {
+            SenderReport senderReport = feedbackSenderReport();
+            if (senderReport != null) {
+                long now = System.nanoTime();
+                senderReport.onBye(ssrc, now);
+                // The next report may come sooner
+                if (senderReport.getNextReportNanos() < nextReportNanos) {
+                    nextReportNanos = senderReport.getNextReportNanos();
+                    sendThread.wakeup();
+                }
+            }
+        }
+
+        @Override
+        public void onKeyFrameRequest(int reporterSsrc, int mediaSsrc, int firSequenceNumber) {
+            if (mediaSsrc != ssrc || (feedbackSource == null && feedbackInterleavedSource == null)) {
+                return;
+            }
+            keyFrameRequests.request();
+            keyFrameRequested = true;
+        }
+
+        @Override
+        public void onReceptionReport(int reporterSsrc, int sourceSsrc, int fractionLost, int cumulativeLost,
+                                      long highestSequenceNumber, long jitter, long lastSenderReport,
+                                      long delaySinceLastSenderReport) {
+            if (sourceSsrc != ssrc) {
+                return;
+            }
+            long now = System.nanoTime();
+            SenderReport senderReport = feedbackSenderReport();
+            if (senderReport != null) {
+                senderReport.onMember(reporterSsrc, now);
+            }
+            float fraction = fractionLost / 256f;
+            FecEncoder fecEncoder = RtpSocket.this.fecEncoder;
+            if (fecEncoder != null) {
+                fecEncoder.onLossReported(fraction);
+            }
+            // The highest loss counts at once, lower reports bring it down gradually
+            float loss = lossFraction;
+            lossFraction = (fraction > loss) ? fraction : loss + (fraction - loss) / 4;
+
+            long sampleUs = -1;
+            if (lastSenderReport != 0) {
+                long roundTrip = (SenderReport.compactNtp(now) - lastSenderReport
+                        - delaySinceLastSenderReport) & 0xFFFFFFFFL;
+                if (roundTrip < 0x80000000L) {
+                    sampleUs = roundTrip * 1000000L / 65536L;
+                    long smoothedUs = roundTripTimeUs;
+                    roundTripTimeUs = (smoothedUs < 0) ? sampleUs : (7 * smoothedUs + sampleUs) / 8;
+                }
+            }
+
+            // Per client, in the stream's numbering and in microseconds
+            ReceptionStats stats;
+            RtpRewriter rewriter;
+            if (feedbackSource != null) {
+                stats = feedbackSource.getReceptionStats();
+                rewriter = feedbackSource.getRewriter();
+            } else if (feedbackInterleavedSource != null) {
+                stats = feedbackInterleavedSource.getReceptionStats();
+                rewriter = feedbackInterleavedSource.getRewriter();
+            } else {
+                return;
+            }
+            int sequenceNumber = rewriter.isStarted()
+                    ? rewriter.toStreamSequenceNumber((int) highestSequenceNumber) : -1;
+            long jitterUs = (clockRateHz > 0) ? jitter * 1000000L / clockRateHz : 0;
+            stats.onReport(fractionLost, cumulativeLost, sequenceNumber, jitterUs, sampleUs, now);
+        }
+    };
+
+    private final RtpReactor.Receiver rtcpReceiver = new RtpReactor.Receiver() {
+        @Override
+        public void onReceive(ByteBuffer packet, SocketAddress source) {
+            // NACKs trigger retransmissions, the loss in the reports sets the FEC protection level,
+            // transport-wide feedback drives the bandwidth estimation, PLIs and FIRs ask for keyframes
+            boolean pending;
+            synchronized (syncObject) {
+                if (!findFeedbackSource(packet, source)) {
+                    return;
+                }
+                SenderReport senderReport = feedbackSenderReport();
+                if (senderReport != null) {
+                    // The size of the members' packets sets the report interval
+                    senderReport.onRtcpReceived(packet.remaining());
+                }
+                keyFrameRequested = false;
+                RtcpParser.parse(packet, feedbackListener);
+                pending = nackCount > 0 || keyFrameRequested;
+            }
+            if (pending) {
+                sendThread.wakeup();
+            }
+        }
+    };
+
+    // The group's RTCP port gets the socket's own reports back, they are not feedback
+    private final RtpReactor.Receiver groupRtcpReceiver = new RtpReactor.Receiver() {
+        @Override
+        public void onReceive(ByteBuffer packet, SocketAddress source) {
+            // The SSRC of the first packet of a compound packet is its sender's
+            if (packet.remaining() >= 8 && packet.getInt(packet.position() + 4) == ssrc) {
+                return;
+            }
+            rtcpReceiver.onReceive(packet, source);
+        }
+    };
+
+    // Demultiplexes the channels that carry both RTP and RTCP
+    private final RtpReactor.Receiver muxReceiver = new RtpReactor.Receiver() {
+        @Override
+        public void onReceive(ByteBuffer packet, SocketAddress source) {
+            if (isRtcpPacket(packet)) {
+                rtcpReceiver.onReceive(packet, source);
+            }
+            // RTP sent to a sender-only stream is dropped
+        }
+    };
+
+    /**
+     * Sends again the packets the clients reported lost, to the clients that lost them.
+     */
+    private void retransmit(long now) {
+        RtpHistory history = this.history;
+        synchronized (syncObject) {
+            for (int i = 0; i < nackCount; i++) {
+                RtpDestination destination = nackDestinations[i];
+                InterleavedDestination interleavedDestination = nackInterleavedDestinations[i];
+                nackDestinations[i] = null;
+                nackInterleavedDestinations[i] = null;
+
+                ByteBuffer packet = (history != null) ? history.get(nackSequenceNumbers[i], now) : null;
+                if (packet == null) {
+                    missedRetransmissions++;
+                    continue;
+                }
+                // Copied, then numbered for the client that lost it
+                RtpRewriter rewriter = (destination != null) ? destination.getRewriter()
+                        : interleavedDestination.getRewriter();
+                if (rtxPayloadType >= 0) {
+                    int originalSequenceNumberOffset = toRtxPacket(packet);
+                    rewriter.rewriteRetransmission(rtxBuffer, originalSequenceNumberOffset);
+                } else {
+                    rtxBuffer.clear();
+                    rtxBuffer.put(packet);
+                    rtxBuffer.flip();
+                    rewriter.rewriteRetransmission(rtxBuffer, -1);
+                }
+                RtpHeaderExtension.resend(headerExtensions, rtxBuffer, rtxBuffer.limit(), now);
+                packet = rtxBuffer;
+                // The destination may have been removed since, writing to its closed channel fails quietly
+                if (destination != null) {
+                    destination.resend(packet);
+                } else {
+                    interleavedDestination.resend(packet);
+                }
+                retransmittedPackets++;
+            }
+            nackCount = 0;
+        }
+    }
+
+    //  RTX packet (RFC 4588, section 4)
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |  RTP header of the original packet, with the RTX payload      |
+    // |  type, sequence number and SSRC                               |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |            OSN                |                               |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+                               |
+    // |                  Original RTP Packet Payload                  |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    /**
+     * Copies the packet into rtxBuffer as an RTX packet.
+     *
+     * @return The offset of the original sequence number in rtxBuffer
+     */
+    private int toRtxPacket(ByteBuffer packet) {
+        int headerLength = HEADER_SIZE + (packet.get(0) & 0x0F) * Integer.BYTES;
+        if ((packet.get(0) & 0x10) != 0) {
+            // header extension: 16 bits profile, 16 bits length in 32-bit words
+            headerLength += Integer.BYTES + (packet.getShort(headerLength + 2) & 0xFFFF) * Integer.BYTES;
+        }
+        int originalSequenceNum = packet.getShort(2) & 0xFFFF;
+        int end = packet.limit();
+
+        rtxBuffer.clear();
+        packet.limit(headerLength);
+        rtxBuffer.put(packet);
+        packet.limit(end);
+        rtxBuffer.putShort((short) originalSequenceNum);
+        rtxBuffer.put(packet);
+        rtxBuffer.flip();
+
+        rtxBuffer.put(1, (byte) ((packet.get(1) & 0x80) | rtxPayloadType)); // keeps the marker
+        rtxBuffer.putShort(2, (short) rtxSequenceNum++);
+        rtxBuffer.putInt(8, rtxSsrc);
+        return headerLength;
+    }
+
+    private void writeSendTimeExtensions(ByteBuffer header, int packetLength, long now) {
+        if ((header.get(0) & 0x10) == 0) {
+            return;
+        }
+        int extensionStart = HEADER_SIZE + (header.get(0) & 0x0F) * Integer.BYTES;
+        for (RtpHeaderExtension extension : headerExtensions) {
+            extension.onSend(header, extensionStart + extension.offset, packetLength, now);
+        }
+    }
+
+    private void send(RtpData rtpData, long now) {
+        // Parity packets are neither retransmitted nor counted in the stream's sender reports
+        boolean fec = rtpData.fec;
+        int length = rtpData.getLength();
+        synchronized (syncObject) {
+            // Held until the send loop is done with it, the backlogs hold their own
+            rtpData.ref();
+            if (!fec) {
+                sentPacketCount++;
+                sentOctetCount += length - rtpData.header.limit();
+                lastRtpTimestamp = rtpData.header.getInt(4);
+                lastTimestampUs = rtpData.timestampUs;
+                lastRtpNanos = now;
+                if (rtpData.keyFrame) {
+                    // Answers the keyframe requests that came so far
+                    keyFrameRequests.onKeyFrameSent(now);
+                }
+                writeSendTimeExtensions(rtpData.header, length, now);
+                // The parity covers the packet as sent, send-time extensions included, so that a
+                // packet rebuilt from it is the one that was lost
+                if (fecWorker != null) {
+                    fecWorker.offer(rtpData);
+                }
+                RtpHistory history = this.history;
+                if (history != null) {
+                    history.put(rtpData, now);
+                }
+                if (gopCache != null) {
+                    gopCache.put(rtpData);
+                }
+            }
+            for (RtpDestination destination : destinationMap.values()) {
+                destination.dispatch(rtpData);
+            }
+            if (!destinationMap.isEmpty()) {
+                long elapsed = System.nanoTime() - now;
+                long smoothed = fanOutNanos;
+                fanOutNanos = (smoothed < 0) ? elapsed : smoothed + (elapsed - smoothed) / 16;
+            }
+            for (InterleavedDestination destination : interleavedMap.values()) {
+                destination.dispatch(rtpData);
+            }
+            rtpData.unref();
+        }
+    }
+
+    /**
+     * Asks the encoder for a keyframe if clients asked for one and the last one is old enough.
+     *
+     * @return Nanoseconds until the pending requests can be passed on, Long.MAX_VALUE if none is
+     */
+    private long requestKeyFrame(long now) {
+        long delay = keyFrameRequests.poll(now);
+        if (delay != 0) {
+            return delay;
+        }
+        KeyFrameListener listener = keyFrameListener;
+        if (listener != null) {
+            listener.onKeyFrameRequest();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * The stream's send loop, run by a send thread of the reactor. It sends the packets the pacer
+     * lets through and tells the reactor when to come back for the rest.
+     */
+    private class RtpSender implements RtpReactor.Sender {
+
+        @Override
+        public long process(long now) {
+            // Lost packets go first, they are late already
+            retransmit(now);
+            long delay = Math.min(requestKeyFrame(now), sendPackets(now));
+            delay = Math.min(delay, catchUpDestinations(now));
+            delay = Math.min(delay, sendReports(now));
+            // The packets of the run leave the RTSP connections in one write each
+            boolean flushed = flushDestinations();
+            return flushed ? delay : Math.min(delay, FLUSH_INTERVAL_NS);
+        }
+
+        private long sendPackets(long now) {
+            for (int i = 0; i < MAX_PACKETS_PER_RUN; i++) {
+                // A parity packet goes before the media packets that follow its group
+                FecWorker fecWorker = RtpSocket.this.fecWorker;
+                SpscRing<RtpData> ring = (fecWorker != null) ? fecWorker.parityRing : null;
+                RtpData rtpData = (ring != null) ? ring.peek() : null;
+                if (rtpData == null) {
+                    // The producer may replace the ring, only ever while it is empty
+                    ring = rtpRing;
+                    rtpData = ring.peek();
+                    if (rtpData == null) {
+                        return Long.MAX_VALUE;
+                    }
+                }
+
+                // Caches mCacheSize milliseconds of the stream before the first packet goes out
+                if (startTimeNs == Long.MIN_VALUE) {
+                    startTimeNs = now + mCacheSize * 1000000L;
+                }
+                if (now < startTimeNs) {
+                    return startTimeNs - now;
+                }
+
+                // Spreads the packets of each frame over the frame interval, parity packets count
+                // in the frame being sent
+                int length = rtpData.getLength();
+                long delay = rtpData.fec ? pacer.delayNanos(length, lastTimestampUs, now)
+                        : pacer.delayNanos(length, rtpData.getTimestampUs(), rtpData.frameSize, now);
+                if (delay > 0) {
+                    return delay;
+                }
+
+                ring.poll();
+                send(rtpData, now);
+                ring.release();
+                now = System.nanoTime();
+                pacer.onSent(length, now);
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Computes the parity of the sent media packets off the send thread, and hands the parity
+     * packets back to the send loop, which paces them with the media.
+     */
+    private class FecWorker extends Thread {
+        private static final int SENT_PACKETS = 256;
+        private static final int PARITY_PACKETS = 16;
+
+        // sent media packets, each held until it is protected
+        private final SpscRing<RtpData[]> sentRing;
+        // parity packets, reused once the destinations are done with them
+        private final SpscRing<RtpData> parityRing;
+        private volatile boolean closed;
+
+        FecWorker() {
+            super("FecWorker-" + localRtpPort);
+            setDaemon(true);
+            RtpData[][] sent = new RtpData[SENT_PACKETS][];
+            for (int i = 0; i < SENT_PACKETS; i++) {
+                sent[i] = new RtpData[1];
+            }
+            sentRing = new SpscRing<>(sent);
+            RtpData[] parity = new RtpData[PARITY_PACKETS];
+            for (int i = 0; i < PARITY_PACKETS; i++) {
+                parity[i] = newParityData();
+            }
+            parityRing = new SpscRing<>(parity);
+        }
+
+        /**
+         * Called by the send thread. A packet sent while the worker is behind goes unprotected.
+         */
+        void offer(RtpData rtpData) {
+            RtpData[] slot = sentRing.tryClaim();
+            if (slot == null) {
+                return;
+            }
+            rtpData.ref();
+            slot[0] = rtpData;
+            sentRing.publish();
+            LockSupport.unpark(this);
+        }
+
+        void close() {
+            closed = true;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    RtpData[] slot = sentRing.poll();
+                    if (slot == null) {
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    RtpData rtpData = slot[0];
+                    slot[0] = null;
+                    sentRing.release();
+                    protect(rtpData);
+                }
+            } catch (InterruptedException ignore) {
+            }
+            // No packet is offered once closed
+            RtpData[] slot;
+            while ((slot = sentRing.poll()) != null) {
+                slot[0].unref();
+                slot[0] = null;
+                sentRing.release();
+            }
+        }
+
+        private void protect(RtpData rtpData) throws InterruptedException {
+            FecEncoder fecEncoder = RtpSocket.this.fecEncoder;
+            boolean complete;
+            try {
+                complete = fecEncoder != null && fecEncoder.protect(rtpData.header, rtpData.payload,
+                        rtpData.fragment, rtpData.timestampUs);
+            } finally {
+                rtpData.unref();
+            }
+            if (complete) {
+                writeParity(fecEncoder);
+            }
+        }
+
+        private void writeParity(FecEncoder fecEncoder) throws InterruptedException {
+            RtpData fecData = parityRing.claim();
+            if (fecData.isQueued()) {
+                // A destination backlog still holds it
+                fecData = newParityData();
+                parityRing.replaceClaimed(fecData);
+            }
+            fecData.timestampUs = fecEncoder.getTimestampUs();
+            ByteBuffer header = fecData.header;
+            header.put(1, (byte) fecPayloadType);
+            header.putShort(2, (short) fecSequenceNum++);
+            header.putInt(4, fecEncoder.getRtpTimestamp());
+            header.putInt(8, fecSsrc);
+            fecData.fecTimestampCount = fecEncoder.getTimestamps(fecData.fecTimestamps);
+            fecData.payload.clear();
+            fecEncoder.writeFecPacket(fecData.payload);
+            fecData.payload.flip();
+            fecPackets++;
+            parityRing.publish();
+            sendThread.wakeup();
+        }
+
+        private RtpData newParityData() {
+            ByteBuffer slot = ByteBuffer.allocateDirect(slotSize);
+            RtpData fecData = new RtpData(sliceSlab(slot, 0, MAX_HEADER_SIZE),
+                    sliceSlab(slot, MAX_HEADER_SIZE, slotSize - MAX_HEADER_SIZE));
+            fecData.fec = true;
+            fecData.fecTimestamps = new int[FecEncoder.MAX_GROUP_SIZE];
+            fecData.header.limit(HEADER_SIZE);
+            fecData.header.put(0, (byte) 0b10000000); // Version|P|X|CC
+            return fecData;
+        }
+    }
+
+    /**
+     * Computes an average bit rate.
+     **/
+    protected static class AverageBitrate {
+
+        private final static long RESOLUTION = 200;
+
+        private long mOldNow, mNow, mDelta;
+        private long[] mElapsed, mSum;
+        private int mCount, mIndex, mTotal;
+        private int mSize;
+
+        public AverageBitrate() {
+            mSize = 5000 / ((int) RESOLUTION);
+            reset();
+        }
+
+        public AverageBitrate(int delay) {
+            mSize = delay / ((int) RESOLUTION);
+            reset();
         }
 
         public void reset() {
@@ -406,54 +2066,4 @@ public class RtpSocket {
         }
 
     }
-
-    /**
-     * Computes the proper rate at which packets are sent.
-     */
-    protected static class Statistics {
-
-        public final static String TAG = "Statistics";
-
-        private int count = 500, c = 0;
-        private float m = 0, q = 0;
-        private long elapsed = 0;
-        private long start = 0;
-        private long duration = 0;
-        private long period = 6000000000L;
-        private boolean initoffset = false;
-
-        public Statistics(int count, long period) {
-            this.count = count;
-            this.period = period * 1000000L;
-        }
-
-        public void push(long value) {
-            duration += value;
-            elapsed += value;
-            if (elapsed > period) {
-                elapsed = 0;
-                long now = System.nanoTime();
-                if (!initoffset || (now - start < 0)) {
-                    start = now;
-                    duration = 0;
-                    initoffset = true;
-                }
-                value -= (now - start) - duration;
-                //Log.d(TAG, "sum1: "+duration/1000000+" sum2: "+(now-start)/1000000+" drift: "+((now-start)-duration)/1000000+" v: "+value/1000000);
-            }
-            if (c < 40) {
-                // We ignore the first 40 measured values because they may not be accurate
-                c++;
-                m = value;
-            } else {
-                m = (m * q + value) / (q + 1);
-                if (q < count) q++;
-            }
-        }
-
-        public long average() {
-            long l = (long) m - 2000000;
-            return l > 0 ? l : 0;
-        }
-    }
 }
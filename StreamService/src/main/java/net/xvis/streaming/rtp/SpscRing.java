@@ -0,0 +1,206 @@
+package net.xvis.streaming.rtp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A preallocated single-producer/single-consumer ring of reusable slots.
+ * <p>
+ * The producer {@link #claim()}s a free slot, fills it and {@link #publish()}es it. The consumer
+ * {@link #take()}s the next published slot, uses it and {@link #release()}s it back to the producer.
+ * Slots never leave the ring, so there is no allocation, no lock and no hand-off between two queues:
+ * both sides only exchange two sequence counters.
+ */
+public class SpscRing<T> {
+
+    /**
+     * What a side of the ring does while it waits for the other one.
+     */
+    public enum WaitStrategy {
+        /** Lowest latency, burns a core while waiting. */
+        BUSY_SPIN {
+            @Override
+            void idle(int attempt) { }
+        },
+        /** Gives the core away to other runnable threads between checks. */
+        YIELD {
+            @Override
+            void idle(int attempt) {
+                if (attempt > SPIN_TRIES) {
+                    Thread.yield();
+                }
+            }
+        },
+        /** Spins, then yields, then parks for a short while. Cheapest on battery. */
+        PARK {
+            @Override
+            void idle(int attempt) {
+                if (attempt > SPIN_TRIES + YIELD_TRIES) {
+                    LockSupport.parkNanos(PARK_NANOS);
+                } else if (attempt > SPIN_TRIES) {
+                    Thread.yield();
+                }
+            }
+        };
+
+        private static final int SPIN_TRIES = 100;
+        private static final int YIELD_TRIES = 100;
+        private static final long PARK_NANOS = 50000L; // 50 us
+
+        abstract void idle(int attempt);
+    }
+
+    // Keeps the two counters on separate cache lines
+    @SuppressWarnings("unused")
+    private static class Sequence extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+
+        private long p1, p2, p3, p4, p5, p6, p7;
+
+        Sequence(long initialValue) {
+            super(initialValue);
+        }
+    }
+
+    private final T[] slots;
+    private final int mask;
+    private final Sequence published = new Sequence(-1); // last slot made visible by the producer
+    private final Sequence released = new Sequence(-1);  // last slot given back by the consumer
+
+    // owned by the producer
+    private long claimed = -1;
+    private long cachedReleased = -1;
+    // owned by the consumer
+    private long taken = -1;
+    private long cachedPublished = -1;
+
+    private volatile WaitStrategy producerWait = WaitStrategy.PARK;
+    private volatile WaitStrategy consumerWait = WaitStrategy.PARK;
+
+    /**
+     * @param slots The preallocated slots, the length must be a power of two. The ring keeps a
+     *              copy of the array.
+     */
+    public SpscRing(T[] slots) {
+        if (slots.length == 0 || Integer.bitCount(slots.length) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of two: " + slots.length);
+        }
+        this.slots = slots.clone();
+        this.mask = slots.length - 1;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    public void setWaitStrategy(WaitStrategy producerWait, WaitStrategy consumerWait) {
+        this.producerWait = producerWait;
+        this.consumerWait = consumerWait;
+    }
+
+    /**
+     * Number of slots published and not yet released. Safe to call from any thread.
+     */
+    public int size() {
+        return (int) (published.get() - released.get());
+    }
+
+    /**
+     * Producer side. Waits for a free slot and returns it.
+     */
+    public T claim() throws InterruptedException {
+        long next = claimed + 1;
+        long wrapPoint = next - slots.length;
+        if (cachedReleased < wrapPoint) {
+            int attempt = 0;
+            while ((cachedReleased = released.get()) < wrapPoint) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                producerWait.idle(++attempt);
+            }
+        }
+        claimed = next;
+        return slots[(int) next & mask];
+    }
+
+    /**
+     * Producer side. Returns a free slot without waiting, or null if there is none.
+     */
+    public T tryClaim() {
+        long next = claimed + 1;
+        long wrapPoint = next - slots.length;
+        if (cachedReleased < wrapPoint && (cachedReleased = released.get()) < wrapPoint) {
+            return null;
+        }
+        claimed = next;
+        return slots[(int) next & mask];
+    }
+
+    /**
+     * Producer side. Puts another slot in place of the last claimed one, which leaves the ring.
+     * The consumer sees the new slot once it is published.
+     *
+     * @return The index of the slot, in the array the ring was made with
+     */
+    public int replaceClaimed(T slot) {
+        int index = (int) claimed & mask;
+        slots[index] = slot;
+        return index;
+    }
+
+    /**
+     * Producer side. Makes the last claimed slot visible to the consumer.
+     */
+    public void publish() {
+        published.lazySet(claimed);
+    }
+
+    /**
+     * Consumer side. Waits for the next published slot and returns it.
+     */
+    public T take() throws InterruptedException {
+        long next = taken + 1;
+        if (cachedPublished < next) {
+            int attempt = 0;
+            while ((cachedPublished = published.get()) < next) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                consumerWait.idle(++attempt);
+            }
+        }
+        taken = next;
+        return slots[(int) next & mask];
+    }
+
+    /**
+     * Consumer side. Returns the next published slot without taking it, or null if there is none.
+     */
+    public T peek() {
+        long next = taken + 1;
+        if (cachedPublished < next && (cachedPublished = published.get()) < next) {
+            return null;
+        }
+        return slots[(int) next & mask];
+    }
+
+    /**
+     * Consumer side. Returns the next published slot, or null if there is none yet.
+     */
+    public T poll() {
+        long next = taken + 1;
+        if (cachedPublished < next && (cachedPublished = published.get()) < next) {
+            return null;
+        }
+        taken = next;
+        return slots[(int) next & mask];
+    }
+
+    /**
+     * Consumer side. Gives the last taken slot back to the producer.
+     */
+    public void release() {
+        released.lazySet(taken);
+    }
+}
@@ -0,0 +1,57 @@
+package net.xvis.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A sequence number counting every packet sent on the transport, which the receiver reports the
+ * arrival time of in transport-wide congestion control feedback (RTCP RTPFB, FMT=15).
+ * <p>
+ * Remembers when each of the last packets was sent and how large it was, to match the feedback
+ * with. Written and read under the socket's lock.
+ */
+public class TransportSequenceNumberExtension extends RtpHeaderExtension {
+    public static final String URI = "http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01";
+
+    private static final int HISTORY_SIZE = 4096; // a power of two
+
+    private final int[] sequenceNumbers = new int[HISTORY_SIZE];
+    private final long[] sendTimesUs = new long[HISTORY_SIZE];
+    private final int[] sizes = new int[HISTORY_SIZE];
+    private int sequenceNumber = 0;
+
+    public TransportSequenceNumberExtension() {
+        super(URI, 2);
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            sequenceNumbers[i] = -1;
+        }
+    }
+
+    @Override
+    protected void onSend(ByteBuffer header, int offset, int packetLength, long now) {
+        int index = sequenceNumber & (HISTORY_SIZE - 1);
+        sequenceNumbers[index] = sequenceNumber;
+        sendTimesUs[index] = now / 1000L;
+        sizes[index] = packetLength;
+        header.putShort(offset, (short) sequenceNumber);
+        sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+    }
+
+    @Override
+    protected boolean onResend(ByteBuffer header, int offset, int packetLength, long now) {
+        // The original number was reported already. A new one would be a hole in the sequence for
+        // every other client, the counter is the socket's: the copy goes without one.
+        return false;
+    }
+
+    /**
+     * Returns when the packet was sent, in microseconds, -1 if it is not remembered anymore.
+     */
+    long getSendTimeUs(int sequenceNumber) {
+        int index = sequenceNumber & (HISTORY_SIZE - 1);
+        return (sequenceNumbers[index] == sequenceNumber) ? sendTimesUs[index] : -1;
+    }
+
+    int getSize(int sequenceNumber) {
+        return sizes[sequenceNumber & (HISTORY_SIZE - 1)];
+    }
+}
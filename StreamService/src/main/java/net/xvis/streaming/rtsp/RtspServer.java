@@ -7,16 +7,18 @@ import net.xvis.streaming.Session;
 import net.xvis.streaming.SessionManager;
 import net.xvis.streaming.resources.MediaContainer;
 import net.xvis.streaming.resources.ResourceManager;
+import net.xvis.streaming.rtp.InterleavedChannel;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.BindException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
 import java.net.URI;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -73,15 +75,15 @@ public class RtspServer {
     }
 
     private class ServerThread extends Thread {
-        private ServerSocket serverSocket;
+        private ServerSocketChannel serverSocket;
 
         @Override
         public void run() {
-            Log.i(TAG, "RTSP server listening on local port at " + serverSocket.getLocalPort());
+            Log.i(TAG, "RTSP server listening on local port at " + serverSocket.socket().getLocalPort());
             while (!Thread.interrupted()) {
                 try {
-                    new SessionThread(serverSocket.accept()).start();
-                } catch (SocketException e) {
+                    new SessionThread(new InterleavedChannel(serverSocket.accept())).start();
+                } catch (ClosedChannelException e) {
                     Log.e(TAG, e.getMessage());
                     break;
                 } catch (IOException e) {
@@ -94,8 +96,10 @@ public class RtspServer {
         private void startListening() throws IOException {
             try {
                 Log.d(TAG, "Starting RTSP server at " + rtspPort);
-                serverSocket = new ServerSocket(rtspPort);
-                Log.d(TAG, "InetAddress=" + serverSocket.getInetAddress().toString());
+                // A channel, so that each connection can carry interleaved RTP with non-blocking writes
+                serverSocket = ServerSocketChannel.open();
+                serverSocket.socket().bind(new InetSocketAddress(rtspPort));
+                Log.d(TAG, "InetAddress=" + serverSocket.socket().getInetAddress().toString());
                 start();
             } catch (BindException e) {
                 Log.e(TAG, "Port already in use !");
@@ -126,13 +130,15 @@ public class RtspServer {
     // One thread per client
     private class SessionThread extends Thread {
 
+        private final InterleavedChannel connection;
         private final Socket clientSocket;
         private final BufferedReader inputReader;
         private RtspState state;
 
-        SessionThread(final Socket clientSocket) throws IOException {
-            this.clientSocket = clientSocket;
-            inputReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+        SessionThread(final InterleavedChannel connection) throws IOException {
+            this.connection = connection;
+            this.clientSocket = connection.getSocket();
+            inputReader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
             state = RtspState.INIT;
         }
 
@@ -142,24 +148,20 @@ public class RtspServer {
             while (!Thread.interrupted()) {
                 try {
                     RtspRequest rtspRequest = RtspRequest.waitForRequest(inputReader);
-                    RtspResponse serverResponse = processRequest(rtspRequest, clientSocket);
-                    serverResponse.send(clientSocket.getOutputStream());
+                    RtspResponse serverResponse = processRequest(rtspRequest, clientSocket, connection);
+                    serverResponse.send(connection.getOutputStream());
                 } catch (IOException e) {
                     Log.e(TAG, "Client might have been disconnected");
                     break;
                 }
             }
 
-            try {
-                clientSocket.close();
-            } catch (IOException ignore) {
-            }
-
+            connection.close();
             Log.i(TAG, "Client disconnected");
         }
     }
 
-    private RtspResponse processRequest(RtspRequest request, Socket clientSocket) {
+    private RtspResponse processRequest(RtspRequest request, Socket clientSocket, InterleavedChannel connection) {
         RtspResponse response = new RtspResponse(request);
 
         if (request == null || !request.validate()) {
@@ -186,9 +188,9 @@ public class RtspServer {
             case RtspMethod.DESCRIBE:
                 return handleDescribe(request, clientSocket);
             case RtspMethod.SETUP:
-                return handleSetup(request, clientSocket);
+                return handleSetup(request, clientSocket, connection);
             case RtspMethod.PLAY:
-                return handlePlay(request, clientSocket);
+                return handlePlay(request, clientSocket, connection);
             case RtspMethod.PAUSE:
                 //response.status = ServerResponse.STATUS_OK;
                 break;
@@ -256,7 +258,7 @@ public class RtspServer {
         return response;
     }
 
-    RtspResponse handleSetup(RtspRequest request, Socket clientSocket) {
+    RtspResponse handleSetup(RtspRequest request, Socket clientSocket, InterleavedChannel connection) {
         RtspResponse response = new RtspResponse(request);
 
         // see if requested URI is available
@@ -286,8 +288,9 @@ public class RtspServer {
 
         InetAddress destination = clientSocket.getInetAddress();
         int rtpPort, rtcpPort;
-        Pattern portPattern = Pattern.compile("client_port=(\\d+)-(\\d+)", Pattern.CASE_INSENSITIVE);
-        Matcher portMatcher = portPattern.matcher(request.getValue(RtspHeader.TRANSPORT));
+        String transport = request.getValue(RtspHeader.TRANSPORT);
+        Pattern portPattern = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
+        Matcher portMatcher = portPattern.matcher(transport);
         if (portMatcher.find()) {
             rtpPort = Integer.parseInt(portMatcher.group(1));
             String group2 = portMatcher.group(2);
@@ -297,10 +300,104 @@ public class RtspServer {
             rtcpPort = session.getTrack(trackId).getRtcpPort(destination);
         }
 
+        // The RTP payload size the client wants (RFC 2326, section 12.7), e.g. to stay within a
+        // tunnel's MTU
+        int blocksize = 0;
+        String blocksizeValue = request.getValue(RtspHeader.BLOCKSIZE);
+        if (blocksizeValue != null) {
+            try {
+                blocksize = Integer.parseInt(blocksizeValue.trim());
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Invalid Blocksize " + blocksizeValue);
+            }
+        }
+
         int serverRtpPort = session.getTrack(trackId).getLocalRtpPort();
         int serverRtcpPort = session.getTrack(trackId).getLocalRtcpPort();
+
+        // RTP/AVP/TCP: the packets are interleaved on this RTSP connection, for clients that UDP
+        // cannot reach
+        if (transport.toUpperCase().contains("RTP/AVP/TCP")) {
+            int rtpChannelId, rtcpChannelId;
+            Pattern interleavedPattern = Pattern.compile("interleaved=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
+            Matcher interleavedMatcher = interleavedPattern.matcher(transport);
+            if (interleavedMatcher.find()) {
+                try {
+                    rtpChannelId = Integer.parseInt(interleavedMatcher.group(1));
+                    String group2 = interleavedMatcher.group(2);
+                    rtcpChannelId = (group2 == null) ? rtpChannelId + 1 : Integer.parseInt(group2);
+                } catch (NumberFormatException e) {
+                    rtpChannelId = -1;
+                    rtcpChannelId = -1;
+                }
+                // Checked before anything is taken, a rejected SETUP leaves the connection as it was
+                if (!InterleavedChannel.isValidChannelId(rtpChannelId)
+                        || !InterleavedChannel.isValidChannelId(rtcpChannelId) || rtpChannelId == rtcpChannelId
+                        || !connection.reserveChannelPair(rtpChannelId, rtcpChannelId)) {
+                    response.setStatus(RtspResponse.STATUS_461_UNSUPPORTED_TRANSPORT);
+                    return response;
+                }
+            } else {
+                rtpChannelId = connection.allocateChannelPair();
+                if (rtpChannelId < 0) {
+                    response.setStatus(RtspResponse.STATUS_461_UNSUPPORTED_TRANSPORT);
+                    return response;
+                }
+                rtcpChannelId = rtpChannelId + 1;
+            }
+            String blocksizeHeader = "";
+            try {
+                session.getTrack(trackId).addInterleavedDestination(connection, rtpChannelId, rtcpChannelId);
+                if (blocksize > 0) {
+                    blocksizeHeader = RtspHeader.BLOCKSIZE + ": "
+                            + session.getTrack(trackId).setBlocksize(connection, blocksize) + "\r\n";
+                }
+            } catch (RuntimeException e) {
+                connection.releaseChannelPair(rtpChannelId, rtcpChannelId);
+                throw e;
+            }
+
+            response.setStatus(RtspResponse.STATUS_200_OK);
+            response.addHeader(RtspHeader.TRANSPORT, "RTP/AVP/TCP;unicast" +
+                    ";interleaved=" + rtpChannelId + "-" + rtcpChannelId +
+                    ";ssrc=" + Integer.toHexString(ssrc) +
+                    ";mode=play\r\n" +
+                    "Session: " + session.getSessionId() + "\r\n" +
+                    "Cache-Control: no-cache\r\n" +
+                    blocksizeHeader);
+            return response;
+        }
+
+        // A multicast mount sends one copy of the stream to its group, the client only joins it
+        InetAddress group = session.getTrack(trackId).getMulticastGroup();
+        if (group != null) {
+            response.setStatus(RtspResponse.STATUS_200_OK);
+            response.addHeader(RtspHeader.TRANSPORT, "RTP/AVP/UDP;multicast" +
+                    ";destination=" + group.getHostAddress() +
+                    ";port=" + session.getTrack(trackId).getRtpPort(null) + "-" + session.getTrack(trackId).getRtcpPort(null) +
+                    ";ttl=" + session.getTrack(trackId).getTimeToLive() +
+                    ";ssrc=" + Integer.toHexString(ssrc) +
+                    ";mode=play\r\n" +
+                    "Session: " + session.getSessionId() + "\r\n" +
+                    "Cache-Control: no-cache\r\n");
+            return response;
+        }
+
+        // rtcp-mux (RFC 5761) when the mount offers it and the client asks for it: RTCP shares the
+        // RTP port on both sides
+        boolean rtcpMux = mediaContainer.isRtcpMux() && transport.toLowerCase().contains("rtcp-mux");
+        if (rtcpMux) {
+            rtcpPort = rtpPort;
+            serverRtcpPort = serverRtpPort;
+        }
+
         String castMode = destination.isMulticastAddress() ? "multicast" : "unicast";
         session.getTrack(trackId).addDestination(destination, rtpPort, rtcpPort);
+        String blocksizeHeader = "";
+        if (blocksize > 0) {
+            blocksizeHeader = RtspHeader.BLOCKSIZE + ": "
+                    + session.getTrack(trackId).setBlocksize(destination, blocksize) + "\r\n";
+        }
 
         //boolean streaming = isStreaming();
         //mSession.syncStart(trackId);
@@ -310,16 +407,18 @@ public class RtspServer {
         response.setStatus(RtspResponse.STATUS_200_OK);
         response.addHeader(RtspHeader.TRANSPORT, "RTP/AVP/UDP;" + castMode +
                 ";destination=" + destination.getHostAddress() +
-                ";client_port=" + rtpPort + "-" + rtcpPort +
-                ";server_port=" + serverRtpPort + "-" + serverRtcpPort +
+                ";client_port=" + (rtcpMux ? rtpPort : rtpPort + "-" + rtcpPort) +
+                ";server_port=" + (rtcpMux ? serverRtpPort : serverRtpPort + "-" + serverRtcpPort) +
+                (rtcpMux ? ";RTCP-mux" : "") +
                 ";ssrc=" + Integer.toHexString(ssrc) +
                 ";mode=play\r\n" +
                 "Session: " + session.getSessionId() + "\r\n" +
-                "Cache-Control: no-cache\r\n");
+                "Cache-Control: no-cache\r\n" +
+                blocksizeHeader);
         return response;
     }
 
-    private RtspResponse handlePlay(RtspRequest request, Socket clientSocket) {
+    private RtspResponse handlePlay(RtspRequest request, Socket clientSocket, InterleavedChannel connection) {
         RtspResponse response = new RtspResponse(request);
         Session session = SessionManager.findSession(request.getUri());
         if (session == null) {
@@ -327,11 +426,22 @@ public class RtspServer {
             return response;
         }
 
-        String rtpInfo = "";
+        // The sequence number and timestamp of the first packet of each track this client gets
+        // (RFC 2326, section 12.33), a multicast client takes the group's stream where it is
+        StringBuilder rtpInfo = new StringBuilder();
         for (String trackId : session.getAllTrackIds()) {
-            rtpInfo += "url=" + request.getUri() + "/trackID=" + trackId + ";seq=0,";
+            MediaStream track = session.getTrack(trackId);
+            if (rtpInfo.length() > 0) {
+                rtpInfo.append(',');
+            }
+            rtpInfo.append("url=").append(request.getUri()).append("/trackID=").append(trackId);
+            int seq = track.getInitialSequenceNumber(connection, clientSocket.getInetAddress());
+            if (seq >= 0) {
+                rtpInfo.append(";seq=").append(seq)
+                        .append(";rtptime=").append(track.getInitialRtpTimestamp(connection, clientSocket.getInetAddress()));
+            }
         }
-        response.addHeader(RtspHeader.RTP_INFO, rtpInfo);
+        response.addHeader(RtspHeader.RTP_INFO, rtpInfo.toString());
         response.addHeader(RtspHeader.SESSION, session.getSessionId());
 
         //serverResponse.attributes = requestAttributes.substring(0, requestAttributes.length() - 1) + "\r\nSession: 1185d20035702ca\r\n";
@@ -0,0 +1,114 @@
+package net.xvis.streaming.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits an H.264 byte stream (ITU-T H.264, Annex B) into its NAL units without copying them: it
+ * only tells where each NAL unit begins and ends in the buffer. An access unit can hold any number
+ * of them, e.g. an SEI, an AUD or the SPS and PPS in front of several slices.
+ * <p>
+ * NAL units are preceded by the 3-byte start code 00 00 01, or by 00 00 00 01. The start codes
+ * are searched a long at a time: a word without a zero byte cannot hold the beginning of one, and
+ * most words of a slice have none, so only the words with a zero byte are looked at byte by byte.
+ */
+public class AnnexBReader {
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private ByteBuffer buffer;
+    private int end;
+    private int next = -1; // where the next NAL unit begins, -1 when there is none
+    private int nalUnitStart;
+    private int nalUnitEnd;
+
+    /**
+     * Starts reading the NAL units of a buffer. The buffer's limit must not be lowered below end
+     * before the last NAL unit is read, its position does not matter.
+     *
+     * @param start The absolute offset of the stream in the buffer
+     * @param end The absolute offset of the end of the stream
+     */
+    public void reset(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.end = end;
+        // anything before the first start code is leading zeros
+        int startCode = findStartCode(buffer, start, end);
+        next = (startCode >= 0) ? startCode + 3 : -1;
+    }
+
+    /**
+     * Moves to the next NAL unit.
+     *
+     * @return false when there is none left
+     */
+    public boolean next() {
+        while (next >= 0) {
+            int start = next;
+            int startCode = findStartCode(buffer, start, end);
+            int nalEnd;
+            if (startCode >= 0) {
+                nalEnd = startCode;
+                next = startCode + 3;
+            } else {
+                nalEnd = end;
+                next = -1;
+            }
+            // A NAL unit never ends with a zero byte: those are trailing zeros, or the first
+            // byte of a 4-byte start code
+            while (nalEnd > start && buffer.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > start) {
+                nalUnitStart = start;
+                nalUnitEnd = nalEnd;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the absolute offset of the header of the current NAL unit.
+     */
+    public int getStart() {
+        return nalUnitStart;
+    }
+
+    /**
+     * Returns the absolute offset of the end of the current NAL unit, exclusive.
+     */
+    public int getEnd() {
+        return nalUnitEnd;
+    }
+
+    public int getNalUnitType() {
+        return buffer.get(nalUnitStart) & 0x1F;
+    }
+
+    /**
+     * Returns the offset of the first 00 00 01 between from and to, or -1 if there is none. A
+     * 4-byte start code is found at its second byte.
+     */
+    public static int findStartCode(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        // A start code ends two bytes after the word it begins in
+        while (i + Long.BYTES + 2 <= to) {
+            long word = buffer.getLong(i);
+            // non-zero iff a byte of the word is zero, whatever the byte order
+            if (((word - ONES) & ~word & HIGHS) != 0) {
+                for (int j = i; j < i + Long.BYTES; j++) {
+                    if (buffer.get(j) == 0 && buffer.get(j + 1) == 0 && buffer.get(j + 2) == 1) {
+                        return j;
+                    }
+                }
+            }
+            i += Long.BYTES;
+        }
+        for (; i + 2 < to; i++) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
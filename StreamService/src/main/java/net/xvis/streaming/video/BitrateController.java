@@ -0,0 +1,104 @@
+package net.xvis.streaming.video;
+
+/**
+ * Closed-loop adaptive bitrate: retargets a running encoder to what the network carries, so that
+ * the encoder does not out-send the link and fill the socket's queues.
+ * <p>
+ * Takes the bandwidth estimate of the transport-wide feedback, the loss and the round trip time of
+ * the receiver reports. A decrease is applied as soon as it exceeds {@link #DOWN_HYSTERESIS}, an
+ * increase only when it exceeds {@link #UP_HYSTERESIS}, some time after the last decrease, and by
+ * at most {@link #MAX_INCREASE} per update, so the encoder does not oscillate around the estimate.
+ * The bitrate always stays between the floor and the ceiling of the {@link VideoQuality}.
+ * <p>
+ * Free of Android classes: the encoder is behind {@link Encoder}, so the controller runs on a plain
+ * JVM with a fake one.
+ */
+public class BitrateController {
+    public static final long UPDATE_INTERVAL_MS = 500;
+    public static final float DOWN_HYSTERESIS = 0.05f;
+    public static final float UP_HYSTERESIS = 0.10f;
+    public static final float MAX_INCREASE = 0.15f;
+    public static final long INCREASE_HOLD_MS = 2000;
+
+    // part of the estimate left for RTP/UDP/IP headers, retransmissions and parity packets
+    private static final float ESTIMATE_HEADROOM = 0.9f;
+    private static final float HIGH_LOSS = 0.10f;
+    private static final float MODERATE_LOSS = 0.02f;
+    // round trip time above the lowest one seen that means the queues fill up
+    private static final long QUEUEING_DELAY_MS = 150;
+    private static final float QUEUEING_DECREASE = 0.9f;
+
+    /**
+     * The encoder being driven, MediaCodec.setParameters(PARAMETER_KEY_VIDEO_BITRATE) on a device.
+     */
+    public interface Encoder {
+        void setBitrate(int bitrate);
+    }
+
+    private final Encoder encoder;
+    private final int minBitrate;
+    private final int maxBitrate;
+    private int bitrate;
+    private long lastUpdateMs = Long.MIN_VALUE / 2;
+    private long lastDecreaseMs = Long.MIN_VALUE / 2;
+    private long minRoundTripTimeMs = Long.MAX_VALUE;
+
+    /**
+     * @param bitrate The bitrate the encoder was configured with
+     */
+    public BitrateController(Encoder encoder, int minBitrate, int maxBitrate, int bitrate) {
+        if (minBitrate <= 0 || maxBitrate < minBitrate) {
+            throw new IllegalArgumentException("Invalid bitrate range " + minBitrate + "-" + maxBitrate);
+        }
+        this.encoder = encoder;
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        this.bitrate = Math.max(minBitrate, Math.min(maxBitrate, bitrate));
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * Feeds the latest network measurements, at most every {@link #UPDATE_INTERVAL_MS} is taken.
+     *
+     * @param estimatedBitrate The bandwidth estimate in bits per second, 0 if there is none
+     * @param lossFraction The fraction of packets the receivers lost, in [0, 1]
+     * @param roundTripTimeMs The round trip time to the receivers, negative if unknown
+     * @return The bitrate the encoder is set to
+     */
+    public int update(long estimatedBitrate, float lossFraction, long roundTripTimeMs, long nowMs) {
+        if (nowMs - lastUpdateMs < UPDATE_INTERVAL_MS) {
+            return bitrate;
+        }
+        lastUpdateMs = nowMs;
+
+        long desired = (estimatedBitrate > 0) ? (long) (estimatedBitrate * ESTIMATE_HEADROOM) : maxBitrate;
+        if (lossFraction > HIGH_LOSS) {
+            desired = Math.min(desired, (long) (bitrate * (1 - 0.5f * lossFraction)));
+        } else if (lossFraction > MODERATE_LOSS) {
+            desired = Math.min(desired, bitrate);
+        }
+        if (roundTripTimeMs >= 0) {
+            minRoundTripTimeMs = Math.min(minRoundTripTimeMs, roundTripTimeMs);
+            if (roundTripTimeMs > minRoundTripTimeMs + QUEUEING_DELAY_MS) {
+                desired = Math.min(desired, (long) (bitrate * QUEUEING_DECREASE));
+            }
+        }
+        desired = Math.max(minBitrate, Math.min(maxBitrate, desired));
+
+        int newBitrate = bitrate;
+        if (desired < bitrate * (1 - DOWN_HYSTERESIS)) {
+            newBitrate = (int) desired;
+            lastDecreaseMs = nowMs;
+        } else if (desired > bitrate * (1 + UP_HYSTERESIS) && nowMs - lastDecreaseMs >= INCREASE_HOLD_MS) {
+            newBitrate = (int) Math.min(desired, (long) (bitrate * (1 + MAX_INCREASE)));
+        }
+        if (newBitrate != bitrate) {
+            bitrate = newBitrate;
+            encoder.setBitrate(newBitrate);
+        }
+        return bitrate;
+    }
+}
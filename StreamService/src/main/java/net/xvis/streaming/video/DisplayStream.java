@@ -9,24 +9,37 @@ import android.util.Log;
 import net.xvis.display.VirtualDisplaySurface;
 
 import net.xvis.streaming.mp4.MP4Config;
+import net.xvis.streaming.rtp.MediaClock;
 import net.xvis.streaming.rtp.RtpSocket;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 public class DisplayStream extends VideoStream {
 
     public final static String TAG = "DisplayStream";
 
+    private static final int STAP_A_HEADER_SIZE = 1;
+    private static final int STAP_A_SIZE_LENGTH = 2;
+
     private MP4Config mConfig;
     private VirtualDisplay virtualDisplay;
     private VirtualDisplaySurface displaySurface;
     private long clockRateHz = 90000; // in Hz for H.264
     private int payloadType = 96;
     private long sequenceNum = 0;
-    private byte[] sps = null, pps = null, stapa = null;
+    private byte[] sps = null, pps = null;
+    private final FrameDropPolicy frameDropPolicy = new FrameDropPolicy();
+    private volatile boolean zeroCopy = false;
+    // the packets of the current access unit not sent yet, the last one is to carry the marker
+    private RtpSocket.RtpData aggregate;
+    private int aggregateCount;
+    private int aggregateHeader;
+    private RtpSocket.RtpData pendingPacket;
+    private boolean parameterSetsSent;
+    private boolean keyFrameStart; // the next packet starts a keyframe
+    private int frameStartSize; // the size of the access unit the next packet starts, 0 if none
+    private final AnnexBReader annexBReader = new AnnexBReader();
 
     public DisplayStream(VirtualDisplay virtualDisplay) {
         super();
@@ -42,17 +55,38 @@ public class DisplayStream extends VideoStream {
 
     }
 
+    public FrameDropPolicy getFrameDropPolicy() {
+        return frameDropPolicy;
+    }
+
+    /**
+     * Packetizes without copying the bitstream: the packets carry slices of the codec's output
+     * buffers, which go back to the codec once the last packet is sent. Saves a copy of every
+     * frame, but an output buffer stays with the codec's pool only as long as the slowest
+     * destination's backlog holds on to it.
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    public boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
     @Override
     public synchronized String getSessionDescription() throws IllegalStateException {
         // m=<media> <port> <transport> <fmt list>
         // a=rtpmap:<payload type> <encoding name>/<clock rate>[/<encoding params>]
         // a=fmtp:<format> <format specific parameters>
-        return "m=video " + String.valueOf(rtpSocket.getRtpPort(null)) + " RTP/AVP " + payloadType + "\r\n" +
+        return "m=video " + String.valueOf(rtpSocket.getRtpPort(null)) + " RTP/AVP " + getFormats(payloadType) + "\r\n" +
                 "a=rtpmap:" + payloadType + " H264/" + String.valueOf(clockRateHz) + "\r\n" +
                 "a=fmtp:" + payloadType +
                 " packetization-mode=1;" + // non-interleaved mode supports only Single NALU, STAP-A, FU-A
                 //"profile-level-id=" + mConfig.getProfileLevel() + ";" +
-                "sprop-parameter-sets=" + b64SPS + "," + b64PPS + ";\r\n";
+                "sprop-parameter-sets=" + b64SPS + "," + b64PPS + ";\r\n" +
+                getRetransmissionDescription(payloadType, clockRateHz) +
+                getFecDescription(clockRateHz) +
+                getHeaderExtensionDescription(payloadType);
     }
 
     @Override
@@ -99,6 +133,18 @@ public class DisplayStream extends VideoStream {
         }
     }
 
+    /**
+     * Returns the number of packets a NAL unit is sent in, a single NAL unit packet or FU-A fragments.
+     */
+    private static int countPackets(int nalUnitSize, int maxPayloadSize) {
+        if (nalUnitSize <= maxPayloadSize) {
+            return 1;
+        }
+        // the NAL unit header is replaced by the 2-byte FU indicator and header in each fragment
+        int fragmentSize = maxPayloadSize - 2;
+        return (nalUnitSize - 1 + fragmentSize - 1) / fragmentSize;
+    }
+
     @Override
     protected void streamEncodedData(MediaCodec.BufferInfo bufferInfo, ByteBuffer encodedData) {
         if (encodedData == null) {
@@ -112,103 +158,274 @@ public class DisplayStream extends VideoStream {
         // BUFFER_FLAG_END_OF_STREAM = 4
         // BUFFER_FLAG_PARTIAL_FRAME = 8
         long timestampUs = bufferInfo.presentationTimeUs;
-        long rtpTimestamp = (long) (bufferInfo.presentationTimeUs / 1000.0 * clockRateHz / 1000.0 + 0.5);
+        // The surface stamps the frames on the MediaClock, the sender reports map it to NTP
+        long rtpTimestamp = MediaClock.toRtpTimestamp(bufferInfo.presentationTimeUs, clockRateHz);
         //Log.e(TAG, "BufferSize=" + bufferInfo.size + ", flags=" + bufferInfo.flags + ", rtpTs=" + timestamp + ", timeUs=" + bufferInfo.presentationTimeUs);
 
-        // Check NAL unit start code
-        byte startCode[] = new byte[4];
-        encodedData.get(startCode, 0, 4);
-        if (startCode[0] != 0 || startCode[1] != 0 || startCode[2] != 0 || startCode[3] != 1) {
-            Log.e(TAG, "invalid startCode, " + Arrays.toString(startCode));
+        // The NAL units of the access unit, each behind a start code
+        int bufferEnd = bufferInfo.offset + bufferInfo.size;
+        encodedData.limit(bufferEnd);
+        annexBReader.reset(encodedData, bufferInfo.offset, bufferEnd);
+
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The SPS and PPS, onFormatChanged() has them too: they go in-band before each IDR
+            while (annexBReader.next()) {
+                int nalUnitType = annexBReader.getNalUnitType();
+                if (nalUnitType == FrameDropPolicy.NAL_UNIT_TYPE_SPS) {
+                    sps = copyNalUnit(encodedData);
+                } else if (nalUnitType == FrameDropPolicy.NAL_UNIT_TYPE_PPS) {
+                    pps = copyNalUnit(encodedData);
+                }
+            }
             return;
         }
 
+        try {
+            parameterSetsSent = false;
+            keyFrameStart = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            frameStartSize = bufferInfo.size;
+            if (keyFrameStart && sps != null && pps != null) {
+                frameStartSize += sps.length + pps.length;
+            }
+            int nalUnits = 0;
+            while (annexBReader.next()) {
+                encodedData.limit(annexBReader.getEnd());
+                encodedData.position(annexBReader.getStart());
+                streamNalUnit(encodedData, rtpTimestamp, timestampUs);
+                encodedData.limit(bufferEnd);
+                nalUnits++;
+            }
+            if (nalUnits == 0) {
+                Log.e(TAG, "no start code in a buffer of " + bufferInfo.size + " bytes");
+            }
+            // The last packet of the access unit carries the marker
+            flushAggregate(true);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Takes a packet from the pool, the first one of a keyframe is marked for the GOP cache and
+     * the first one of an access unit carries its size for the pacer.
+     */
+    private RtpSocket.RtpData dequeueData() throws InterruptedException {
+        RtpSocket.RtpData rtpData = rtpSocket.dequeueData();
+        rtpData.setKeyFrame(keyFrameStart);
+        rtpData.setFrameSize(frameStartSize);
+        keyFrameStart = false;
+        frameStartSize = 0;
+        return rtpData;
+    }
+
+    private byte[] copyNalUnit(ByteBuffer encodedData) {
+        byte[] nalUnit = new byte[annexBReader.getEnd() - annexBReader.getStart()];
+        encodedData.position(annexBReader.getStart());
+        encodedData.get(nalUnit);
+        return nalUnit;
+    }
+
+    /**
+     * Sends a NAL unit of the current access unit: aggregated with its neighbours in a STAP-A if
+     * it is small, else in a single NAL unit packet or in FU-A fragments. The last packet of the
+     * access unit is left to {@link #flushAggregate(boolean)}, unless the NAL unit is fragmented.
+     *
+     * @param encodedData Positioned at the NAL unit header, limited to the end of the NAL unit
+     */
+    private void streamNalUnit(ByteBuffer encodedData, long rtpTimestamp, long timestampUs)
+            throws InterruptedException {
         // NAL unit size
-        int nalUnitSize = bufferInfo.size - encodedData.position();
+        int nalUnitSize = encodedData.remaining();
 
         // NAL unit header: [F:1|NRI:2|Type:5] forbidden_zero_bit, nal_ref_id, nal_unit_type
-        byte unitHeader = encodedData.get();
+        byte unitHeader = encodedData.get(encodedData.position());
         int nalUnitType = unitHeader & 0x1F;
+        int nalRefIdc = (unitHeader >> 5) & 0x03;
         //Log.e(TAG, "NAL unit type=" + nalUnitType + ", size=" + nalUnitSize);
 
-        try {
-            //if (nalUnitType == 7 || nalUnitType == 8) {
-            //    // 7: sequence parameter set
-            //    // 8: picture parameter set
-            //}
-            //// We send two packets containing NALU type 7 (SPS) and 8 (PPS)
-            //// Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
-            //if (nalUnitType == 5 && sps != null && pps != null) {
-            //    DatagramPacket packet = rtpSocket.dequeuePacket(); // blocking
-            //    System.arraycopy(stapa, 0, packet.getData(), RtpSocket.HEADER_SIZE, stapa.length);
-            //    packet.setLength(RtpSocket.HEADER_SIZE + stapa.length);
-            //    rtpSocket.enqueuePacket(packet, true, sequenceNum++, timestamp);
-            //}
-
-            int maxPayloadSize = rtpSocket.getMaxPayloadSize();
-            int payloadOffset = rtpSocket.getPayloadOffset();
-            int payloadSize = nalUnitSize;
-
-            if (payloadSize <= maxPayloadSize) {
-                // Single NAL unit
-                RtpSocket.RtpData rtpData = rtpSocket.dequeueData(); // blocking
-                // prepare payload
-                DatagramPacket packet = rtpData.getPacket();
-                byte[] data = packet.getData();
-                data[payloadOffset] = unitHeader;
-                encodedData.get(data, payloadOffset + 1, payloadSize - 1);
-                packet.setLength(payloadOffset + payloadSize);
-                // send over
-                rtpData.setHeader(true, rtpTimestamp, timestampUs, sequenceNum++);
-                rtpSocket.enqueueData(rtpData);
+        // Drops whole frames rather than waiting for packets when the network falls behind
+        int packets = countPackets(nalUnitSize, rtpSocket.getMaxPayloadSize());
+        if (nalUnitType == FrameDropPolicy.NAL_UNIT_TYPE_IDR && !parameterSetsSent && sps != null && pps != null) {
+            packets++; // the SPS and PPS sent in front of it
+        }
+        boolean admitted = frameDropPolicy.admit(nalUnitType, nalRefIdc, packets, rtpSocket.getFreeCount(),
+                rtpSocket.getPacketCount());
+        if (frameDropPolicy.consumeKeyFrameRequest()) {
+            Log.d(TAG, "Packets running out, dropping frames up to the next keyframe");
+            requestKeyFrame();
+        }
+        if (!admitted) {
+            return;
+        }
+
+        if (nalUnitType == FrameDropPolicy.NAL_UNIT_TYPE_SPS || nalUnitType == FrameDropPolicy.NAL_UNIT_TYPE_PPS) {
+            parameterSetsSent = true;
+        } else if (nalUnitType == FrameDropPolicy.NAL_UNIT_TYPE_IDR && !parameterSetsSent
+                && sps != null && pps != null) {
+            // The SPS and PPS in front of every IDR, so that a client joining at a keyframe can
+            // decode it whether it got the SDP or not
+            parameterSetsSent = true;
+            aggregate(ByteBuffer.wrap(sps), rtpTimestamp, timestampUs);
+            aggregate(ByteBuffer.wrap(pps), rtpTimestamp, timestampUs);
+        }
+
+        int maxPayloadSize = rtpSocket.getMaxPayloadSize();
+        if (STAP_A_HEADER_SIZE + STAP_A_SIZE_LENGTH + nalUnitSize <= maxPayloadSize) {
+            aggregate(encodedData, rtpTimestamp, timestampUs);
+            return;
+        }
+        // Too big to share a packet, what was aggregated goes first
+        flushAggregate(false);
+
+        int payloadSize = nalUnitSize;
+        int nalUnitEnd = encodedData.limit();
+        encodedData.get(); // unitHeader
+
+        if (payloadSize <= maxPayloadSize) {
+            // Single NAL unit
+            RtpSocket.RtpData rtpData = dequeueData(); // blocking
+            // prepare payload
+            if (zeroCopy) {
+                // the NAL unit header is still in the codec buffer, just before
+                encodedData.position(encodedData.position() - 1);
+                rtpData.setFragment(encodedData, lendOutputBuffer());
             } else {
-                // Fragment Units
-                int bytesRead = 1; // 1st byte (unitHeader) is read already
-                byte startBit = (byte) 0x80;
-                byte endBit = 0;
-                boolean marker = false;
-                payloadSize = maxPayloadSize;
-
-                while (bytesRead < nalUnitSize) {
-                    RtpSocket.RtpData rtpData = rtpSocket.dequeueData(); // blocking
-                    // prepare payload
-                    DatagramPacket packet = rtpData.getPacket();
-                    byte[] data = packet.getData();
-
-                    // FU indicator, [F:1|NRI:2|Type:5] F=0, NRI, type=28 FU-A, 29 for FU-B
-                    data[payloadOffset] = (byte) (unitHeader & 0x60 | 28); // 0110 0000, 0001 1100
-                    // FU header [S:1|E:1|R:1|Type:5], R=0
-                    data[payloadOffset + 1] = (byte) (startBit | endBit | (unitHeader & 0x1F)); // 0001 1111
-
-                    // NAL
-                    encodedData.get(data, payloadOffset + 2, payloadSize - 2);
-
-                    // payload size
-                    packet.setLength(payloadOffset + payloadSize);
+                ByteBuffer payload = rtpData.getPayload();
+                payload.put(unitHeader);
+                payload.put(encodedData);
+            }
+            // send over, the marker is set by the next flushAggregate()
+            rtpData.setHeader(false, rtpTimestamp, timestampUs, sequenceNum++);
+            pendingPacket = rtpData;
+        } else {
+            // Fragment Units
+            int bytesRead = 1; // 1st byte (unitHeader) is read already
+            byte startBit = (byte) 0x80;
+            byte endBit = 0;
+            boolean marker = false;
+            payloadSize = maxPayloadSize;
+
+            while (bytesRead < nalUnitSize) {
+                RtpSocket.RtpData rtpData = dequeueData(); // blocking
+                // prepare payload
+                ByteBuffer payload = rtpData.getPayload();
+
+                // FU indicator, [F:1|NRI:2|Type:5] F=0, NRI, type=28 FU-A, 29 for FU-B
+                payload.put((byte) (unitHeader & 0x60 | 28)); // 0110 0000, 0001 1100
+                // FU header [S:1|E:1|R:1|Type:5], R=0
+                payload.put((byte) (startBit | endBit | (unitHeader & 0x1F))); // 0001 1111
+
+                // NAL, a slice of the codec buffer or copied straight into the direct payload buffer
+                encodedData.limit(encodedData.position() + payloadSize - 2);
+                if (zeroCopy) {
+                    rtpData.setFragment(encodedData, lendOutputBuffer());
+                    encodedData.position(encodedData.limit());
+                } else {
+                    payload.put(encodedData);
+                }
+                encodedData.limit(nalUnitEnd);
+
+                // update for the next fragment
+                bytesRead += (payloadSize - 2);
+                payloadSize = nalUnitSize - bytesRead + 2;
+                if (payloadSize <= maxPayloadSize) { // last fragment
+                    endBit = (byte) 0x40;
+                } else {
+                    payloadSize = maxPayloadSize;
+                }
+                startBit = 0;
 
+                if (bytesRead < nalUnitSize) {
                     // send
                     rtpData.setHeader(marker, rtpTimestamp, timestampUs, sequenceNum++);
                     rtpSocket.enqueueData(rtpData);
-
-                    // update for the next fragment
-                    bytesRead += (payloadSize - 2);
-                    payloadSize = nalUnitSize - bytesRead + 2;
-                    if (payloadSize <= maxPayloadSize) { // last fragment
-                        endBit = (byte) 0x40;
-                        marker = true;
-                    } else {
-                        payloadSize = maxPayloadSize;
-                    }
-                    startBit = 0;
+                } else {
+                    // the last fragment waits for the next flushAggregate(), which sets the marker
+                    rtpData.setHeader(false, rtpTimestamp, timestampUs, sequenceNum++);
+                    pendingPacket = rtpData;
                 }
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
         }
+    }
 
-        // nal_ref_idc: NAL unit reference field | frame | picture
-        if (bufferInfo.flags == 2) {
+    // STAP-A (RFC 6184, section 5.7.1)
+    //  0                   1                   2                   3
+    //  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |                          RTP Header                           |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |STAP-A NAL HDR |         NALU 1 Size           | NALU 1 HDR    |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |                         NALU 1 Data                           |
+    // :                                                               :
+    // +               +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |               | NALU 2 Size                   | NALU 2 HDR    |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |                         NALU 2 Data                           |
+    // :                                                               :
+    // |                               +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |                               :...OPTIONAL RTP padding        |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+
+    /**
+     * Adds a small NAL unit of the current access unit to the STAP-A being filled. The NAL units
+     * are copied, they are small.
+     *
+     * @param nalUnit The NAL unit from its header to its limit
+     */
+    private void aggregate(ByteBuffer nalUnit, long rtpTimestamp, long timestampUs) throws InterruptedException {
+        int nalUnitSize = nalUnit.remaining();
+        if (aggregate != null && aggregate.getPayload().remaining() < STAP_A_SIZE_LENGTH + nalUnitSize) {
+            flushAggregate(false);
+        }
+        if (aggregate == null) {
+            flushPending(false);
+            aggregate = dequeueData(); // blocking
+            aggregate.getPayload().put((byte) 0); // the STAP-A header, written when it is sent
+            aggregate.setHeader(false, rtpTimestamp, timestampUs, sequenceNum++);
+            aggregateCount = 0;
+            aggregateHeader = 0;
+        }
+        byte unitHeader = nalUnit.get(nalUnit.position());
+        // F is set if any NAL unit has it, NRI is the highest of the NAL units
+        int nri = Math.max(aggregateHeader & 0x60, unitHeader & 0x60);
+        aggregateHeader = (aggregateHeader & 0x80) | (unitHeader & 0x80) | nri;
+        ByteBuffer payload = aggregate.getPayload();
+        payload.putShort((short) nalUnitSize);
+        payload.put(nalUnit);
+        aggregateCount++;
+    }
+
+    /**
+     * Sends what is left of the current access unit: the STAP-A being filled, or the packet
+     * that held back for the marker.
+     *
+     * @param marker True at the end of the access unit
+     */
+    private void flushAggregate(boolean marker) throws InterruptedException {
+        flushPending(marker);
+        if (aggregate == null) {
+            return;
+        }
+        ByteBuffer payload = aggregate.getPayload();
+        if (aggregateCount == 1) {
+            // A single NAL unit packet rather than a STAP-A of one
+            payload.flip();
+            payload.position(STAP_A_HEADER_SIZE + STAP_A_SIZE_LENGTH);
+            payload.compact();
+        } else {
+            payload.put(0, (byte) (aggregateHeader | 24)); // [F:1|NRI:2|Type:5] type=24 STAP-A
+        }
+        aggregate.setMarker(marker);
+        rtpSocket.enqueueData(aggregate);
+        aggregate = null;
+    }
 
+    private void flushPending(boolean marker) throws InterruptedException {
+        if (pendingPacket != null) {
+            pendingPacket.setMarker(marker);
+            rtpSocket.enqueueData(pendingPacket);
+            pendingPacket = null;
         }
     }
 }
@@ -0,0 +1,91 @@
+package net.xvis.streaming.video;
+
+/**
+ * Decides, before an H.264 NAL unit is packetized, whether it is sent or dropped whole, so that the
+ * codec's output thread never waits for free packets when the network falls behind.
+ * <p>
+ * While more than half of the packets are free everything goes. Below that, non-reference slices
+ * (nal_ref_idc == 0) are dropped, no other frame depends on them. When a quarter or less is left,
+ * or the NAL unit would not fit in what is left, the frame is dropped, then every frame up to the
+ * next IDR since they all depend on the dropped one, and a keyframe is asked for. A NAL unit is
+ * either sent whole or not at all, there are never partial FU-A sequences.
+ * <p>
+ * Free of Android classes, it only sees the NAL unit types and packet counts.
+ */
+public class FrameDropPolicy {
+    public static final int NAL_UNIT_TYPE_IDR = 5;
+    public static final int NAL_UNIT_TYPE_SPS = 7;
+    public static final int NAL_UNIT_TYPE_PPS = 8;
+
+    private boolean waitingForKeyFrame;
+    private boolean keyFrameRequested;
+    private volatile long droppedNonReference;
+    private volatile long droppedFrames;
+
+    /**
+     * @param nalUnitType The nal_unit_type of the NAL unit header
+     * @param nalRefIdc The nal_ref_idc of the NAL unit header
+     * @param packets The packets the NAL unit takes, parity packets included
+     * @param freePackets The packets the producer can get without waiting
+     * @param capacity All the packets of the socket
+     * @return true to send the NAL unit, false to drop it
+     */
+    public boolean admit(int nalUnitType, int nalRefIdc, int packets, int freePackets, int capacity) {
+        if (nalUnitType == NAL_UNIT_TYPE_SPS || nalUnitType == NAL_UNIT_TYPE_PPS) {
+            // tiny, and the decoder cannot do without them
+            return true;
+        }
+        if (nalUnitType == NAL_UNIT_TYPE_IDR) {
+            if (packets <= freePackets) {
+                waitingForKeyFrame = false;
+                return true;
+            }
+            // Even the keyframe does not fit, the next one may
+            drop();
+            return false;
+        }
+        if (waitingForKeyFrame) {
+            droppedFrames++;
+            return false;
+        }
+        if (packets > freePackets || freePackets <= capacity / 4) {
+            drop();
+            return false;
+        }
+        if (nalRefIdc == 0 && freePackets <= capacity / 2) {
+            droppedNonReference++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true once after frames were dropped, the encoder is then to produce a keyframe.
+     */
+    public boolean consumeKeyFrameRequest() {
+        boolean requested = keyFrameRequested;
+        keyFrameRequested = false;
+        return requested;
+    }
+
+    public boolean isWaitingForKeyFrame() {
+        return waitingForKeyFrame;
+    }
+
+    public long getDroppedNonReference() {
+        return droppedNonReference;
+    }
+
+    /**
+     * Returns the number of reference frames dropped, keyframes included.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    private void drop() {
+        droppedFrames++;
+        waitingForKeyFrame = true;
+        keyFrameRequested = true;
+    }
+}
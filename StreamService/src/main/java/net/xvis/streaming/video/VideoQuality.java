@@ -7,6 +7,9 @@ public class VideoQuality {
 
     private int frameRate = 20;
     private int bitRate = 500000;
+    // range the bitrate adapts within, to the network
+    private int minBitRate = 100000;
+    private int maxBitRate = 2000000;
     private int width = 176;
     private int height = 144;
 
@@ -14,6 +17,8 @@ public class VideoQuality {
         if (videoQuality != null) {
             this.frameRate = videoQuality.frameRate;
             this.bitRate = videoQuality.bitRate;
+            this.minBitRate = videoQuality.minBitRate;
+            this.maxBitRate = videoQuality.maxBitRate;
             this.width = videoQuality.width;
             this.height = videoQuality.height;
         }
@@ -47,6 +52,22 @@ public class VideoQuality {
         this.bitRate = bitRate;
     }
 
+    public int getMinBitRate() {
+        return minBitRate;
+    }
+
+    public int getMaxBitRate() {
+        return maxBitRate;
+    }
+
+    /**
+     * Sets the floor and the ceiling of the bitrate while it adapts to the network.
+     */
+    public void setBitRateRange(int minBitRate, int maxBitRate) {
+        this.minBitRate = minBitRate;
+        this.maxBitRate = maxBitRate;
+    }
+
     public int getWidth() {
         return width;
     }
@@ -68,6 +89,8 @@ public class VideoQuality {
                 && this.width == quality.width
                 && this.height == quality.height
                 && this.frameRate == quality.frameRate
-                && this.bitRate == quality.bitRate;
+                && this.bitRate == quality.bitRate
+                && this.minBitRate == quality.minBitRate
+                && this.maxBitRate == quality.maxBitRate;
     }
 }
@@ -1,12 +1,16 @@
 package net.xvis.streaming.video;
 
+import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
 import net.xvis.streaming.MediaStream;
 import net.xvis.streaming.Utils;
 import net.xvis.streaming.hw.CodecManager;
+import net.xvis.streaming.rtp.RtpSocket;
 
 import java.io.IOException;
 
@@ -21,6 +25,7 @@ public abstract class VideoStream extends MediaStream {
     protected int supportedColorFormat = 0;
     protected String b64SPS;
     protected String b64PPS;
+    protected BitrateController bitrateController;
 
     public static final int[] YUV420_COLOR_FORMATS = {
             MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible,
@@ -30,6 +35,17 @@ public abstract class VideoStream extends MediaStream {
             MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar,
     };
 
+    public VideoStream() {
+        super();
+        // The PLIs and FIRs of all the clients, merged into as few keyframes as possible
+        rtpSocket.setKeyFrameListener(new RtpSocket.KeyFrameListener() {
+            @Override
+            public void onKeyFrameRequest() {
+                requestKeyFrame();
+            }
+        });
+    }
+
     public void setVideoQuality(VideoQuality videoQuality) {
         if (!this.videoQuality.isSameQuality(videoQuality)) {
             this.videoQuality = new VideoQuality(videoQuality);
@@ -52,16 +68,75 @@ public abstract class VideoStream extends MediaStream {
         super.stop();
     }
 
+    /**
+     * Returns the bitrate the encoder currently runs at.
+     */
+    public int getBitrate() {
+        return (bitrateController != null) ? bitrateController.getBitrate() : videoQuality.getBitRate();
+    }
+
+    /**
+     * Sets the shortest interval between two keyframes the clients ask for, in milliseconds.
+     */
+    public void setMinKeyFrameInterval(long minIntervalMs) {
+        rtpSocket.setMinKeyFrameIntervalMs(minIntervalMs);
+    }
+
+    /**
+     * Asks the encoder for an IDR frame as soon as possible.
+     */
+    public void requestKeyFrame() {
+        MediaCodec codec = mediaCodec;
+        if (codec == null) {
+            return;
+        }
+        Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            codec.setParameters(parameters);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Unable to request a keyframe, " + e.getMessage());
+        }
+    }
+
+    @Override
+    protected void onEncoderOutput() {
+        // Follows the network, the controller itself limits how often the encoder is retargeted
+        long roundTripTimeUs = rtpSocket.getRoundTripTimeUs();
+        bitrateController.update(rtpSocket.getTargetBitrate(), rtpSocket.getLossFraction(),
+                (roundTripTimeUs >= 0) ? roundTripTimeUs / 1000 : -1, SystemClock.elapsedRealtime());
+    }
+
+    private final BitrateController.Encoder encoderBitrate = new BitrateController.Encoder() {
+        @Override
+        public void setBitrate(int bitrate) {
+            MediaCodec codec = mediaCodec;
+            if (codec == null) {
+                return;
+            }
+            Bundle parameters = new Bundle();
+            parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            try {
+                codec.setParameters(parameters);
+                Log.d(TAG, "Video bitrate set to " + bitrate);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Unable to set the video bitrate, " + e.getMessage());
+            }
+        }
+    };
+
     @Override
     protected void prepareMediaCodec() throws RuntimeException, IOException {
         Log.d(TAG, "Video encoded using the MediaCodec API with a buffer");
 
         // get the mediaCodec configured...
         //mediaCodec = CodecManager.findEncoder(mimeType, videoQuality.getWidth(), videoQuality.getHeight(), YUV420_COLOR_FORMATS[0]);
-        mediaCodec = CodecManager.findEncoder(mimeType, 320, 240, YUV420_COLOR_FORMATS[0]);
+        mediaCodec = CodecManager.findEncoder(mimeType, 320, 240, YUV420_COLOR_FORMATS[0], videoQuality.getBitRate());
         if (mediaCodec == null) {
             throw new RuntimeException("Unable to find the codec");
         }
+        bitrateController = new BitrateController(encoderBitrate, videoQuality.getMinBitRate(),
+                videoQuality.getMaxBitRate(), videoQuality.getBitRate());
         supportedColorFormat = mediaCodec.getInputFormat().getInteger(MediaFormat.KEY_COLOR_FORMAT);
         Log.e(TAG, " inputColorFormat=" + Utils.readableColorFormats(new int[] { supportedColorFormat }));
         b64PPS = CodecManager.mB64PPS;
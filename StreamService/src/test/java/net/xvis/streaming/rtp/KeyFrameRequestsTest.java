@@ -0,0 +1,71 @@
+package net.xvis.streaming.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyFrameRequestsTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void nothingPendingWithoutRequest() {
+        KeyFrameRequests requests = new KeyFrameRequests();
+        assertEquals(Long.MAX_VALUE, requests.poll(0));
+    }
+
+    @Test
+    public void firstRequestPassesAtOnce() {
+        KeyFrameRequests requests = new KeyFrameRequests();
+        requests.request();
+        assertEquals(0, requests.poll(5 * MS));
+        assertEquals(Long.MAX_VALUE, requests.poll(6 * MS));
+        assertEquals(1, requests.getKeyFrameCount());
+    }
+
+    @Test
+    public void burstMakesOneKeyFrame() {
+        KeyFrameRequests requests = new KeyFrameRequests();
+        for (int i = 0; i < 50; i++) {
+            requests.request();
+        }
+        assertEquals(0, requests.poll(0));
+        assertEquals(Long.MAX_VALUE, requests.poll(1));
+        assertEquals(50, requests.getRequestCount());
+        assertEquals(1, requests.getKeyFrameCount());
+    }
+
+    @Test
+    public void laterRequestWaitsForMinInterval() {
+        KeyFrameRequests requests = new KeyFrameRequests();
+        requests.setMinIntervalMs(500);
+        requests.request();
+        assertEquals(0, requests.poll(1000 * MS));
+        requests.request();
+        requests.request();
+        assertEquals(400 * MS, requests.poll(1100 * MS));
+        assertEquals(0, requests.poll(1500 * MS));
+        assertEquals(2, requests.getKeyFrameCount());
+    }
+
+    @Test
+    public void keyFrameSentAnswersPendingRequests() {
+        KeyFrameRequests requests = new KeyFrameRequests();
+        requests.request();
+        requests.onKeyFrameSent(10 * MS);
+        assertEquals(Long.MAX_VALUE, requests.poll(11 * MS));
+        assertEquals(0, requests.getKeyFrameCount());
+    }
+
+    @Test
+    public void requestAfterKeyFrameWaitsForMinInterval() {
+        KeyFrameRequests requests = new KeyFrameRequests();
+        requests.onKeyFrameSent(100 * MS);
+        requests.request();
+        assertEquals(300 * MS, requests.poll(300 * MS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeInterval() {
+        new KeyFrameRequests().setMinIntervalMs(-1);
+    }
+}
@@ -0,0 +1,106 @@
+package net.xvis.streaming.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PacketPacerTest {
+    private static final long FRAME_INTERVAL_US = 33333;
+    private static final int PACKET_SIZE = 1000;
+    private static final int SMALL_FRAME_PACKETS = 10;
+
+    /**
+     * Sends the packets of a frame as soon as the pacer lets them through, returns when the last
+     * one left.
+     */
+    private static long sendFrame(PacketPacer pacer, long timestampUs, int packets, int frameSize, long now) {
+        for (int i = 0; i < packets; i++) {
+            long delay;
+            while ((delay = pacer.delayNanos(PACKET_SIZE, timestampUs, frameSize, now)) > 0) {
+                now += delay;
+            }
+            pacer.onSent(PACKET_SIZE, now);
+        }
+        return now;
+    }
+
+    /**
+     * Sends small frames long enough for the averages to settle, returns the timestamp of the
+     * next frame.
+     */
+    private static long warmUp(PacketPacer pacer) {
+        long timestampUs = 0;
+        for (int i = 0; i < 50; i++) {
+            sendFrame(pacer, timestampUs, SMALL_FRAME_PACKETS, 0, timestampUs * 1000L);
+            timestampUs += FRAME_INTERVAL_US;
+        }
+        return timestampUs;
+    }
+
+    @Test
+    public void largeFrameIsPacedAtItsOwnRate() {
+        PacketPacer pacer = new PacketPacer();
+        long timestampUs = warmUp(pacer);
+        long averageRate = pacer.getPacingRate();
+
+        int packets = 3 * SMALL_FRAME_PACKETS; // 30 KB in half an interval, below the default max bitrate
+        long start = timestampUs * 1000L;
+        long end = sendFrame(pacer, timestampUs, packets, packets * PACKET_SIZE, start);
+
+        assertTrue(pacer.getPacingRate() > 2 * averageRate);
+        // spread over about half the interval, not over three intervals at the average rate
+        long intervalNs = FRAME_INTERVAL_US * 1000L;
+        assertTrue(end - start > intervalNs / 3);
+        assertTrue(end - start < intervalNs * 6 / 10);
+        assertEquals(0, pacer.getPacingDebtNanos());
+    }
+
+    @Test
+    public void smallFrameIsPacedAtTheAverageRate() {
+        PacketPacer pacer = new PacketPacer();
+        long timestampUs = warmUp(pacer);
+        long averageRate = pacer.getPacingRate();
+
+        sendFrame(pacer, timestampUs, 1, PACKET_SIZE, timestampUs * 1000L);
+        assertEquals(averageRate, pacer.getPacingRate(), averageRate / 20);
+    }
+
+    @Test
+    public void unknownFrameSizeUsesTheAverage() {
+        PacketPacer pacer = new PacketPacer();
+        long timestampUs = warmUp(pacer);
+        long averageRate = pacer.getPacingRate();
+
+        sendFrame(pacer, timestampUs, 100, 0, timestampUs * 1000L);
+        assertEquals(averageRate, pacer.getPacingRate(), averageRate / 20);
+    }
+
+    @Test
+    public void frameRateIsCappedByMaxBitrate() {
+        PacketPacer pacer = new PacketPacer();
+        pacer.setMaxBitrate(5000000L);
+        long timestampUs = warmUp(pacer);
+
+        sendFrame(pacer, timestampUs, 1, 1000000, timestampUs * 1000L);
+        assertEquals(5000000L, pacer.getPacingRate(), 1);
+    }
+
+    @Test
+    public void burstLeavesAtOnceAfterIdle() {
+        PacketPacer pacer = new PacketPacer();
+        long timestampUs = warmUp(pacer);
+        long now = timestampUs * 1000L;
+
+        int sent = 0;
+        while (pacer.delayNanos(PACKET_SIZE, timestampUs, 0, now) == 0) {
+            pacer.onSent(PACKET_SIZE, now);
+            sent++;
+        }
+        assertEquals(PacketPacer.DEFAULT_BURST_SIZE / PACKET_SIZE, sent);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPacingShareAboveOne() {
+        new PacketPacer().setPacingShare(1.5f);
+    }
+}
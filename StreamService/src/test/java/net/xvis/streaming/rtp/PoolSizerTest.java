@@ -0,0 +1,85 @@
+package net.xvis.streaming.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PoolSizerTest {
+    private static final long WINDOW = PoolSizer.WINDOW_NS;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLimitsNotPowerOfTwo() {
+        new PoolSizer(64, 48, 1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMinAboveMax() {
+        new PoolSizer(64, 256, 128);
+    }
+
+    @Test
+    public void growsOnExhaustion() {
+        PoolSizer sizer = new PoolSizer(64, 16, 256);
+        assertEquals(64, sizer.onDequeue(10, 0));
+        assertEquals(128, sizer.onDequeue(64, 1));
+        assertEquals(1, sizer.getExhaustions());
+        assertEquals(64, sizer.getHighWaterMark());
+    }
+
+    @Test
+    public void growsWhenWindowFillsHalf() {
+        PoolSizer sizer = new PoolSizer(64, 16, 256);
+        sizer.onDequeue(32, 0);
+        assertEquals(64, sizer.onDequeue(0, WINDOW - 1));
+        assertEquals(128, sizer.onDequeue(0, WINDOW));
+        assertEquals(32, sizer.getLastWindowHighWater());
+    }
+
+    @Test
+    public void shrinksAfterQuietWindows() {
+        PoolSizer sizer = new PoolSizer(64, 16, 256);
+        long now = 0;
+        sizer.onDequeue(1, now);
+        for (int i = 1; i < PoolSizer.SHRINK_WINDOWS; i++) {
+            now += WINDOW;
+            assertEquals(64, sizer.onDequeue(1, now));
+        }
+        now += WINDOW;
+        assertEquals(32, sizer.onDequeue(1, now));
+    }
+
+    @Test
+    public void busyWindowCancelsShrink() {
+        PoolSizer sizer = new PoolSizer(64, 16, 256);
+        long now = 0;
+        sizer.onDequeue(1, now);
+        for (int i = 1; i < PoolSizer.SHRINK_WINDOWS; i++) {
+            now += WINDOW;
+            sizer.onDequeue((i == PoolSizer.SHRINK_WINDOWS - 1) ? 16 : 1, now);
+        }
+        now += WINDOW;
+        assertEquals(64, sizer.onDequeue(1, now));
+    }
+
+    @Test
+    public void staysWithinLimits() {
+        PoolSizer full = new PoolSizer(256, 64, 256);
+        assertEquals(256, full.onDequeue(256, 0));
+
+        PoolSizer quiet = new PoolSizer(64, 64, 256);
+        long now = 0;
+        for (int i = 0; i <= PoolSizer.SHRINK_WINDOWS; i++) {
+            assertEquals(64, quiet.onDequeue(0, now));
+            now += WINDOW;
+        }
+    }
+
+    @Test
+    public void followsNewLimits() {
+        PoolSizer sizer = new PoolSizer(256, 64, 1024);
+        sizer.setLimits(16, 128);
+        assertEquals(128, sizer.onDequeue(0, 0));
+        sizer.onResized(128);
+        assertEquals(1, sizer.getResizes());
+    }
+}
@@ -0,0 +1,108 @@
+package net.xvis.streaming.rtp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RtpSocketTest {
+    private RtpSocket socket;
+
+    @Before
+    public void setUp() {
+        socket = new RtpSocket(1500, 5004, 5005);
+        socket.setPayloadType(96);
+        socket.setSSRC(7);
+        // The tests go around the pool, it must not be resized under them
+        socket.setPoolMemoryLimits(socket.getPoolMemory(), socket.getPoolMemory());
+    }
+
+    @After
+    public void tearDown() {
+        socket.close();
+    }
+
+    private RtpSocket.RtpData sendPacket(int sequenceNumber) throws InterruptedException {
+        RtpSocket.RtpData rtpData = socket.dequeueData();
+        rtpData.getPayload().putInt(sequenceNumber);
+        rtpData.setHeader(true, sequenceNumber, sequenceNumber, sequenceNumber);
+        socket.enqueueData(rtpData);
+        return rtpData;
+    }
+
+    @Test(timeout = 10000)
+    public void evictedSlotGetsNewSsrcAndCsrc() throws Exception {
+        int capacity = socket.getPacketCount();
+        // Every packet stays held, as by the backlog of a stalled destination
+        List<RtpSocket.RtpData> held = new ArrayList<>();
+        for (int i = 0; i < capacity; i++) {
+            RtpSocket.RtpData rtpData = socket.dequeueData();
+            rtpData.ref();
+            held.add(rtpData);
+            rtpData.setHeader(true, i, i, i);
+            socket.enqueueData(rtpData);
+        }
+
+        // Wraps around: the first slot is evicted and gets a new packet
+        RtpSocket.RtpData replacement = sendPacket(capacity);
+        assertEquals(1, socket.getEvictedPackets());
+        assertFalse(held.contains(replacement));
+
+        socket.setSSRC(9);
+        socket.setCSRC(new int[] { 11 });
+        // Around the ring again, back to the replacement
+        for (int i = 1; i < capacity; i++) {
+            sendPacket(capacity + i);
+        }
+        RtpSocket.RtpData rtpData = socket.dequeueData();
+        assertSame(replacement, rtpData);
+        ByteBuffer header = rtpData.getBuffers()[0];
+        assertEquals(9, header.getInt(8));
+        assertEquals(1, header.get(0) & 0x0F);
+        assertEquals(11, header.getInt(RtpSocket.HEADER_SIZE));
+
+        for (RtpSocket.RtpData heldData : held) {
+            heldData.unref();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void freeCountLeavesOutHeldPackets() throws Exception {
+        int capacity = socket.getPacketCount();
+        RtpSocket.RtpData rtpData = socket.dequeueData();
+        rtpData.ref();
+        rtpData.setHeader(true, 0, 0, 0);
+        socket.enqueueData(rtpData);
+        while (socket.getFreeCount() != capacity - 1) {
+            Thread.sleep(1);
+        }
+        rtpData.unref();
+        assertEquals(capacity, socket.getFreeCount());
+    }
+
+    @Test
+    public void blocksizeOfTheOnlyClientIsHonoured() throws Exception {
+        InetAddress client = InetAddress.getByName("127.0.0.1");
+        socket.addDestination(client, 6000, 6001);
+        assertEquals(RtpSocket.MIN_PACKET_SIZE, socket.setMaxPacketSize(client, 100));
+        assertEquals(RtpSocket.MIN_PACKET_SIZE, socket.getMaxPacketSize());
+    }
+
+    @Test
+    public void blocksizeDoesNotShrinkOtherClientsPackets() throws Exception {
+        InetAddress client = InetAddress.getByName("127.0.0.1");
+        InetAddress other = InetAddress.getByName("127.0.0.2");
+        socket.addDestination(other, 6002, 6003);
+        socket.addDestination(client, 6000, 6001);
+        int packetSize = socket.getMaxPacketSize();
+        assertTrue(packetSize > RtpSocket.MIN_PACKET_SIZE);
+        assertEquals(packetSize, socket.setMaxPacketSize(client, RtpSocket.MIN_PACKET_SIZE));
+        assertEquals(packetSize, socket.getMaxPacketSize());
+    }
+}
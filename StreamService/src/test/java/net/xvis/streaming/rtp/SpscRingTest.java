@@ -0,0 +1,129 @@
+package net.xvis.streaming.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpscRingTest {
+
+    private static SpscRing<int[]> newRing(int capacity) {
+        int[][] slots = new int[capacity][];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new int[1];
+        }
+        return new SpscRing<>(slots);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityNotPowerOfTwo() {
+        new SpscRing<>(new Object[3]);
+    }
+
+    @Test
+    public void handsSlotsOverInOrder() throws Exception {
+        SpscRing<int[]> ring = newRing(4);
+        assertNull(ring.poll());
+        for (int i = 0; i < 3; i++) {
+            ring.claim()[0] = i;
+            ring.publish();
+        }
+        assertEquals(3, ring.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, ring.take()[0]);
+            ring.release();
+        }
+        assertEquals(0, ring.size());
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void peekDoesNotTake() throws Exception {
+        SpscRing<int[]> ring = newRing(2);
+        int[] slot = ring.claim();
+        ring.publish();
+        assertSame(slot, ring.peek());
+        assertSame(slot, ring.peek());
+        assertSame(slot, ring.poll());
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void reusesReleasedSlots() throws Exception {
+        SpscRing<int[]> ring = newRing(2);
+        int[] first = ring.claim();
+        ring.publish();
+        ring.claim();
+        ring.publish();
+        ring.take();
+        ring.release();
+        assertSame(first, ring.claim());
+    }
+
+    @Test
+    public void tryClaimReturnsNullWhenFull() throws Exception {
+        SpscRing<int[]> ring = newRing(2);
+        assertNotNull(ring.tryClaim());
+        ring.publish();
+        assertNotNull(ring.tryClaim());
+        ring.publish();
+        assertNull(ring.tryClaim());
+        ring.take();
+        ring.release();
+        assertNotNull(ring.tryClaim());
+    }
+
+    @Test
+    public void replacedSlotIsHandedOver() throws Exception {
+        SpscRing<int[]> ring = newRing(2);
+        ring.claim();
+        int[] replacement = new int[] { 42 };
+        ring.replaceClaimed(replacement);
+        ring.publish();
+        assertSame(replacement, ring.take());
+    }
+
+    @Test(timeout = 10000)
+    public void producerWaitsForTheConsumer() throws Exception {
+        final SpscRing<int[]> ring = newRing(4);
+        ring.setWaitStrategy(SpscRing.WaitStrategy.PARK, SpscRing.WaitStrategy.PARK);
+        final int count = 100000;
+        final long[] sum = new long[1];
+        final boolean[] inOrder = { true };
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        int value = ring.take()[0];
+                        inOrder[0] &= value == i;
+                        sum[0] += value;
+                        ring.release();
+                    }
+                } catch (InterruptedException ignore) {
+                }
+            }
+        };
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            ring.claim()[0] = i;
+            ring.publish();
+        }
+        consumer.join();
+        assertTrue(inOrder[0]);
+        assertEquals((long) count * (count - 1) / 2, sum[0]);
+    }
+
+    @Test
+    public void claimIsInterruptible() throws Exception {
+        SpscRing<int[]> ring = newRing(1);
+        ring.claim();
+        ring.publish();
+        Thread.currentThread().interrupt();
+        try {
+            ring.claim();
+            fail("claim() returned a slot the consumer did not release");
+        } catch (InterruptedException expected) {
+            assertFalse(Thread.interrupted());
+        }
+    }
+}
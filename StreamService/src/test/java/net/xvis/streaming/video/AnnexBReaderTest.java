@@ -0,0 +1,87 @@
+package net.xvis.streaming.video;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AnnexBReaderTest {
+
+    private static List<int[]> read(ByteBuffer buffer, int start, int end) {
+        AnnexBReader reader = new AnnexBReader();
+        reader.reset(buffer, start, end);
+        List<int[]> nalUnits = new ArrayList<>();
+        while (reader.next()) {
+            nalUnits.add(new int[] { reader.getStart(), reader.getEnd(), reader.getNalUnitType() });
+        }
+        return nalUnits;
+    }
+
+    private static ByteBuffer bytes(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length);
+        for (int value : values) {
+            buffer.put((byte) value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void splitsThreeAndFourByteStartCodes() {
+        // SPS behind 00 00 00 01, PPS and IDR behind 00 00 01
+        ByteBuffer buffer = bytes(0, 0, 0, 1, 0x67, 1, 2, 0, 0, 1, 0x68, 3, 0, 0, 1, 0x65, 4, 5, 6);
+        List<int[]> nalUnits = read(buffer, 0, buffer.limit());
+        assertEquals(3, nalUnits.size());
+        assertArrayEquals(new int[] { 4, 7, 7 }, nalUnits.get(0));
+        assertArrayEquals(new int[] { 10, 12, 8 }, nalUnits.get(1));
+        assertArrayEquals(new int[] { 15, 19, 5 }, nalUnits.get(2));
+    }
+
+    @Test
+    public void trimsTrailingZeros() {
+        ByteBuffer buffer = bytes(0, 0, 1, 0x06, 9, 0, 0, 0, 0, 0, 1, 0x41, 7, 0, 0);
+        List<int[]> nalUnits = read(buffer, 0, buffer.limit());
+        assertEquals(2, nalUnits.size());
+        assertArrayEquals(new int[] { 3, 5, 6 }, nalUnits.get(0));
+        assertArrayEquals(new int[] { 11, 13, 1 }, nalUnits.get(1));
+    }
+
+    @Test
+    public void readsBetweenOffsetsOnly() {
+        ByteBuffer buffer = bytes(0x55, 0x55, 0, 0, 1, 0x65, 1, 2, 3, 0, 0, 1, 0x41);
+        List<int[]> nalUnits = read(buffer, 2, 9);
+        assertEquals(1, nalUnits.size());
+        assertArrayEquals(new int[] { 5, 9, 5 }, nalUnits.get(0));
+    }
+
+    @Test
+    public void findsNothingWithoutStartCode() {
+        ByteBuffer buffer = bytes(1, 2, 3, 0, 0, 2, 0, 1, 0, 0);
+        assertEquals(0, read(buffer, 0, buffer.limit()).size());
+        assertEquals(-1, AnnexBReader.findStartCode(buffer, 0, buffer.limit()));
+    }
+
+    @Test
+    public void wordScanMatchesByteScan() {
+        // Start codes at every alignment and across word boundaries, in large non-zero runs
+        for (int offset = 0; offset < 24; offset++) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+            for (int i = 0; i < 64; i++) {
+                buffer.put(i, (byte) (0x11 + i));
+            }
+            buffer.put(offset, (byte) 0);
+            buffer.put(offset + 1, (byte) 0);
+            buffer.put(offset + 2, (byte) 1);
+            for (int from = 0; from <= offset; from++) {
+                assertEquals("offset " + offset + " from " + from, offset,
+                        AnnexBReader.findStartCode(buffer, from, 64));
+            }
+            assertEquals(-1, AnnexBReader.findStartCode(buffer, offset + 1, 64));
+            // A start code cut by the end of the range is not one
+            assertEquals(-1, AnnexBReader.findStartCode(buffer, 0, offset + 2));
+        }
+    }
+}
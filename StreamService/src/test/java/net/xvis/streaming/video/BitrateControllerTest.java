@@ -0,0 +1,114 @@
+package net.xvis.streaming.video;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BitrateControllerTest {
+    private static final int MIN = 500000;
+    private static final int MAX = 4000000;
+
+    private final List<Integer> encoderBitrates = new ArrayList<>();
+    private BitrateController controller;
+    private long nowMs;
+
+    @Before
+    public void setUp() {
+        controller = new BitrateController(new BitrateController.Encoder() {
+            @Override
+            public void setBitrate(int bitrate) {
+                encoderBitrates.add(bitrate);
+            }
+        }, MIN, MAX, 2000000);
+        nowMs = 100000;
+    }
+
+    private int update(long estimatedBitrate, float lossFraction, long roundTripTimeMs) {
+        int bitrate = controller.update(estimatedBitrate, lossFraction, roundTripTimeMs, nowMs);
+        nowMs += BitrateController.UPDATE_INTERVAL_MS;
+        return bitrate;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidRange() {
+        new BitrateController(null, 1000, 500, 800);
+    }
+
+    @Test
+    public void clampsInitialBitrate() {
+        assertEquals(MAX, new BitrateController(null, MIN, MAX, 10 * MAX).getBitrate());
+    }
+
+    @Test
+    public void decreasesAtOnceToTheEstimate() {
+        assertEquals(900000, update(1000000, 0, -1));
+        assertEquals(1, encoderBitrates.size());
+        assertEquals(900000, (int) encoderBitrates.get(0));
+    }
+
+    @Test
+    public void ignoresChangesWithinHysteresis() {
+        // 0.9 * 2.15 Mbps is within 5 % below and 10 % above the current bitrate
+        update(2150000, 0, -1);
+        update(2300000, 0, -1);
+        assertEquals(2000000, controller.getBitrate());
+        assertTrue(encoderBitrates.isEmpty());
+    }
+
+    @Test
+    public void ignoresUpdatesWithinInterval() {
+        controller.update(1000000, 0, -1, nowMs);
+        controller.update(600000, 0, -1, nowMs + BitrateController.UPDATE_INTERVAL_MS - 1);
+        assertEquals(900000, controller.getBitrate());
+        assertEquals(1, encoderBitrates.size());
+    }
+
+    @Test
+    public void increasesGraduallyAfterHold() {
+        update(1000000, 0, -1); // down to 900 kbps
+        // Held after the decrease
+        for (long held = BitrateController.UPDATE_INTERVAL_MS; held < BitrateController.INCREASE_HOLD_MS;
+                held += BitrateController.UPDATE_INTERVAL_MS) {
+            assertEquals(900000, update(10000000, 0, -1));
+        }
+        // Then up by at most 15 % per update, to within the hysteresis of the ceiling
+        int previous = 900000;
+        for (int i = 0; i < 30; i++) {
+            int bitrate = update(10000000, 0, -1);
+            assertTrue(bitrate <= (long) (previous * (1 + BitrateController.MAX_INCREASE)) + 1);
+            previous = bitrate;
+        }
+        assertTrue(previous * (1 + BitrateController.UP_HYSTERESIS) >= MAX);
+        assertTrue(previous <= MAX);
+    }
+
+    @Test
+    public void backsOffOnHighLoss() {
+        // Down by half the loss, whatever the estimate
+        assertEquals(1800000, update(10000000, 0.2f, -1));
+    }
+
+    @Test
+    public void holdsOnModerateLoss() {
+        for (int i = 0; i < 10; i++) {
+            assertEquals(2000000, update(10000000, 0.05f, -1));
+        }
+        assertTrue(encoderBitrates.isEmpty());
+    }
+
+    @Test
+    public void backsOffOnQueueingDelay() {
+        update(2300000, 0, 40); // lowest round trip time
+        assertEquals(1800000, update(2300000, 0, 40 + 200));
+    }
+
+    @Test
+    public void staysAboveFloor() {
+        assertEquals(MIN, update(100000, 0.5f, -1));
+        assertEquals(MIN, update(100000, 0.5f, -1));
+    }
+}